@@ -1,13 +1,13 @@
 package com.ak.nifi.custom.processor.remote;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,7 +22,10 @@ import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
@@ -33,32 +36,58 @@ import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 
-import com.jcraft.jsch.Channel;
-import com.jcraft.jsch.ChannelExec;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.Session;
+import com.ak.processors.exec_processor.core.CommandTransport;
+import com.ak.processors.exec_processor.core.LocalProcessTransport;
+import com.ak.processors.exec_processor.core.RemoteCommandTask;
+import com.ak.processors.exec_processor.core.SshTransport;
 
 @Tags({ "ssh", "jsch", "remote", "execute", "command" })
 @CapabilityDescription("Remote Login to a machine, executes the user specified command and returns the result as a flowfile. For commands that do not have a result to return, an empty flow file is generated. "
-		+ "For any failure, the exception trace is available on the failure relationship")
+		+ "For any failure, the exception trace is available on the failure relationship. "
+		+ "With the Local transport the command runs on the NiFi host itself instead of over SSH")
 @WritesAttributes({
     @WritesAttribute(attribute = "execution.time", description = "Time taken to execute the remote command")})
 @InputRequirement(Requirement.INPUT_REQUIRED)
 public class ExecuteRemoteCommand extends AbstractProcessor{
 
+	private static final int SSH_PORT = 22;
+
+	static final AllowableValue TRANSPORT_SSH = new AllowableValue("ssh", "SSH",
+			"Run the command on the remote host over SSH");
+	static final AllowableValue TRANSPORT_LOCAL = new AllowableValue("local", "Local",
+			"Run the command on the NiFi host through the system shell");
+
+	public static final PropertyDescriptor TRANSPORT = new PropertyDescriptor.Builder().name("Transport")
+			.description("How the command is run. Local skips SSH, Remote Host and the credentials are then ignored. "
+					+ "Local commands get no standard input: it is closed when they start, so a command reading it sees end of input at once")
+			.required(true)
+			.allowableValues(TRANSPORT_SSH, TRANSPORT_LOCAL).defaultValue(TRANSPORT_SSH.getValue()).build();
+
 	public static final PropertyDescriptor REMOTE_HOST = new PropertyDescriptor.Builder().name("Remote Host")
-			.description("Hostname or IP of the remote host").required(true).expressionLanguageSupported(true)
+			.description("Hostname or IP of the remote host. Required for the SSH transport").required(false).expressionLanguageSupported(true)
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
 	
 	
 	public static final PropertyDescriptor USER = new PropertyDescriptor.Builder().name("Remote User")
-			.description("Username to login to remote host").required(true).expressionLanguageSupported(true).sensitive(true)
+			.description("Username to login to remote host. Required for the SSH transport").required(false).expressionLanguageSupported(true).sensitive(true)
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
 	
 	public static final PropertyDescriptor PASSWORD = new PropertyDescriptor.Builder().name("Remote User Password")
-			.description("Login password for the remote user").required(true).expressionLanguageSupported(true).sensitive(true)
+			.description("Login password for the remote user. Required for the SSH transport unless a Private Key File is given").required(false).expressionLanguageSupported(true).sensitive(true)
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
 	
+	public static final PropertyDescriptor PRIVATE_KEY_FILE = new PropertyDescriptor.Builder().name("Private Key File")
+			.description("Private key used to log in to the remote host. Loaded once and shared by every connection that uses it").required(false).expressionLanguageSupported(true)
+			.addValidator(StandardValidators.FILE_EXISTS_VALIDATOR).build();
+
+	public static final PropertyDescriptor PRIVATE_KEY_PASSPHRASE = new PropertyDescriptor.Builder().name("Private Key Passphrase")
+			.description("Passphrase of the private key, if it is encrypted").required(false).sensitive(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor KNOWN_HOSTS_FILE = new PropertyDescriptor.Builder().name("Known Hosts File")
+			.description("known_hosts file to verify the remote host key against. When not set the host key is not checked").required(false).expressionLanguageSupported(true)
+			.addValidator(StandardValidators.FILE_EXISTS_VALIDATOR).build();
+
 	public static final PropertyDescriptor COMMAND = new PropertyDescriptor.Builder().name("Command")
 			.description("Command to be executed on the remote shell").required(true).expressionLanguageSupported(true).sensitive(true)
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
@@ -71,9 +100,13 @@ public class ExecuteRemoteCommand extends AbstractProcessor{
 	 @Override
 		protected void init(final ProcessorInitializationContext context) {
 			final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+			descriptors.add(TRANSPORT);
 			descriptors.add(REMOTE_HOST);
 			descriptors.add(USER);
 			descriptors.add(PASSWORD);
+			descriptors.add(PRIVATE_KEY_FILE);
+			descriptors.add(PRIVATE_KEY_PASSPHRASE);
+			descriptors.add(KNOWN_HOSTS_FILE);
 			descriptors.add(COMMAND);
 			this.descriptors = Collections.unmodifiableList(descriptors);
 		}
@@ -87,6 +120,24 @@ public class ExecuteRemoteCommand extends AbstractProcessor{
 	    public Set<Relationship> getRelationships() {
 	        return RELATIONSHIPS;
 	    }
+
+	    @Override
+	    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+	        final List<ValidationResult> results = new ArrayList<ValidationResult>();
+	        if (TRANSPORT_SSH.getValue().equals(validationContext.getProperty(TRANSPORT).getValue())) {
+	            for (PropertyDescriptor required : new PropertyDescriptor[] { REMOTE_HOST, USER }) {
+	                if (!validationContext.getProperty(required).isSet()) {
+	                    results.add(new ValidationResult.Builder().subject(required.getName()).valid(false)
+	                            .explanation(required.getName() + " is required for the SSH transport").build());
+	                }
+	            }
+	            if (!validationContext.getProperty(PASSWORD).isSet() && !validationContext.getProperty(PRIVATE_KEY_FILE).isSet()) {
+	                results.add(new ValidationResult.Builder().subject(PASSWORD.getName()).valid(false)
+	                        .explanation("either " + PASSWORD.getName() + " or " + PRIVATE_KEY_FILE.getName() + " is required for the SSH transport").build());
+	            }
+	        }
+	        return results;
+	    }
 	    
 	    
 	    private void submitFlowFile(FlowFile flowFile, final ProcessContext context, final ProcessSession session, final String message, final long startNanos, final String host_command, final Relationship rel){
@@ -109,12 +160,7 @@ public class ExecuteRemoteCommand extends AbstractProcessor{
 	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
 		
 		boolean exception=false;
-		JSch jschSSHChannel = new JSch();
-		
-		
-		String userName = getProperty(context, USER);
-		String hostName = getProperty(context, REMOTE_HOST);
-		String password = getProperty(context, PASSWORD);
+		final boolean isLocal = TRANSPORT_LOCAL.getValue().equals(context.getProperty(TRANSPORT).getValue());
 		String command = getProperty(context, COMMAND);
 		String executionResult ="";
 
@@ -122,16 +168,16 @@ public class ExecuteRemoteCommand extends AbstractProcessor{
 	        if (flowFile == null) {
 	            return;
 	        }
-	        
-	        
+
+		final CommandTransport transport = isLocal ? new LocalProcessTransport()
+				: new SshTransport(getProperty(context, REMOTE_HOST), SSH_PORT, getProperty(context, USER),
+						getOptionalProperty(context, PASSWORD), getOptionalProperty(context, PRIVATE_KEY_FILE),
+						context.getProperty(PRIVATE_KEY_PASSPHRASE).getValue(), getOptionalProperty(context, KNOWN_HOSTS_FILE),
+						!context.getProperty(KNOWN_HOSTS_FILE).isSet());
+		String hostName = transport.getHostName();
 		final long startNanos = System.nanoTime();
 		try{
-		Session remoteSession = jschSSHChannel.getSession(userName.trim(), hostName.trim());
-		remoteSession.setPassword(password);
-		remoteSession.setConfig("StrictHostKeyChecking", "no");
-		remoteSession.connect();
-		executionResult = executeCommand(command.trim(), remoteSession);
-		remoteSession.disconnect();
+		executionResult = new RemoteCommandTask(transport, command.trim(), 0, null).call().getResultString();
 		
 		}catch(Exception e){
 			exception=true;
@@ -149,23 +195,6 @@ public class ExecuteRemoteCommand extends AbstractProcessor{
 		
 	}
 	
-	  private String executeCommand(String command,Session session) throws Exception
-	  {
-	     StringBuilder outputBuffer = new StringBuilder();
-	        Channel channel = session.openChannel("exec");
-	        ((ChannelExec)channel).setCommand(command);
-	        InputStream commandOutput = channel.getInputStream();
-	        channel.connect();
-	        int readByte = commandOutput.read();
-	        while(readByte != 0xffffffff)
-	        {
-	           outputBuffer.append((char)readByte);
-	           readByte = commandOutput.read();
-	        }
-	        channel.disconnect();
-	     return outputBuffer.toString();
-	  }
-	  
 	  public String getProperty(ProcessContext context, PropertyDescriptor descriptor) {
 			if(descriptor.isExpressionLanguageSupported()){
 				return context.getProperty(descriptor).evaluateAttributeExpressions().getValue().toString().trim();
@@ -174,4 +203,8 @@ public class ExecuteRemoteCommand extends AbstractProcessor{
 			}
 		}
 
+	  private String getOptionalProperty(ProcessContext context, PropertyDescriptor descriptor) {
+			return context.getProperty(descriptor).isSet() ? getProperty(context, descriptor) : null;
+		}
+
 }
@@ -0,0 +1,130 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.azure.storage.StorageException;
+
+/**
+ * Bounds the requests in flight against a storage account and retries the
+ * ones that fail transiently. The bound follows AIMD: every success raises it
+ * by about one request per round trip, every throttling response (500 or 503,
+ * ServerBusy) halves it, so throughput settles just under what the account
+ * allows instead of hammering it. Retries wait an exponentially growing,
+ * fully jittered delay, so throttled tasks do not come back in lockstep.
+ */
+class AdaptiveRequestLimiter {
+
+	static final long BASE_BACKOFF_MILLIS = 200;
+	static final long MAX_BACKOFF_MILLIS = 30000;
+
+	private final int maxLimit;
+	private final int maxRetries;
+	private double limit;
+	private int inFlight;
+
+	AdaptiveRequestLimiter(final int maxLimit, final int maxRetries) {
+		this.maxLimit = maxLimit;
+		this.maxRetries = maxRetries;
+		this.limit = maxLimit;
+	}
+
+	/** One request against the account, sent again if it fails transiently. */
+	interface Request<T> {
+		T send() throws StorageException, IOException;
+	}
+
+	/** Sends the request under the limit, retrying it while it fails transiently. */
+	<T> T execute(final Request<T> request) throws StorageException, IOException {
+		for (int attempt = 0;; attempt++) {
+			acquire();
+			final T result;
+			try {
+				result = request.send();
+			} catch (StorageException | IOException e) {
+				release(isThrottled(e));
+				if (attempt >= maxRetries || !isRetryable(e)) {
+					throw e;
+				}
+				sleep(backoff(attempt));
+				continue;
+			} catch (RuntimeException e) {
+				release(false);
+				throw e;
+			}
+			release(false);
+			return result;
+		}
+	}
+
+	synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	private synchronized void acquire() throws InterruptedIOException {
+		try {
+			while (inFlight >= (int) limit) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send a request");
+		}
+		inFlight++;
+	}
+
+	private synchronized void release(final boolean throttled) {
+		inFlight--;
+		if (throttled) {
+			limit = Math.max(1, limit / 2);
+		} else {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		notifyAll();
+	}
+
+	static boolean isThrottled(final Exception e) {
+		if (!(e instanceof StorageException)) {
+			return false;
+		}
+		final int status = ((StorageException) e).getHttpStatusCode();
+		return status == 500 || status == 503;
+	}
+
+	/** Throttling, timeouts and broken connections are worth another try, other client errors are not. */
+	static boolean isRetryable(final Exception e) {
+		if (e instanceof StorageException) {
+			final int status = ((StorageException) e).getHttpStatusCode();
+			// a status below 100 means no response arrived at all
+			return status < 100 || status == 408 || status >= 500;
+		}
+		return e instanceof IOException;
+	}
+
+	private static void sleep(final long millis) throws InterruptedIOException {
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while backing off");
+		}
+	}
+
+	static long backoff(final int attempt) {
+		final long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/** True if the exception, or one it wraps, is a throttling response. */
+	static boolean isCausedByThrottling(Throwable t) {
+		for (; t != null; t = t.getCause()) {
+			if (t instanceof Exception && isThrottled((Exception) t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
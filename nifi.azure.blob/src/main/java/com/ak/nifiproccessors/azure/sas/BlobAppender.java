@@ -0,0 +1,260 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.stream.io.StreamUtils;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.Constants;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+
+/**
+ * Appends flowfiles to a rolling series of append blobs named
+ * {@code <base name>.<creation millis>}. One appender serves one destination
+ * and outlives the trigger, so a continuous feed keeps writing to the same
+ * blob. Small flowfiles are gathered into blocks of up to 4 MB, a flowfile is
+ * never split across two blobs. A new blob is started once the current one
+ * would pass the roll size or has been open for the roll interval, or after
+ * a failed append, since the current end of the blob is then unknown.
+ * <p>
+ * A flowfile larger than one block is appended as several blocks, and an
+ * append blob cannot take any of them back. If one of them fails, the blocks
+ * already appended stay at the end of that blob; no other flowfile is ever
+ * appended after them, since the failure starts a new blob, and the flowfile
+ * is not reported at that blob. Readers of the blob should use the offsets
+ * reported for the flowfiles rather than assume the blob holds nothing else.
+ * <p>
+ * Requests go through the uploader's {@link AdaptiveRequestLimiter}, so they
+ * count against the same account limit and are retried the same way. The
+ * block buffer is only allocated once something is appended, grows with the
+ * largest block gathered so far and is dropped on {@link #close()}.
+ */
+class BlobAppender {
+
+	static final int MAX_APPEND_BLOCK_SIZE = 4 * Constants.MB;
+
+	private final CloudBlobContainer container;
+	private final String baseName;
+	private final long rollSize;
+	private final long rollMillis;
+	private final AdaptiveRequestLimiter limiter;
+	private final BlobRequestOptions options = new BlobRequestOptions();
+	private byte[] buffer;
+
+	// read without the lock by isExpired
+	private volatile CloudAppendBlob current;
+	private volatile long createdMillis;
+	private long currentSize;
+	private long currentBlocks;
+
+	BlobAppender(CloudBlobContainer container, String baseName, long rollSize, long rollMillis, AdaptiveRequestLimiter limiter) {
+		this.container = container;
+		this.baseName = baseName;
+		this.rollSize = rollSize;
+		this.rollMillis = rollMillis;
+		this.limiter = limiter;
+		// retried by the limiter, which also backs off the other requests, rather than by the client
+		options.setRetryPolicyFactory(new RetryNoRetry());
+	}
+
+	/** Where each flowfile of one {@link #append} call ended up, or why it did not. */
+	static final class Results {
+		final String[] blobNames;
+		final long[] offsets;
+		final Exception[] failures;
+
+		Results(int size) {
+			blobNames = new String[size];
+			offsets = new long[size];
+			failures = new Exception[size];
+		}
+	}
+
+	/** True once the current blob is past its roll interval, so nothing more will be appended to it. */
+	boolean isExpired(final long now) {
+		return current != null && now - createdMillis >= rollMillis;
+	}
+
+	/**
+	 * Ends the current blob and drops the buffer once an append in progress has
+	 * finished. Nothing is held back between appends, so there is nothing left
+	 * to write. An appender that is used again afterwards starts a new blob.
+	 */
+	synchronized void close() {
+		current = null;
+		buffer = null;
+	}
+
+	synchronized Results append(final ProcessSession session, final List<FlowFile> flowFiles) {
+		final Results results = new Results(flowFiles.size());
+		final List<Integer> gathered = new ArrayList<Integer>();
+		final List<Integer> positions = new ArrayList<Integer>();
+		int buffered = 0;
+		for (int i = 0; i < flowFiles.size(); i++) {
+			final FlowFile flowFile = flowFiles.get(i);
+			final int size = (int) Math.min(flowFile.getSize(), Integer.MAX_VALUE);
+			if (buffered > 0 && (long) buffered + flowFile.getSize() > MAX_APPEND_BLOCK_SIZE) {
+				flush(buffered, gathered, positions, results);
+				buffered = 0;
+			}
+			if (flowFile.getSize() > MAX_APPEND_BLOCK_SIZE) {
+				appendLarge(session, flowFile, i, results);
+				continue;
+			}
+			try {
+				final int offset = buffered;
+				final byte[] buffer = buffer(buffered + size);
+				session.read(flowFile, new InputStreamCallback() {
+					@Override
+					public void process(InputStream in) throws IOException {
+						new DataInputStream(in).readFully(buffer, offset, size);
+					}
+				});
+			} catch (Exception e) {
+				results.failures[i] = e;
+				continue;
+			}
+			gathered.add(i);
+			positions.add(buffered);
+			buffered += size;
+		}
+		if (buffered > 0) {
+			flush(buffered, gathered, positions, results);
+		}
+		return results;
+	}
+
+	private void flush(final int length, final List<Integer> gathered, final List<Integer> positions, final Results results) {
+		try {
+			final CloudAppendBlob blob = blobFor(length);
+			final long blockOffset = appendBlock(blob, buffer, length);
+			appended(length, 1);
+			for (int j = 0; j < gathered.size(); j++) {
+				results.blobNames[gathered.get(j)] = blob.getName();
+				results.offsets[gathered.get(j)] = blockOffset + positions.get(j);
+			}
+		} catch (Exception e) {
+			current = null;
+			for (Integer index : gathered) {
+				results.failures[index] = e;
+			}
+		}
+		gathered.clear();
+		positions.clear();
+	}
+
+	/** Streams a flowfile larger than one block as consecutive blocks of the same blob. */
+	private void appendLarge(final ProcessSession session, final FlowFile flowFile, final int index, final Results results) {
+		try {
+			final CloudAppendBlob blob = blobFor(flowFile.getSize());
+			final long[] firstOffset = { -1 };
+			final byte[] buffer = buffer(MAX_APPEND_BLOCK_SIZE);
+			session.read(flowFile, new InputStreamCallback() {
+				@Override
+				public void process(InputStream in) throws IOException {
+					int length;
+					while ((length = StreamUtils.fillBuffer(in, buffer, false)) > 0) {
+						try {
+							final long offset = appendBlock(blob, buffer, length);
+							if (firstOffset[0] < 0) {
+								firstOffset[0] = offset;
+							}
+						} catch (StorageException e) {
+							throw new IOException(e);
+						}
+						appended(length, 1);
+					}
+				}
+			});
+			results.blobNames[index] = blob.getName();
+			results.offsets[index] = firstOffset[0];
+		} catch (Exception e) {
+			// the blocks appended so far stay where they are, see the class comment
+			current = null;
+			results.failures[index] = e;
+		}
+	}
+
+	/** The buffer, grown to hold at least {@code length} bytes, keeping what it holds. */
+	private byte[] buffer(final int length) {
+		if (buffer == null) {
+			buffer = new byte[Math.max(length, 64 * 1024)];
+		} else if (buffer.length < length) {
+			buffer = Arrays.copyOf(buffer, Math.min(MAX_APPEND_BLOCK_SIZE, Math.max(length, buffer.length * 2)));
+		}
+		return buffer;
+	}
+
+	private long appendBlock(final CloudAppendBlob blob, final byte[] block, final int length) throws StorageException, IOException {
+		return limiter.execute(new AdaptiveRequestLimiter.Request<Long>() {
+			@Override
+			public Long send() throws StorageException, IOException {
+				return blob.appendBlock(new ByteArrayInputStream(block, 0, length), length, atEnd(), options, null);
+			}
+		});
+	}
+
+	private CloudAppendBlob blobFor(final long length) throws URISyntaxException, StorageException, IOException {
+		final long now = System.currentTimeMillis();
+		if (current == null || now - createdMillis >= rollMillis
+				|| (currentSize > 0 && currentSize + length > rollSize)
+				|| currentBlocks + (length + MAX_APPEND_BLOCK_SIZE - 1) / MAX_APPEND_BLOCK_SIZE > Constants.MAX_BLOCK_NUMBER) {
+			roll(now);
+		}
+		return current;
+	}
+
+	private void roll(long now) throws URISyntaxException, StorageException, IOException {
+		current = null;
+		for (;; now++) {
+			final CloudAppendBlob blob = container.getAppendBlobReference(baseName + "." + now);
+			try {
+				// never replace a blob another appender, or another node, started in the same millisecond
+				limiter.execute(new AdaptiveRequestLimiter.Request<Void>() {
+					@Override
+					public Void send() throws StorageException {
+						blob.createOrReplace(AccessCondition.generateIfNotExistsCondition(), options, null);
+						return null;
+					}
+				});
+			} catch (StorageException e) {
+				if (e.getHttpStatusCode() == 409 || e.getHttpStatusCode() == 412) {
+					continue;
+				}
+				throw e;
+			}
+			current = blob;
+			currentSize = 0;
+			currentBlocks = 0;
+			createdMillis = System.currentTimeMillis();
+			return;
+		}
+	}
+
+	/** Makes a retried append fail rather than write the same block twice. */
+	private AccessCondition atEnd() {
+		final AccessCondition condition = new AccessCondition();
+		condition.setIfAppendPositionEqual(currentSize);
+		return condition;
+	}
+
+	private void appended(final long length, final int blocks) {
+		currentSize += length;
+		currentBlocks += blocks;
+	}
+
+}
@@ -0,0 +1,334 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps fetched blobs on local disk, least recently used first out once the
+ * total passes the maximum size. Each entry is the content as it was written
+ * to the flowfile plus the attributes it got, the ETag among them, so a
+ * cached blob can be revalidated with If-None-Match and served without
+ * downloading it. Every version gets files of its own, an entry being read
+ * is never overwritten; an evicted entry that is still being read is
+ * deleted by its last reader. Entries survive restarts.
+ */
+class BlobDiskCache {
+
+	static final String ETAG = "azure.etag";
+	static final String BLOB_TYPE = "azure.blobtype";
+	static final String DECOMPRESSED = "azure.decompressed";
+
+	private static final String CONTENT_SUFFIX = ".blob";
+	private static final String ATTRIBUTES_SUFFIX = ".properties";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File directory;
+	private final long maxSize;
+	private final AtomicLong versions = new AtomicLong(System.currentTimeMillis());
+	// access ordered, the first entry is the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long size;
+
+	BlobDiskCache(final File directory, final long maxSize) throws IOException {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create cache directory " + directory);
+		}
+		load();
+	}
+
+	/** One cached version of a blob, pinned while it is being read. */
+	static final class Entry {
+		private final String key;
+		private final File content;
+		private final File attributesFile;
+		private final Map<String, String> attributes;
+		private final long length;
+		private int readers;
+		private boolean evicted;
+
+		Entry(String key, File content, File attributesFile, Map<String, String> attributes) {
+			this.key = key;
+			this.content = content;
+			this.attributesFile = attributesFile;
+			this.attributes = Collections.unmodifiableMap(attributes);
+			this.length = content.length();
+		}
+
+		File getContent() {
+			return content;
+		}
+
+		Map<String, String> getAttributes() {
+			return attributes;
+		}
+
+		String getEtag() {
+			return attributes.get(ETAG);
+		}
+
+		String getBlobType() {
+			return attributes.get(BLOB_TYPE);
+		}
+
+		/** Whether the content was decompressed, rather than kept as stored in the blob. */
+		boolean isDecompressed() {
+			return "true".equals(attributes.get(DECOMPRESSED));
+		}
+	}
+
+	long getMaxSize() {
+		return maxSize;
+	}
+
+	/** The cached version of the blob at {@code uri}, pinned until {@link #release}, or null. */
+	synchronized Entry acquire(final String uri) {
+		final Entry entry = entries.get(hash(uri));
+		if (entry != null) {
+			entry.readers++;
+		}
+		return entry;
+	}
+
+	synchronized void release(final Entry entry) {
+		if (--entry.readers == 0 && entry.evicted) {
+			delete(entry);
+		}
+	}
+
+	/** Forgets the cached version of the blob at {@code uri}, for a blob that no longer exists. */
+	synchronized void remove(final String uri) {
+		final Entry entry = entries.remove(hash(uri));
+		if (entry != null) {
+			evict(entry);
+		}
+	}
+
+	/**
+	 * Starts caching a new version of the blob at {@code uri}. What is written
+	 * to the returned stream becomes the entry's content once it is
+	 * {@link Writer#commit committed}.
+	 */
+	Writer write(final String uri) throws IOException {
+		final String key = hash(uri);
+		final String base = key + "-" + versions.incrementAndGet();
+		final File temp = new File(directory, base + CONTENT_SUFFIX + TEMP_SUFFIX);
+		return new Writer(key, base, temp, new FileOutputStream(temp));
+	}
+
+	/**
+	 * Stream to a new version's content, which only becomes visible once
+	 * committed. Content that grows past the maximum size is dropped as soon
+	 * as it does and never committed.
+	 */
+	final class Writer extends FilterOutputStream {
+		private final String key;
+		private final String base;
+		private final File temp;
+		private long written;
+		private boolean overflowed;
+		private boolean closed;
+
+		private Writer(String key, String base, File temp, OutputStream out) {
+			super(out);
+			this.key = key;
+			this.base = base;
+			this.temp = temp;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (fits(1)) {
+				out.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (fits(len)) {
+				out.write(b, off, len);
+			}
+		}
+
+		private boolean fits(final int len) {
+			if (overflowed) {
+				return false;
+			}
+			written += len;
+			if (written <= maxSize) {
+				return true;
+			}
+			overflowed = true;
+			abort();
+			return false;
+		}
+
+		/** A stream that writes to {@code target} and to this entry alike. */
+		OutputStream tee(final OutputStream target) {
+			return new FilterOutputStream(target) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					Writer.this.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					Writer.this.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					// both streams belong to someone else
+					flush();
+				}
+			};
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				super.close();
+			}
+		}
+
+		/** Adds the written content as the blob's current version, replacing any older one. */
+		void commit(final Map<String, String> attributes) throws IOException {
+			close();
+			if (overflowed) {
+				return;
+			}
+			final File content = new File(directory, base + CONTENT_SUFFIX);
+			final File attributesFile = new File(directory, base + ATTRIBUTES_SUFFIX);
+			final File attributesTemp = new File(directory, base + ATTRIBUTES_SUFFIX + TEMP_SUFFIX);
+			final Properties properties = new Properties();
+			properties.putAll(attributes);
+			try (final OutputStream out = new FileOutputStream(attributesTemp)) {
+				properties.store(out, null);
+			}
+			Files.move(temp.toPath(), content.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			Files.move(attributesTemp.toPath(), attributesFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			add(new Entry(key, content, attributesFile, new HashMap<String, String>(attributes)));
+		}
+
+		/** Drops what was written, the cache keeps whatever version it had. */
+		void abort() {
+			try {
+				close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			temp.delete();
+		}
+	}
+
+	private synchronized void add(final Entry entry) {
+		final Entry replaced = entries.put(entry.key, entry);
+		if (replaced != null) {
+			evict(replaced);
+		}
+		size += entry.length;
+		final Iterator<Entry> eldest = entries.values().iterator();
+		while (size > maxSize && eldest.hasNext()) {
+			final Entry evicted = eldest.next();
+			eldest.remove();
+			evict(evicted);
+		}
+	}
+
+	private void evict(final Entry entry) {
+		size -= entry.length;
+		entry.evicted = true;
+		if (entry.readers == 0) {
+			delete(entry);
+		}
+	}
+
+	private static void delete(final Entry entry) {
+		entry.content.delete();
+		entry.attributesFile.delete();
+	}
+
+	/** Picks up the entries of an earlier run, oldest first, and cleans up anything half written. */
+	private synchronized void load() throws IOException {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Cannot list cache directory " + directory);
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File file : files) {
+			final String name = file.getName();
+			if (name.endsWith(TEMP_SUFFIX)) {
+				file.delete();
+				continue;
+			}
+			if (!name.endsWith(CONTENT_SUFFIX)) {
+				continue;
+			}
+			final String base = name.substring(0, name.length() - CONTENT_SUFFIX.length());
+			final File attributesFile = new File(directory, base + ATTRIBUTES_SUFFIX);
+			if (!attributesFile.isFile() || base.indexOf('-') < 0) {
+				file.delete();
+				continue;
+			}
+			final Properties properties = new Properties();
+			try (final InputStream in = new FileInputStream(attributesFile)) {
+				properties.load(in);
+			}
+			final Map<String, String> attributes = new HashMap<String, String>();
+			for (String key : properties.stringPropertyNames()) {
+				attributes.put(key, properties.getProperty(key));
+			}
+			add(new Entry(base.substring(0, base.indexOf('-')), file, attributesFile, attributes));
+		}
+		// attribute files whose content is gone
+		for (File file : files) {
+			final String name = file.getName();
+			if (name.endsWith(ATTRIBUTES_SUFFIX)
+					&& !new File(directory, name.substring(0, name.length() - ATTRIBUTES_SUFFIX.length()) + CONTENT_SUFFIX).isFile()) {
+				file.delete();
+			}
+		}
+	}
+
+	private static String hash(final String uri) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-256").digest(uri.getBytes(StandardCharsets.UTF_8));
+			final StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
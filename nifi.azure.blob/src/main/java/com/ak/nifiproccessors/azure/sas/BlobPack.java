@@ -0,0 +1,103 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.ProcessSession;
+
+/**
+ * Lays out many small flowfiles one after another in a single blob. Offsets
+ * are fixed up front, so the pack is streamed straight from the content
+ * repository and each flowfile knows where its bytes are before the upload.
+ */
+class BlobPack {
+
+	static final AllowableValue FORMAT_NONE = new AllowableValue("none", "none",
+			"upload every flowfile as its own blob");
+	static final AllowableValue FORMAT_LENGTH_PREFIXED = new AllowableValue("length-prefixed", "length-prefixed",
+			"each entry is an 8 byte big-endian length followed by the content, suits binary content");
+	static final AllowableValue FORMAT_NEWLINE_DELIMITED = new AllowableValue("newline-delimited", "newline-delimited",
+			"each entry is the content followed by a newline, suits JSON or other single-line records");
+
+	private static final byte[] NEWLINE = { '\n' };
+
+	private final boolean lengthPrefixed;
+	private final List<FlowFile> flowFiles = new ArrayList<FlowFile>();
+	private final List<Long> offsets = new ArrayList<Long>();
+	private long size;
+
+	BlobPack(final String format) {
+		this.lengthPrefixed = FORMAT_LENGTH_PREFIXED.getValue().equals(format);
+	}
+
+	void add(final FlowFile flowFile) {
+		flowFiles.add(flowFile);
+		offsets.add(size + (lengthPrefixed ? 8 : 0));
+		size += flowFile.getSize() + (lengthPrefixed ? 8 : 1);
+	}
+
+	List<FlowFile> getFlowFiles() {
+		return Collections.unmodifiableList(flowFiles);
+	}
+
+	/** Offset of the entry's content in the blob, after any length prefix. */
+	long getOffset(final int index) {
+		return offsets.get(index);
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	/** The pack content, opening each flowfile's content only when the stream reaches it. */
+	InputStream open(final ProcessSession session) {
+		final Iterator<FlowFile> entries = flowFiles.iterator();
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			private FlowFile pending;
+
+			@Override
+			public boolean hasMoreElements() {
+				return pending != null || entries.hasNext();
+			}
+
+			@Override
+			public InputStream nextElement() {
+				if (pending != null) {
+					final FlowFile flowFile = pending;
+					pending = null;
+					return session.read(flowFile);
+				}
+				final FlowFile flowFile = entries.next();
+				if (lengthPrefixed) {
+					pending = flowFile;
+					return new ByteArrayInputStream(ByteBuffer.allocate(8).putLong(flowFile.getSize()).array());
+				}
+				return new SequenceInputStream(session.read(flowFile), new ByteArrayInputStream(NEWLINE));
+			}
+		});
+	}
+
+	/** One tab separated line per entry: index, offset, length, uuid and filename. */
+	byte[] index() {
+		final StringBuilder index = new StringBuilder();
+		for (int i = 0; i < flowFiles.size(); i++) {
+			final FlowFile flowFile = flowFiles.get(i);
+			index.append(i).append('\t').append(offsets.get(i)).append('\t').append(flowFile.getSize()).append('\t')
+					.append(flowFile.getAttribute(CoreAttributes.UUID.key())).append('\t')
+					.append(flowFile.getAttribute(CoreAttributes.FILENAME.key())).append('\n');
+		}
+		return index.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.microsoft.azure.storage.StorageCredentialsSharedAccessSignature;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+
+/**
+ * Least recently used set of container clients, so flowfiles routed to many
+ * accounts and containers do not build a client each. Entries are keyed by a
+ * hash of the SAS rather than the SAS itself; a rotated SAS simply becomes a
+ * new entry and the old one ages out.
+ */
+class ContainerClientCache {
+
+	private final Map<String, CloudBlobContainer> clients;
+
+	ContainerClientCache(final int maxSize) {
+		this.clients = new LinkedHashMap<String, CloudBlobContainer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CloudBlobContainer> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	synchronized CloudBlobContainer get(final String accountName, final String containerName, final String sas, final boolean useHttp)
+			throws URISyntaxException, StorageException {
+		final String uriString = (useHttp ? "http://" : "https://") + accountName + ".blob.core.windows.net/" + containerName;
+		final String key = uriString + "#" + sha256(sas);
+		CloudBlobContainer container = clients.get(key);
+		if (container == null) {
+			container = new CloudBlobContainer(new URI(uriString), new StorageCredentialsSharedAccessSignature(sas));
+			clients.put(key, container);
+		}
+		return container;
+	}
+
+	synchronized int size() {
+		return clients.size();
+	}
+
+	private static String sha256(final String value) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			final StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
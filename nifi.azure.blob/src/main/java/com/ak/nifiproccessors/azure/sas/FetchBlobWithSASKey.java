@@ -1,50 +1,381 @@
-package com.ak.nifiproccessors.azure.sas;
-
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
-import org.apache.nifi.annotation.behavior.InputRequirement;
-import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
-import org.apache.nifi.annotation.documentation.CapabilityDescription;
-import org.apache.nifi.annotation.documentation.Tags;
-import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.processor.ProcessContext;
-import org.apache.nifi.processor.ProcessSession;
-import org.apache.nifi.processor.ProcessorInitializationContext;
-import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.util.StandardValidators;
-
-@Tags({ "azure", "microsoft", "cloud", "storage", "blob", "sas key","fetch" })
-@CapabilityDescription("Fetches a blob from a azure container based on the provided container name and  SAS key")
-@InputRequirement(Requirement.INPUT_REQUIRED)
-public class FetchBlobWithSASKey extends AbstractAzureSASKeyProcessor{
-	
-	 public static final PropertyDescriptor BLOB_NAME = new PropertyDescriptor.Builder().name("Blob Name")
-				.description("The Destination Blob Name").required(true).expressionLanguageSupported(true)
-				.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
-	 
-	 
-	 
-	 @Override
-		protected void init(final ProcessorInitializationContext context) {
-			final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
-			descriptors.add(STORAGE_ACCOUNT_NAME);
-			descriptors.add(CONTAINER_NAME);
-			descriptors.add(SAS_QUERY_STRING);
-			descriptors.add(USE_HTTP);
-			descriptors.add(BLOB_NAME);
-			this.descriptors = Collections.unmodifiableList(descriptors);
-		}
-	    
-	    @Override
-		public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
-			return descriptors;
-		}
-	    
-	@Override
-	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-		
-	}
-
-}
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.BlobType;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+
+@Tags({ "azure", "microsoft", "cloud", "storage", "blob", "sas key","fetch" })
+@CapabilityDescription("Fetches a blob from a azure container based on the provided container name and  SAS key. "
+		+ "The blob is streamed into the flowfile content, blobs larger than the range size are downloaded as byte ranges fetched in parallel. "
+		+ "Part of a blob, such as a file header or the last bytes holding a Parquet footer, can be fetched without downloading the rest")
+@WritesAttributes({
+	@WritesAttribute(attribute = "azure.container", description = "The name of the Azure container"),
+    @WritesAttribute(attribute = "azure.blobname", description = "The name of the Azure blob"),
+    @WritesAttribute(attribute = "azure.primaryUri", description = "Primary location for blob content"),
+    @WritesAttribute(attribute = "azure.etag", description = "Etag for the Azure blob"),
+    @WritesAttribute(attribute = "azure.timestamp", description = "The timestamp in Azure for the blob"),
+    @WritesAttribute(attribute = "azure.length", description = "Length of the blob in bytes"),
+    @WritesAttribute(attribute = "azure.blobtype", description = "Type of the blob, block, append or page"),
+    @WritesAttribute(attribute = "azure.contentencoding", description = "Content-Encoding of the blob, if it has one"),
+    @WritesAttribute(attribute = "azure.decompressed", description = "Set to true when the content was decompressed"),
+    @WritesAttribute(attribute = "azure.range.start", description = "For part of a blob, the offset of its first byte within the blob"),
+    @WritesAttribute(attribute = "azure.range.length", description = "For part of a blob, the number of bytes fetched"),
+    @WritesAttribute(attribute = "azure.cached", description = "With a cache directory, whether the content was read from the cache"),
+    @WritesAttribute(attribute = "azure.metadata.*", description = "One attribute for each metadata entry of the blob"),
+    @WritesAttribute(attribute = "mime.type", description = "Content type of the blob, if it has one")})
+@SupportsBatching
+@InputRequirement(Requirement.INPUT_REQUIRED)
+public class FetchBlobWithSASKey extends AbstractAzureSASKeyProcessor{
+
+	 public static final PropertyDescriptor BLOB_NAME = new PropertyDescriptor.Builder().name("Blob Name")
+				.description("The Source Blob Name").required(true).expressionLanguageSupported(true)
+				.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	 public static final PropertyDescriptor RANGE_SIZE = new PropertyDescriptor.Builder().name("Range Size")
+				.description("Blobs up to this size are downloaded in a single request, larger ones as byte ranges of this size").required(true).defaultValue("4 MB")
+				.addValidator(StandardValidators.createDataSizeBoundsValidator(64 * 1024, 100 * 1024 * 1024)).build();
+
+	 public static final PropertyDescriptor DOWNLOAD_PARALLELISM = new PropertyDescriptor.Builder().name("Download Parallelism")
+				.description("Number of ranges downloaded at the same time, shared by all concurrent tasks. "
+						+ "At most this many ranges are buffered in memory. While the account throttles, fewer ranges are requested at once, "
+						+ "growing back to this number as requests succeed").required(true).defaultValue("4")
+				.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	 public static final PropertyDescriptor RANGE_RETRIES = new PropertyDescriptor.Builder().name("Range Retries")
+				.description("Times a failed range is requested again, after an exponential backoff with jitter, before the whole flowfile fails. "
+						+ "Flowfiles that fail because the account is throttling go back to the queue instead of to failure").required(true).defaultValue("3")
+				.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	 public static final PropertyDescriptor DECOMPRESS = new PropertyDescriptor.Builder().name("Decompress")
+				.description("Decompresses blobs whose Content-Encoding is gzip, such as those written by PutBlobWithSASKey with compression. "
+						+ "They are read as one sequential stream rather than in parallel ranges").required(true)
+				.allowableValues("true", "false").defaultValue("true").build();
+
+	 public static final PropertyDescriptor CACHE_DIRECTORY = new PropertyDescriptor.Builder().name("Cache Directory")
+				.description("Local directory to keep fetched blobs in. A cached blob is revalidated with its ETag on every fetch and, "
+						+ "when unchanged, read from disk instead of downloaded. Each processor needs a directory of its own. "
+						+ "When not set nothing is cached").required(false)
+				.addValidator(StandardValidators.createDirectoryExistsValidator(false, true)).build();
+
+	 public static final PropertyDescriptor CACHE_MAX_SIZE = new PropertyDescriptor.Builder().name("Cache Max Size")
+				.description("The least recently fetched blobs are removed once the cache holds more than this, larger blobs are not cached")
+				.required(true).defaultValue("1 GB").addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+
+	 public static final PropertyDescriptor RANGE_START = new PropertyDescriptor.Builder().name("Range Start")
+				.description("Offset in bytes of the first byte to fetch. When this, Range Length or Tail Bytes is set only that part of the blob is "
+						+ "downloaded, as it is stored, so it is neither decompressed nor cached. A start past the end of the blob gives an empty flowfile")
+				.required(false).expressionLanguageSupported(true)
+				.addValidator(StandardValidators.createLongValidator(0, Long.MAX_VALUE, true)).build();
+
+	 public static final PropertyDescriptor RANGE_LENGTH = new PropertyDescriptor.Builder().name("Range Length")
+				.description("Number of bytes to fetch from Range Start on, or up to the end of the blob when not set. "
+						+ "A range running past the end of the blob is cut short").required(false).expressionLanguageSupported(true)
+				.addValidator(StandardValidators.createLongValidator(1, Long.MAX_VALUE, true)).build();
+
+	 public static final PropertyDescriptor TAIL_BYTES = new PropertyDescriptor.Builder().name("Tail Bytes")
+				.description("Fetches only the last this many bytes of the blob, or all of it when it is shorter. Cannot be combined with Range Start or Range Length")
+				.required(false).expressionLanguageSupported(true)
+				.addValidator(StandardValidators.createLongValidator(1, Long.MAX_VALUE, true)).build();
+
+	 private volatile ParallelRangeDownloader downloader;
+	 private volatile BlobDiskCache cache;
+
+	 @Override
+		protected void init(final ProcessorInitializationContext context) {
+			final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+			descriptors.add(STORAGE_ACCOUNT_NAME);
+			descriptors.add(CONTAINER_NAME);
+			descriptors.add(SAS_QUERY_STRING);
+			descriptors.add(USE_HTTP);
+			descriptors.add(CLIENT_CACHE_SIZE);
+			descriptors.add(BLOB_NAME);
+			descriptors.add(RANGE_SIZE);
+			descriptors.add(DOWNLOAD_PARALLELISM);
+			descriptors.add(RANGE_RETRIES);
+			descriptors.add(RANGE_START);
+			descriptors.add(RANGE_LENGTH);
+			descriptors.add(TAIL_BYTES);
+			descriptors.add(DECOMPRESS);
+			descriptors.add(CACHE_DIRECTORY);
+			descriptors.add(CACHE_MAX_SIZE);
+			this.descriptors = Collections.unmodifiableList(descriptors);
+		}
+
+	    @Override
+		public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+			return descriptors;
+		}
+
+	    @OnScheduled
+	    public void startDownloader(final ProcessContext context) {
+	    	downloader = new ParallelRangeDownloader(context.getProperty(RANGE_SIZE).asDataSize(DataUnit.B).intValue(),
+	    			context.getProperty(DOWNLOAD_PARALLELISM).asInteger(), context.getProperty(RANGE_RETRIES).asInteger());
+	    	if (context.getProperty(CACHE_DIRECTORY).isSet()) {
+	    		try {
+	    			cache = new BlobDiskCache(new File(context.getProperty(CACHE_DIRECTORY).getValue()),
+	    					context.getProperty(CACHE_MAX_SIZE).asDataSize(DataUnit.B).longValue());
+	    		} catch (IOException e) {
+	    			throw new ProcessException("Cannot open the blob cache", e);
+	    		}
+	    	}
+	    }
+
+	    @Override
+	    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+	        final List<ValidationResult> results = new ArrayList<ValidationResult>();
+	        if (validationContext.getProperty(TAIL_BYTES).isSet()
+	                && (validationContext.getProperty(RANGE_START).isSet() || validationContext.getProperty(RANGE_LENGTH).isSet())) {
+	            results.add(new ValidationResult.Builder().subject(TAIL_BYTES.getName()).valid(false)
+	                    .explanation("the tail of a blob is a range of its own, Range Start and Range Length must not be set with it").build());
+	        }
+	        return results;
+	    }
+
+	    @OnStopped
+	    public void stopDownloader() {
+	    	if (downloader != null) {
+	    		downloader.shutdown();
+	    		downloader = null;
+	    	}
+	    	cache = null;
+	    }
+
+	@Override
+	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+		FlowFile flowFile = session.get();
+		if (flowFile == null) {
+			return;
+		}
+
+		final long startNanos = System.nanoTime();
+		final String blobName = getProperty(context, BLOB_NAME, flowFile);
+		final boolean partial = context.getProperty(RANGE_START).isSet() || context.getProperty(RANGE_LENGTH).isSet()
+				|| context.getProperty(TAIL_BYTES).isSet();
+		// the cache holds whole blobs only
+		final BlobDiskCache cache = partial ? null : this.cache;
+		BlobDiskCache.Entry cached = null;
+		BlobDiskCache.Writer cacheWriter = null;
+		try {
+			final CloudBlobContainer container = getContainer(context, flowFile);
+			final String uri = container.getBlockBlobReference(blobName).getUri().toString();
+			if (cache != null && (cached = cache.acquire(uri)) != null && isSameForm(context, cached)
+					&& isUnchanged(cache, cached, container, blobName, uri)) {
+				flowFile = session.importFrom(cached.getContent().toPath(), true, flowFile);
+				flowFile = session.putAllAttributes(flowFile, cached.getAttributes());
+				flowFile = session.putAttribute(flowFile, "azure.cached", "true");
+				final long transferMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+				session.getProvenanceReporter().fetch(flowFile, uri, transferMillis);
+				session.transfer(flowFile, REL_SUCCESS);
+				session.commit();
+				return;
+			}
+			// fetches the properties too, so the length and ETag are known before the first byte
+			final CloudBlob source = container.getBlobReferenceFromServer(blobName);
+			final long length = source.getProperties().getLength();
+			final long offset;
+			if (context.getProperty(TAIL_BYTES).isSet()) {
+				offset = Math.max(0, length - getBytes(context, TAIL_BYTES, flowFile));
+			} else {
+				offset = context.getProperty(RANGE_START).isSet() ? Math.min(length, getBytes(context, RANGE_START, flowFile)) : 0;
+			}
+			final long count = context.getProperty(RANGE_LENGTH).isSet()
+					? Math.min(length - offset, getBytes(context, RANGE_LENGTH, flowFile)) : length - offset;
+			final ParallelRangeDownloader downloader = this.downloader;
+			final boolean decompress = !partial && context.getProperty(DECOMPRESS).asBoolean()
+					&& ParallelBlockUploader.GZIP.equalsIgnoreCase(source.getProperties().getContentEncoding());
+			// decompressed content can outgrow the cache even when the blob fits, the writer drops it once it does
+			if (cache != null && (decompress || length <= cache.getMaxSize())) {
+				cacheWriter = cache.write(uri);
+			}
+			final BlobDiskCache.Writer copy = cacheWriter;
+			flowFile = session.write(flowFile, new OutputStreamCallback() {
+				@Override
+				public void process(OutputStream content) throws IOException {
+					final OutputStream out = copy == null ? content : copy.tee(content);
+					try {
+						if (decompress) {
+							final AccessCondition sameVersion = AccessCondition.generateIfMatchCondition(source.getProperties().getEtag());
+							try (final InputStream in = new GZIPInputStream(source.openInputStream(sameVersion, null, null), 64 * 1024)) {
+								StreamUtils.copy(in, out);
+							}
+						} else if (count > downloader.getRangeSize()) {
+							downloader.download(source, offset, count, out);
+						} else if (!partial) {
+							source.download(out);
+						} else if (count > 0) {
+							source.downloadRange(offset, Long.valueOf(count), out);
+						}
+					} catch (StorageException e) {
+						throw new IOException(e);
+					}
+					out.flush();
+				}
+			});
+			final Map<String, String> attributes = getAttributes(context, source, blobName);
+			if (decompress) {
+				attributes.put("azure.decompressed", "true");
+			}
+			if (partial) {
+				attributes.put("azure.range.start", String.valueOf(offset));
+				attributes.put("azure.range.length", String.valueOf(count));
+			}
+			if (cacheWriter != null) {
+				try {
+					cacheWriter.commit(attributes);
+				} catch (IOException e) {
+					getLogger().warn("Failed to cache Azure blob {}", new Object[] { blobName }, e);
+				}
+			}
+			if (cache != null) {
+				attributes.put("azure.cached", "false");
+			}
+			flowFile = session.putAllAttributes(flowFile, attributes);
+			final long transferMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+			session.getProvenanceReporter().fetch(flowFile, source.getSnapshotQualifiedUri().toString(), transferMillis);
+			session.transfer(flowFile, REL_SUCCESS);
+		} catch (Exception e) {
+			if (requeueIfThrottled(context, session, flowFile, e)) {
+				session.commit();
+				return;
+			}
+			getLogger().error("Failed to fetch Azure blob {}", new Object[] { blobName }, e);
+			flowFile = session.penalize(flowFile);
+			session.transfer(flowFile, REL_FAILURE);
+		} finally {
+			if (cached != null) {
+				cache.release(cached);
+			}
+			if (cacheWriter != null) {
+				// nothing left to drop once committed
+				cacheWriter.abort();
+			}
+		}
+		session.commit();
+	}
+
+	/**
+	 * Whether the cached content is in the form the current settings would
+	 * fetch, decompressed or as stored. The blob's encoding is the cached
+	 * version's, which is revalidated next.
+	 */
+	private static boolean isSameForm(ProcessContext context, BlobDiskCache.Entry cached) {
+		final boolean decompress = context.getProperty(DECOMPRESS).asBoolean()
+				&& ParallelBlockUploader.GZIP.equalsIgnoreCase(cached.getAttributes().get("azure.contentencoding"));
+		return decompress == cached.isDecompressed();
+	}
+
+	/**
+	 * Whether the blob still has the cached ETag. downloadAttributes takes an
+	 * AccessCondition, but this client version only applies its lease to a
+	 * properties request and drops If-None-Match, so the first byte is asked
+	 * for instead, only if the ETag differs; an unchanged blob answers 304
+	 * without content.
+	 */
+	private static boolean isUnchanged(BlobDiskCache cache, BlobDiskCache.Entry cached, CloudBlobContainer container, String blobName, String uri)
+			throws URISyntaxException, StorageException {
+		final CloudBlob reference;
+		switch (BlobType.valueOf(cached.getBlobType())) {
+		case APPEND_BLOB:
+			reference = container.getAppendBlobReference(blobName);
+			break;
+		case PAGE_BLOB:
+			reference = container.getPageBlobReference(blobName);
+			break;
+		default:
+			reference = container.getBlockBlobReference(blobName);
+		}
+		try {
+			reference.downloadRangeToByteArray(0, 1L, new byte[1], 0, AccessCondition.generateIfNoneMatchCondition(cached.getEtag()), null, null);
+			return false;
+		} catch (StorageException e) {
+			if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return true;
+			}
+			if (AdaptiveRequestLimiter.isThrottled(e)) {
+				throw e;
+			}
+			if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+				cache.remove(uri);
+			}
+			// an empty blob has no first byte, the full fetch sorts out this and anything else
+			return false;
+		}
+	}
+
+	private long getBytes(ProcessContext context, PropertyDescriptor descriptor, FlowFile flowFile) {
+		final String value = getProperty(context, descriptor, flowFile);
+		try {
+			final long bytes = Long.parseLong(value);
+			if (bytes >= 0) {
+				return bytes;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new ProcessException(descriptor.getName() + " must be a non-negative number of bytes, not " + value);
+	}
+
+	private Map<String, String> getAttributes(ProcessContext context, CloudBlob source, String blobName) throws URISyntaxException, StorageException {
+		final Map<String, String> attributes = new HashMap<String, String>();
+		final BlobProperties properties = source.getProperties();
+		attributes.put("azure.container", source.getContainer().getName());
+		attributes.put("azure.blobname", blobName);
+		attributes.put("azure.primaryUri", source.getSnapshotQualifiedUri().toString());
+		attributes.put("azure.etag", properties.getEtag());
+		attributes.put("azure.timestamp", String.valueOf(properties.getLastModified()));
+		attributes.put("azure.length", String.valueOf(properties.getLength()));
+		attributes.put("azure.blobtype", String.valueOf(properties.getBlobType()));
+		if (properties.getContentEncoding() != null) {
+			attributes.put("azure.contentencoding", properties.getContentEncoding());
+		}
+		if (properties.getContentType() != null) {
+			attributes.put(CoreAttributes.MIME_TYPE.key(), properties.getContentType());
+		}
+		for (Map.Entry<String, String> entry : source.getMetadata().entrySet()) {
+			attributes.put("azure.metadata." + entry.getKey(), entry.getValue());
+		}
+		return attributes;
+	}
+
+}
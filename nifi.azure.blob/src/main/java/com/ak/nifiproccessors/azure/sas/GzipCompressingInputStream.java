@@ -0,0 +1,61 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Reads the gzip encoding of another stream, so content can be compressed
+ * on its way from the content repository to an upload without a pipe or a
+ * second thread. The header carries no timestamp, equal content always
+ * gives equal bytes, which keeps Content-MD5 comparisons meaningful.
+ */
+class GzipCompressingInputStream extends SequenceInputStream {
+
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	GzipCompressingInputStream(final InputStream in) {
+		super(parts(new CheckedInputStream(in, new CRC32()), new Deflater(Deflater.DEFAULT_COMPRESSION, true)));
+	}
+
+	private static Enumeration<InputStream> parts(final CheckedInputStream in, final Deflater deflater) {
+		return new Enumeration<InputStream>() {
+			private int part;
+
+			@Override
+			public boolean hasMoreElements() {
+				return part < 3;
+			}
+
+			@Override
+			public InputStream nextElement() {
+				switch (part++) {
+				case 0:
+					return new ByteArrayInputStream(HEADER);
+				case 1:
+					return new DeflaterInputStream(in, deflater) {
+						@Override
+						public void close() throws IOException {
+							// the trailer still needs the deflater's counters
+						}
+					};
+				default:
+					// only asked for once the deflated data has been read to the end
+					final long crc = in.getChecksum().getValue();
+					final long size = deflater.getBytesRead();
+					deflater.end();
+					return new ByteArrayInputStream(new byte[] {
+							(byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+							(byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24) });
+				}
+			}
+		};
+	}
+
+}
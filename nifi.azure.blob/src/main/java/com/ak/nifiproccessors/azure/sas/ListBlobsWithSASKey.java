@@ -0,0 +1,356 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestResult;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import com.microsoft.azure.storage.core.Utility;
+
+@Tags({ "azure", "microsoft", "cloud", "storage", "blob", "sas key","list" })
+@CapabilityDescription("Lists the blobs of an azure container with a SAS key that has list permission, one flowfile per blob, to drive FetchBlobWithSASKey. "
+		+ "Only blobs modified since the last complete listing are emitted. A listing can span several runs, the prefix partitions are listed in parallel "
+		+ "and each run emits what it found so far. Should run on the primary node only")
+@WritesAttributes({
+	@WritesAttribute(attribute = "azure.container", description = "The name of the Azure container"),
+    @WritesAttribute(attribute = "azure.blobname", description = "The name of the Azure blob"),
+    @WritesAttribute(attribute = "azure.primaryUri", description = "Primary location for blob content"),
+    @WritesAttribute(attribute = "azure.etag", description = "Etag for the Azure blob"),
+    @WritesAttribute(attribute = "azure.timestamp", description = "The timestamp in Azure for the blob"),
+    @WritesAttribute(attribute = "azure.length", description = "Length of the blob in bytes"),
+    @WritesAttribute(attribute = "azure.blobtype", description = "Type of the blob, block, append or page"),
+    @WritesAttribute(attribute = "filename", description = "The name of the Azure blob"),
+    @WritesAttribute(attribute = "mime.type", description = "Content type of the blob, if it has one")})
+@Stateful(scopes = Scope.CLUSTER, description = "The last modified time up to which the last complete listing emitted every blob, "
+		+ "and the continuation marker of each prefix partition while a listing is in progress")
+@SeeAlso({ FetchBlobWithSASKey.class })
+@TriggerSerially
+@InputRequirement(Requirement.INPUT_FORBIDDEN)
+public class ListBlobsWithSASKey extends AbstractAzureSASKeyProcessor {
+
+	static final String WATERMARK = "watermark";
+	static final String PASS_NEWEST = "pass.newest";
+	static final String PASS_START = "pass.start";
+	static final String PARTITIONS = "partitions";
+	static final String MARKER_PREFIX = "marker.";
+	static final String DONE_PREFIX = "done.";
+
+	private static final Set<Relationship> RELATIONSHIPS = Collections.singleton(REL_SUCCESS);
+
+	public static final PropertyDescriptor PREFIX = new PropertyDescriptor.Builder().name("Prefix")
+			.description("Only blobs whose name starts with this are listed").required(false).expressionLanguageSupported(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor PREFIX_PARTITIONS = new PropertyDescriptor.Builder().name("Prefix Partitions")
+			.description("Comma separated name prefixes, after the Prefix, that split the container into ranges listed in parallel, "
+					+ "for example 0,1,2,3,4,5,6,7,8,9,a,b,c,d,e,f for hex named blobs. They should cover every name to be listed. "
+					+ "When not set the container is listed as one range").required(false)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor LISTING_PARALLELISM = new PropertyDescriptor.Builder().name("Listing Parallelism")
+			.description("Number of partitions listed at the same time").required(true).defaultValue("4")
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor PAGE_SIZE = new PropertyDescriptor.Builder().name("Listing Page Size")
+			.description("Blobs per listing request, at most 5000").required(true).defaultValue("5000")
+			.addValidator(StandardValidators.createLongValidator(1, 5000, true)).build();
+
+	public static final PropertyDescriptor PAGES_PER_RUN = new PropertyDescriptor.Builder().name("Pages Per Run")
+			.description("Listing requests made per partition in one run. The blobs found are emitted and committed before the listing goes on "
+					+ "in the next run").required(true).defaultValue("10")
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	private volatile ExecutorService executor;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(STORAGE_ACCOUNT_NAME);
+		descriptors.add(CONTAINER_NAME);
+		descriptors.add(SAS_QUERY_STRING);
+		descriptors.add(USE_HTTP);
+		descriptors.add(CLIENT_CACHE_SIZE);
+		descriptors.add(PREFIX);
+		descriptors.add(PREFIX_PARTITIONS);
+		descriptors.add(LISTING_PARALLELISM);
+		descriptors.add(PAGE_SIZE);
+		descriptors.add(PAGES_PER_RUN);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return RELATIONSHIPS;
+	}
+
+	@OnScheduled
+	public void startListing(final ProcessContext context) {
+		executor = Executors.newFixedThreadPool(context.getProperty(LISTING_PARALLELISM).asInteger());
+	}
+
+	@OnStopped
+	public void stopListing() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	@Override
+	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+		final long startNanos = System.nanoTime();
+		final StateMap stateMap;
+		try {
+			stateMap = context.getStateManager().getState(Scope.CLUSTER);
+		} catch (IOException e) {
+			getLogger().error("Failed to read listing state, will try again", e);
+			context.yield();
+			return;
+		}
+
+		final String prefix = context.getProperty(PREFIX).isSet() ? getProperty(context, PREFIX) : "";
+		final List<String> partitions = new ArrayList<String>();
+		if (context.getProperty(PREFIX_PARTITIONS).isSet()) {
+			for (String partition : getProperty(context, PREFIX_PARTITIONS).split(",")) {
+				partitions.add(prefix + partition.trim());
+			}
+		} else {
+			partitions.add(prefix);
+		}
+
+		final Map<String, String> state = new HashMap<String, String>(stateMap.toMap());
+		final String partitionKey = partitions.toString();
+		if (!partitionKey.equals(state.get(PARTITIONS))) {
+			// a different partitioning cannot resume the markers of the old one, keep only the watermark
+			final String watermark = state.get(WATERMARK);
+			state.clear();
+			if (watermark != null) {
+				state.put(WATERMARK, watermark);
+			}
+			state.put(PARTITIONS, partitionKey);
+		}
+		final long watermark = state.containsKey(WATERMARK) ? Long.parseLong(state.get(WATERMARK)) : -1;
+		long passNewest = state.containsKey(PASS_NEWEST) ? Long.parseLong(state.get(PASS_NEWEST)) : watermark;
+
+		final CloudBlobContainer container;
+		try {
+			container = getContainer(context, null);
+		} catch (Exception e) {
+			getLogger().error("Failed to create the container client", e);
+			context.yield();
+			return;
+		}
+		final int pageSize = context.getProperty(PAGE_SIZE).asInteger();
+		final int pagesPerRun = context.getProperty(PAGES_PER_RUN).asInteger();
+		// by partition index, only the partitions not yet done in this pass
+		final Map<Integer, Future<PartitionListing>> listings = new LinkedHashMap<Integer, Future<PartitionListing>>();
+		for (int i = 0; i < partitions.size(); i++) {
+			if (!state.containsKey(DONE_PREFIX + i)) {
+				listings.put(i, executor.submit(new PartitionListing(i, container, partitions.get(i), state.get(MARKER_PREFIX + i), pageSize, pagesPerRun)));
+			}
+		}
+
+		int listed = 0;
+		long runStart = Long.MAX_VALUE;
+		for (Map.Entry<Integer, Future<PartitionListing>> entry : listings.entrySet()) {
+			final PartitionListing listing;
+			try {
+				listing = entry.getValue().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				session.rollback();
+				return;
+			} catch (ExecutionException e) {
+				// the other partitions keep their progress, this one retries from its last marker
+				getLogger().error("Failed to list partition {}, will try again", new Object[] { partitions.get(entry.getKey()) }, e.getCause());
+				continue;
+			}
+			runStart = Math.min(runStart, listing.serverStart);
+			for (CloudBlob blob : listing.blobs) {
+				final long lastModified = blob.getProperties().getLastModified().getTime();
+				if (lastModified <= watermark) {
+					continue;
+				}
+				passNewest = Math.max(passNewest, lastModified);
+				FlowFile flowFile = session.create();
+				flowFile = session.putAllAttributes(flowFile, getAttributes(container, blob));
+				session.getProvenanceReporter().receive(flowFile, blob.getUri().toString(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+				session.transfer(flowFile, REL_SUCCESS);
+				listed++;
+			}
+			if (listing.marker == null) {
+				state.remove(MARKER_PREFIX + listing.index);
+				state.put(DONE_PREFIX + listing.index, "true");
+			} else {
+				state.put(MARKER_PREFIX + listing.index, listing.marker);
+			}
+		}
+
+		if (!state.containsKey(PASS_START) && runStart != Long.MAX_VALUE) {
+			state.put(PASS_START, String.valueOf(runStart));
+		}
+		boolean complete = true;
+		for (int i = 0; i < partitions.size(); i++) {
+			complete &= state.containsKey(DONE_PREFIX + i);
+		}
+		if (complete) {
+			// only a complete pass moves the watermark, and never up to the second the pass started in: a blob
+			// written during the pass into a range already listed is picked up by the next pass. Both times are
+			// the service's, last modified times have whole seconds
+			final long passStart = state.containsKey(PASS_START) ? Long.parseLong(state.get(PASS_START)) : Long.MAX_VALUE;
+			state.clear();
+			state.put(PARTITIONS, partitionKey);
+			if (passNewest >= 0) {
+				state.put(WATERMARK, String.valueOf(Math.min(passNewest, passStart / 1000 * 1000 - 1)));
+			}
+		} else if (passNewest >= 0) {
+			state.put(PASS_NEWEST, String.valueOf(passNewest));
+		}
+
+		// emitted flowfiles are committed before the state moves on, a failure in between lists them again
+		session.commit();
+		try {
+			context.getStateManager().setState(state, Scope.CLUSTER);
+		} catch (IOException e) {
+			getLogger().error("Failed to save listing state, blobs listed in this run may be listed again", e);
+		}
+		if (listed == 0) {
+			context.yield();
+		}
+	}
+
+	private Map<String, String> getAttributes(CloudBlobContainer container, CloudBlob blob) {
+		final Map<String, String> attributes = new HashMap<String, String>();
+		final BlobProperties properties = blob.getProperties();
+		attributes.put("azure.container", container.getName());
+		attributes.put("azure.blobname", blob.getName());
+		attributes.put("azure.primaryUri", blob.getUri().toString());
+		attributes.put("azure.etag", properties.getEtag());
+		attributes.put("azure.timestamp", String.valueOf(properties.getLastModified()));
+		attributes.put("azure.length", String.valueOf(properties.getLength()));
+		attributes.put("azure.blobtype", String.valueOf(properties.getBlobType()));
+		attributes.put(CoreAttributes.FILENAME.key(), blob.getName());
+		if (properties.getContentType() != null) {
+			attributes.put(CoreAttributes.MIME_TYPE.key(), properties.getContentType());
+		}
+		return attributes;
+	}
+
+	/** Lists up to a number of pages of one partition, starting from its saved marker. */
+	private static final class PartitionListing implements Callable<PartitionListing> {
+		private final int index;
+		private final CloudBlobContainer container;
+		private final String prefix;
+		private final int pageSize;
+		private final int pages;
+		private final List<CloudBlob> blobs = new ArrayList<CloudBlob>();
+		private String marker;
+		// the service's time when it started on the first page, Long.MAX_VALUE if it did not say
+		private long serverStart = Long.MAX_VALUE;
+
+		PartitionListing(int index, CloudBlobContainer container, String prefix, String marker, int pageSize, int pages) {
+			this.index = index;
+			this.container = container;
+			this.prefix = prefix;
+			this.marker = marker;
+			this.pageSize = pageSize;
+			this.pages = pages;
+		}
+
+		@Override
+		public PartitionListing call() throws Exception {
+			for (int page = 0; page < pages; page++) {
+				ResultContinuation continuation = null;
+				if (marker != null) {
+					continuation = new ResultContinuation();
+					continuation.setContinuationType(ResultContinuationType.BLOB);
+					continuation.setNextMarker(marker);
+				}
+				final OperationContext operation = new OperationContext();
+				final ResultSegment<ListBlobItem> segment = container.listBlobsSegmented(prefix, true,
+						EnumSet.noneOf(BlobListingDetails.class), pageSize, continuation, null, operation);
+				if (page == 0) {
+					serverStart = getServerStart(operation.getLastResult());
+				}
+				for (ListBlobItem item : segment.getResults()) {
+					if (item instanceof CloudBlob) {
+						blobs.add((CloudBlob) item);
+					}
+				}
+				marker = segment.getHasMoreResults() ? segment.getContinuationToken().getNextMarker() : null;
+				if (marker == null) {
+					break;
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * The Date of the response, less the time the request took since the
+		 * listing may have been taken before the response was dated. Only the
+		 * duration comes from the local clock.
+		 */
+		private static long getServerStart(final RequestResult result) {
+			if (result == null || result.getRequestDate() == null) {
+				return Long.MAX_VALUE;
+			}
+			try {
+				final long duration = result.getStopDate().getTime() - result.getStartDate().getTime();
+				return Utility.parseRFC1123DateFromStringInGMT(result.getRequestDate()).getTime() - Math.max(0, duration);
+			} catch (ParseException e) {
+				return Long.MAX_VALUE;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,333 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.stream.io.StreamUtils;
+
+import com.microsoft.azure.storage.Constants;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.core.Base64;
+
+/**
+ * Uploads a stream to a block blob as fixed size blocks that are staged
+ * concurrently and then committed with one block list. Block buffers come from
+ * a pool shared by every upload, small ones included, so no more than
+ * {@code parallelism} blocks are held in memory however many FlowFiles are
+ * uploading at once. Every request
+ * goes through one {@link AdaptiveRequestLimiter}, so fewer of them are in
+ * flight while the account is throttling.
+ */
+class ParallelBlockUploader {
+
+	private final int blockSize;
+	private final int parallelism;
+	private final AdaptiveRequestLimiter limiter;
+	private final ExecutorService executor;
+	private final BlockingQueue<byte[]> buffers;
+	private final AtomicInteger allocated = new AtomicInteger();
+	private final BlobRequestOptions blockOptions = new BlobRequestOptions();
+	private final BlobRequestOptions singleOptions = new BlobRequestOptions();
+
+	ParallelBlockUploader(final int blockSize, final int parallelism, final int maxRetries, final boolean verifyContent) {
+		this.blockSize = blockSize;
+		this.parallelism = parallelism;
+		this.limiter = new AdaptiveRequestLimiter(parallelism, maxRetries);
+		this.buffers = new ArrayBlockingQueue<byte[]>(parallelism);
+		this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "azure-block-upload-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// failed requests are retried by the limiter, which also backs off the other requests, rather than by the client
+		blockOptions.setRetryPolicyFactory(new RetryNoRetry());
+		singleOptions.setRetryPolicyFactory(new RetryNoRetry());
+		// each request carries the MD5 of its body, which the service checks before storing it
+		blockOptions.setUseTransactionalContentMD5(verifyContent);
+		singleOptions.setUseTransactionalContentMD5(verifyContent);
+	}
+
+	static final String GZIP = "gzip";
+
+	int getBlockSize() {
+		return blockSize;
+	}
+
+	AdaptiveRequestLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Reads {@code in} to the end, staging each block as soon as it is read, and
+	 * commits the blob once every block is stored. Nothing is committed if any
+	 * block fails after its retries. Properties set on {@code blob} beforehand,
+	 * such as its Content-MD5, are sent with the block list.
+	 */
+	void upload(final CloudBlockBlob blob, final InputStream in) throws IOException, StorageException {
+		final List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+		final List<Future<Void>> pending = new ArrayList<Future<Void>>();
+		final AtomicBoolean failed = new AtomicBoolean();
+		boolean staged = false;
+		try {
+			for (int index = 0;; index++) {
+				final byte[] buffer = acquire();
+				final int length;
+				try {
+					length = fill(in, buffer);
+				} catch (IOException e) {
+					release(buffer);
+					throw e;
+				}
+				if (length == 0) {
+					release(buffer);
+					break;
+				}
+				if (index >= Constants.MAX_BLOCK_NUMBER) {
+					release(buffer);
+					throw new IOException("Content needs more than " + Constants.MAX_BLOCK_NUMBER + " blocks of " + blockSize + " bytes, increase the Block Size");
+				}
+				final String blockId = blockId(index);
+				blocks.add(new BlockEntry(blockId));
+				pending.add(executor.submit(new BlockUpload(blob, blockId, buffer, length, failed)));
+				if (failed.get() || length < buffer.length) {
+					break;
+				}
+			}
+			for (Future<Void> future : pending) {
+				future.get();
+			}
+			staged = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while uploading " + blob.getName(), e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			}
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		} finally {
+			// blocks not yet started skip their upload, but still hand their buffer back
+			if (!staged) {
+				failed.set(true);
+				awaitQuietly(pending);
+			}
+		}
+		limiter.execute(new AdaptiveRequestLimiter.Request<Void>() {
+			@Override
+			public Void send() throws StorageException {
+				blob.commitBlockList(blocks, null, blockOptions, null);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Uploads content that fits in one request on the upload threads, so the
+	 * small FlowFiles of a batch are sent concurrently. The content is the first
+	 * {@code length} bytes of a buffer from {@link #acquire()}, which is handed
+	 * back once the request has ended. With {@code gzip} the content is
+	 * compressed first. With {@code skipIdentical} the content, as it would be
+	 * stored, is hashed and not sent if the blob already holds it.
+	 *
+	 * @return the blob as stored, the existing one when the upload was skipped
+	 */
+	Future<CloudBlockBlob> submit(final CloudBlockBlob blob, final byte[] buffer, final int length, final boolean gzip, final boolean skipIdentical) {
+		final Callable<CloudBlockBlob> upload = new Callable<CloudBlockBlob>() {
+			@Override
+			public CloudBlockBlob call() throws Exception {
+				try {
+					byte[] content = buffer;
+					int size = length;
+					if (gzip) {
+						final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+						StreamUtils.copy(new GzipCompressingInputStream(new ByteArrayInputStream(buffer, 0, length)), compressed);
+						content = compressed.toByteArray();
+						size = content.length;
+						blob.getProperties().setContentEncoding(GZIP);
+					}
+					if (skipIdentical) {
+						final MessageDigest digest = newMd5();
+						digest.update(content, 0, size);
+						final String md5 = Base64.encode(digest.digest());
+						final CloudBlockBlob existing = findIdentical(blob, md5, size);
+						if (existing != null) {
+							return existing;
+						}
+						blob.getProperties().setContentMD5(md5);
+					}
+					final byte[] body = content;
+					final int bodyLength = size;
+					limiter.execute(new AdaptiveRequestLimiter.Request<Void>() {
+						@Override
+						public Void send() throws StorageException, IOException {
+							blob.uploadFromByteArray(body, 0, bodyLength, null, singleOptions, null);
+							return null;
+						}
+					});
+					return blob;
+				} finally {
+					release(buffer);
+				}
+			}
+		};
+		try {
+			return executor.submit(upload);
+		} catch (RuntimeException e) {
+			release(buffer);
+			throw e;
+		}
+	}
+
+	/**
+	 * The existing blob, its properties fetched, if it already has this
+	 * Content-MD5 and length, otherwise null. It is looked up through a
+	 * reference of its own, the properties set on {@code blob} for the upload,
+	 * such as its Content-Encoding, are left as they are.
+	 */
+	static CloudBlockBlob findIdentical(final CloudBlockBlob blob, final String md5, final long length) throws StorageException, URISyntaxException {
+		final CloudBlockBlob existing = blob.getContainer().getBlockBlobReference(blob.getName());
+		try {
+			existing.downloadAttributes();
+		} catch (StorageException e) {
+			if (e.getHttpStatusCode() == 404) {
+				return null;
+			}
+			throw e;
+		}
+		return md5.equals(existing.getProperties().getContentMD5()) && existing.getProperties().getLength() == length ? existing : null;
+	}
+
+	static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+		buffers.clear();
+	}
+
+	/**
+	 * A buffer of the block size from the shared pool, waiting while all of
+	 * them are in use. It goes back with {@link #release(byte[])}, or with the
+	 * upload it is handed to.
+	 */
+	byte[] acquire() throws InterruptedException {
+		final byte[] buffer = buffers.poll();
+		if (buffer != null) {
+			return buffer;
+		}
+		if (allocated.incrementAndGet() <= parallelism) {
+			return new byte[blockSize];
+		}
+		allocated.decrementAndGet();
+		return buffers.take();
+	}
+
+	void release(final byte[] buffer) {
+		buffers.offer(buffer);
+	}
+
+	private static void awaitQuietly(final List<Future<Void>> pending) {
+		boolean interrupted = false;
+		for (Future<Void> future : pending) {
+			while (!future.isDone()) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					// already reported by the first failed block
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static int fill(final InputStream in, final byte[] buffer) throws IOException {
+		int length = 0;
+		while (length < buffer.length) {
+			final int read = in.read(buffer, length, buffer.length - length);
+			if (read < 0) {
+				break;
+			}
+			length += read;
+		}
+		return length;
+	}
+
+	/** Block ids must be Base64 and of equal length within one blob. */
+	static String blockId(final int index) {
+		return Base64.encode(String.format("block-%06d", index).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private final class BlockUpload implements Callable<Void> {
+		private final CloudBlockBlob blob;
+		private final String blockId;
+		private final byte[] buffer;
+		private final int length;
+		private final AtomicBoolean failed;
+
+		BlockUpload(CloudBlockBlob blob, String blockId, byte[] buffer, int length, AtomicBoolean failed) {
+			this.blob = blob;
+			this.blockId = blockId;
+			this.buffer = buffer;
+			this.length = length;
+			this.failed = failed;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			try {
+				return limiter.execute(new AdaptiveRequestLimiter.Request<Void>() {
+					@Override
+					public Void send() throws StorageException, IOException {
+						if (!failed.get()) {
+							blob.uploadBlock(blockId, new ByteArrayInputStream(buffer, 0, length), length, null, blockOptions, null);
+						}
+						return null;
+					}
+				});
+			} catch (Exception e) {
+				failed.set(true);
+				throw e;
+			} finally {
+				release(buffer);
+			}
+		}
+	}
+
+}
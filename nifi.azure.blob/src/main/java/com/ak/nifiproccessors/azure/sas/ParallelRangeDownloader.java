@@ -0,0 +1,200 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+
+/**
+ * Downloads a blob as fixed size byte ranges fetched concurrently and written
+ * to the output in order. Range buffers come from a pool shared by every
+ * download, so no more than {@code parallelism} ranges are held in memory
+ * however many FlowFiles are fetching at once. Every range is requested with
+ * the blob's ETag, a blob replaced halfway fails instead of mixing versions.
+ * Range requests go through one {@link AdaptiveRequestLimiter}, so fewer of
+ * them are in flight while the account is throttling.
+ */
+class ParallelRangeDownloader {
+
+	private final int rangeSize;
+	private final int parallelism;
+	private final AdaptiveRequestLimiter limiter;
+	private final ExecutorService executor;
+	private final BlockingQueue<byte[]> buffers;
+	private final AtomicInteger allocated = new AtomicInteger();
+	private final BlobRequestOptions rangeOptions = new BlobRequestOptions();
+
+	ParallelRangeDownloader(final int rangeSize, final int parallelism, final int maxRetries) {
+		this.rangeSize = rangeSize;
+		this.parallelism = parallelism;
+		this.limiter = new AdaptiveRequestLimiter(parallelism, maxRetries);
+		this.buffers = new ArrayBlockingQueue<byte[]>(parallelism);
+		this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "azure-range-download-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// failed ranges are retried by the limiter, which also backs off the other ranges, rather than by the client
+		rangeOptions.setRetryPolicyFactory(new RetryNoRetry());
+	}
+
+	int getRangeSize() {
+		return rangeSize;
+	}
+
+	/**
+	 * Writes {@code length} bytes of {@code blob}, starting at {@code offset},
+	 * to {@code out}. The blob's properties must have been downloaded so its
+	 * ETag is known.
+	 */
+	void download(final CloudBlob blob, final long offset, final long length, final OutputStream out) throws IOException, StorageException {
+		final AccessCondition sameVersion = AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+		final Deque<Range> window = new ArrayDeque<Range>();
+		final AtomicBoolean failed = new AtomicBoolean();
+		final long end = offset + length;
+		long next = offset;
+		try {
+			while (next < end || !window.isEmpty()) {
+				if (next < end && window.size() < parallelism) {
+					// only block for a buffer while holding none, others may be waiting on ours
+					final byte[] buffer = window.isEmpty() ? acquire() : buffers.poll();
+					if (buffer != null) {
+						final int size = (int) Math.min(buffer.length, end - next);
+						window.add(new Range(buffer, size, executor.submit(new RangeDownload(blob, next, buffer, size, sameVersion, failed))));
+						next += size;
+						continue;
+					}
+				}
+				final Range head = window.peek();
+				head.future.get();
+				out.write(head.buffer, 0, head.length);
+				window.poll();
+				release(head.buffer);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading " + blob.getName(), e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			}
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		} finally {
+			// a cancelled task counts as done while its request may still write into the buffer, so ranges
+			// not yet started skip their request and every buffer goes back only once its task has ended
+			failed.set(true);
+			for (Range range : window) {
+				awaitQuietly(range.future);
+				release(range.buffer);
+			}
+		}
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+		buffers.clear();
+	}
+
+	private byte[] acquire() throws InterruptedException {
+		final byte[] buffer = buffers.poll();
+		if (buffer != null) {
+			return buffer;
+		}
+		if (allocated.incrementAndGet() <= parallelism) {
+			return new byte[rangeSize];
+		}
+		allocated.decrementAndGet();
+		return buffers.take();
+	}
+
+	private void release(final byte[] buffer) {
+		buffers.offer(buffer);
+	}
+
+	private static void awaitQuietly(final Future<Void> future) {
+		boolean interrupted = false;
+		while (!future.isDone()) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (Exception e) {
+				// the download already failed
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class Range {
+		private final byte[] buffer;
+		private final int length;
+		private final Future<Void> future;
+
+		Range(byte[] buffer, int length, Future<Void> future) {
+			this.buffer = buffer;
+			this.length = length;
+			this.future = future;
+		}
+	}
+
+	private final class RangeDownload implements Callable<Void> {
+		private final CloudBlob blob;
+		private final long offset;
+		private final byte[] buffer;
+		private final int length;
+		private final AccessCondition condition;
+		private final AtomicBoolean failed;
+
+		RangeDownload(CloudBlob blob, long offset, byte[] buffer, int length, AccessCondition condition, AtomicBoolean failed) {
+			this.blob = blob;
+			this.offset = offset;
+			this.buffer = buffer;
+			this.length = length;
+			this.condition = condition;
+			this.failed = failed;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			// a 412 means the blob changed, the limiter does not retry it
+			return limiter.execute(new AdaptiveRequestLimiter.Request<Void>() {
+				@Override
+				public Void send() throws StorageException, IOException {
+					if (failed.get()) {
+						return null;
+					}
+					final int read = blob.downloadRangeToByteArray(offset, Long.valueOf(length), buffer, 0, condition, rangeOptions, null);
+					if (read != length) {
+						throw new IOException("Expected " + length + " bytes at offset " + offset + " of " + blob.getName() + " but got " + read);
+					}
+					return null;
+				}
+			});
+		}
+	}
+
+}
@@ -1,104 +1,686 @@
-package com.ak.nifiproccessors.azure.sas;
-
-import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import org.apache.nifi.annotation.behavior.InputRequirement;
-import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
-import org.apache.nifi.annotation.behavior.WritesAttribute;
-import org.apache.nifi.annotation.behavior.WritesAttributes;
-import org.apache.nifi.annotation.documentation.CapabilityDescription;
-import org.apache.nifi.annotation.documentation.Tags;
-import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.ProcessContext;
-import org.apache.nifi.processor.ProcessSession;
-import org.apache.nifi.processor.ProcessorInitializationContext;
-import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.util.StandardValidators;
-
-import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.BlobProperties;
-@Tags({ "azure", "microsoft", "cloud", "storage", "blob", "sas key","put" })
-@CapabilityDescription("Accepts an azure blob container, sas key and stores an incoming flowfile into the container")
-@WritesAttributes({ 
-	@WritesAttribute(attribute = "azure.container", description = "The name of the Azure container"),
-    @WritesAttribute(attribute = "azure.blobname", description = "The name of the Azure blob"),
-    @WritesAttribute(attribute = "azure.primaryUri", description = "Primary location for blob content"),
-    @WritesAttribute(attribute = "azure.etag", description = "Etag for the Azure blob"),
-    @WritesAttribute(attribute = "azure.timestamp", description = "The timestamp in Azure for the blob")})
-@InputRequirement(Requirement.INPUT_REQUIRED)
-public class PutBlobWithSASKey extends AbstractAzureSASKeyProcessor {
-	
-	
-	 public static final PropertyDescriptor BLOB_NAME = new PropertyDescriptor.Builder().name("Blob Name")
-				.description("The Destination Blob Name").required(true).expressionLanguageSupported(true)
-				.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
-	 
-	 
-	 @Override
-		protected void init(final ProcessorInitializationContext context) {
-			final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
-			descriptors.add(STORAGE_ACCOUNT_NAME);
-			descriptors.add(CONTAINER_NAME);
-			descriptors.add(SAS_QUERY_STRING);
-			descriptors.add(USE_HTTP);
-			descriptors.add(BLOB_NAME);
-			this.descriptors = Collections.unmodifiableList(descriptors);
-		}
-	    
-	    @Override
-		public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
-			return descriptors;
-		}
-	    
-	    
-
-	@Override
-	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-		 Map<String, String> attributes = new HashMap<String, String>();
-		 FlowFile flowFile = session.get();
-	        if (flowFile == null) {
-	            return;
-	        }
-	        
-	        final long startNanos = System.nanoTime();
-	        String blobName = super.getProperty(context, BLOB_NAME);
-	        try {
-	        	blob = container.getBlockBlobReference(blobName);
-				blob.upload(session.read(flowFile), flowFile.getSize());
-				attributes = getAttributes(context);
-				
-		} catch (Exception e) {
-			getLogger().error("Failed to put Azure blob {}", new Object[] { blobName }, e);
-			flowFile = session.penalize(flowFile);
-			session.transfer(flowFile, REL_FAILURE);
-		} 
-	        if(!attributes.isEmpty()){
-	        	final long transferMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
-	            session.getProvenanceReporter().send(flowFile, attributes.get("azure.primaryUri"), transferMillis);
-	        	flowFile = session.putAllAttributes(flowFile, attributes);
-	        	session.transfer(flowFile,REL_SUCCESS);
-	        	session.commit();
-	        }
-	        
-		
-	}
-	
-	private Map<String, String> getAttributes(ProcessContext context) throws URISyntaxException, StorageException {
-		final Map<String, String> attributes = new HashMap<String, String>();
-		BlobProperties properties = blob.getProperties();
-		attributes.put("azure.container", getProperty(context, CONTAINER_NAME));
-		attributes.put("azure.blobname", getProperty(context, BLOB_NAME));
-		attributes.put("azure.primaryUri", blob.getSnapshotQualifiedUri().toString());
-		attributes.put("azure.etag", properties.getEtag());
-		attributes.put("azure.timestamp", String.valueOf(properties.getLastModified()));
-		return attributes;
-	}
-
-}
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.queue.QueueSize;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.FlowFileFilter;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.NullOutputStream;
+import org.apache.nifi.stream.io.StreamUtils;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.core.Base64;
+@Tags({ "azure", "microsoft", "cloud", "storage", "blob", "sas key","put" })
+@CapabilityDescription("Accepts an azure blob container, sas key and stores an incoming flowfile into the container. "
+		+ "Flowfiles larger than the block size are uploaded as blocks staged in parallel and then committed as one blob. "
+		+ "With a pack format many small flowfiles are written into one blob instead, each flowfile is told where its content is. "
+		+ "With the append blob type flowfiles are appended to a rolling series of append blobs, for continuous feeds")
+@WritesAttributes({ 
+	@WritesAttribute(attribute = "azure.container", description = "The name of the Azure container"),
+    @WritesAttribute(attribute = "azure.blobname", description = "The name of the Azure blob"),
+    @WritesAttribute(attribute = "azure.primaryUri", description = "Primary location for blob content"),
+    @WritesAttribute(attribute = "azure.etag", description = "Etag for the Azure blob"),
+    @WritesAttribute(attribute = "azure.timestamp", description = "The timestamp in Azure for the blob"),
+    @WritesAttribute(attribute = "azure.pack.entry", description = "With packing, position of the flowfile in the packed blob"),
+    @WritesAttribute(attribute = "azure.pack.offset", description = "With packing, offset of the flowfile content in the packed blob"),
+    @WritesAttribute(attribute = "azure.pack.length", description = "With packing, length of the flowfile content in the packed blob"),
+    @WritesAttribute(attribute = "azure.pack.count", description = "With packing, number of flowfiles in the packed blob"),
+    @WritesAttribute(attribute = "azure.pack.index", description = "With packing and an index, name of the index blob"),
+    @WritesAttribute(attribute = "azure.append.offset", description = "With the append blob type, offset of the flowfile content in the append blob"),
+    @WritesAttribute(attribute = "azure.contentmd5", description = "With Skip Identical Content, Base64 MD5 of the content"),
+    @WritesAttribute(attribute = "azure.contentencoding", description = "With Compression, the Content-Encoding of the blob"),
+    @WritesAttribute(attribute = "azure.deduplicated", description = "With Skip Identical Content, true if the blob already held the content and nothing was uploaded")})
+@SupportsBatching
+@InputRequirement(Requirement.INPUT_REQUIRED)
+public class PutBlobWithSASKey extends AbstractAzureSASKeyProcessor {
+	
+	
+	 public static final PropertyDescriptor BLOB_NAME = new PropertyDescriptor.Builder().name("Blob Name")
+				.description("The Destination Blob Name").required(true).expressionLanguageSupported(true)
+				.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor BLOCK_SIZE = new PropertyDescriptor.Builder().name("Block Size")
+				.description("Flowfiles up to this size are uploaded in a single request, larger ones as blocks of this size. "
+						+ "A blob can have at most 50000 blocks").required(true).defaultValue("4 MB")
+				.addValidator(StandardValidators.createDataSizeBoundsValidator(64 * 1024, 100 * 1024 * 1024)).build();
+	 
+	 public static final PropertyDescriptor UPLOAD_PARALLELISM = new PropertyDescriptor.Builder().name("Upload Parallelism")
+				.description("Number of blocks uploaded at the same time, shared by all concurrent tasks. "
+						+ "At most this many blocks are buffered in memory. While the account throttles, fewer requests are sent at once, "
+						+ "growing back to this number as requests succeed").required(true).defaultValue("4")
+				.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor BLOCK_RETRIES = new PropertyDescriptor.Builder().name("Block Retries")
+				.description("Times a failed request is sent again, after an exponential backoff with jitter, before the whole flowfile fails. "
+						+ "Flowfiles that fail because the account is throttling go back to the queue instead of to failure").required(true).defaultValue("3")
+				.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("Batch Size")
+				.description("Maximum number of flowfiles taken per run. Flowfiles up to the block size are uploaded concurrently on the upload threads "
+						+ "and the whole batch is committed once. Their content is read into the buffers counted by Upload Parallelism, "
+						+ "so a larger batch does not hold more memory").required(true).defaultValue("1")
+				.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor PACK_FORMAT = new PropertyDescriptor.Builder().name("Pack Format")
+				.description("Packs many flowfiles into one blob. The Blob Name and destination are evaluated against the first flowfile of each pack, "
+						+ "only flowfiles with the same destination are packed together").required(true)
+				.allowableValues(BlobPack.FORMAT_NONE, BlobPack.FORMAT_LENGTH_PREFIXED, BlobPack.FORMAT_NEWLINE_DELIMITED)
+				.defaultValue(BlobPack.FORMAT_NONE.getValue()).build();
+	 
+	 public static final PropertyDescriptor PACK_MAX_ENTRIES = new PropertyDescriptor.Builder().name("Pack Max Entries")
+				.description("A pack is uploaded once it holds this many flowfiles").required(true).defaultValue("1000")
+				.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor PACK_MAX_SIZE = new PropertyDescriptor.Builder().name("Pack Max Size")
+				.description("A pack is uploaded once it reaches this size").required(true).defaultValue("16 MB")
+				.addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor PACK_MAX_LATENCY = new PropertyDescriptor.Builder().name("Pack Max Latency")
+				.description("A pack that is not full is uploaded anyway once its oldest flowfile has been queued this long").required(true).defaultValue("5 sec")
+				.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor PACK_INDEX = new PropertyDescriptor.Builder().name("Pack Index")
+				.description("Also writes <blob name>.index, one tab separated line per entry with its position, offset, length, uuid and filename")
+				.required(true).allowableValues("true", "false").defaultValue("true").build();
+	 
+	 static final AllowableValue BLOB_TYPE_BLOCK = new AllowableValue("block", "block",
+			"each flowfile, or each pack, becomes its own block blob");
+	 static final AllowableValue BLOB_TYPE_APPEND = new AllowableValue("append", "append",
+			"flowfiles are appended to <blob name>.<creation millis>, a new blob is started by size or age. A flowfile over 4 MB "
+			+ "that fails partway leaves the part already appended at the end of that blob, and nothing more is appended to it");
+	 
+	 public static final PropertyDescriptor BLOB_TYPE = new PropertyDescriptor.Builder().name("Blob Type")
+				.description("Block blobs per flowfile, or append blobs shared by every flowfile with the same destination and Blob Name").required(true)
+				.allowableValues(BLOB_TYPE_BLOCK, BLOB_TYPE_APPEND).defaultValue(BLOB_TYPE_BLOCK.getValue()).build();
+	 
+	 public static final PropertyDescriptor APPEND_ROLL_SIZE = new PropertyDescriptor.Builder().name("Append Roll Size")
+				.description("With the append blob type, a new blob is started before this size would be passed").required(true).defaultValue("1 GB")
+				.addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor APPEND_ROLL_INTERVAL = new PropertyDescriptor.Builder().name("Append Roll Interval")
+				.description("With the append blob type, a new blob is started once the current one has been open this long").required(true).defaultValue("1 hour")
+				.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor APPEND_MAX_DESTINATIONS = new PropertyDescriptor.Builder().name("Append Max Destinations")
+				.description("With the append blob type, number of destinations whose current blob is kept open between runs. "
+						+ "Once more are in use the least recently used one is closed, its next flowfile starts a new blob").required(true).defaultValue("100")
+				.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+	 
+	 public static final PropertyDescriptor SKIP_IDENTICAL = new PropertyDescriptor.Builder().name("Skip Identical Content")
+				.description("Hashes the content with MD5 and skips the upload when the blob already exists with the same Content-MD5 "
+						+ "and length. Flowfiles larger than the block size are read twice, once locally to hash them and, only if the blob "
+						+ "differs, once more to upload them. The hash is stored on every blob uploaded and each request carries the MD5 of its body "
+						+ "for the service to verify. Applies to block blobs that are not packed").required(true).allowableValues("true", "false").defaultValue("false").build();
+	 
+	 public static final PropertyDescriptor COMPRESSION = new PropertyDescriptor.Builder().name("Compression")
+				.description("Compresses the content on its way to the blob and sets the blob's Content-Encoding, which FetchBlobWithSASKey "
+						+ "uses to decompress it again. Applies to block blobs that are not packed").required(true)
+				.allowableValues("none", ParallelBlockUploader.GZIP).defaultValue("none").build();
+	 
+	 // least recently used first, guarded by itself
+	 private final Map<String, BlobAppender> appenders = new LinkedHashMap<String, BlobAppender>(16, 0.75f, true);
+	 
+	 private volatile ParallelBlockUploader uploader;
+	 
+	 // by destination, so a pack that is waiting does not hold back the packs of other destinations
+	 private final ConcurrentMap<String, PackWait> packWaits = new ConcurrentHashMap<String, PackWait>();
+	 
+	 // the queue as it was when every destination in it had a pack waiting
+	 private volatile QueueSize waitingQueue;
+	 
+	 @Override
+		protected void init(final ProcessorInitializationContext context) {
+			final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+			descriptors.add(STORAGE_ACCOUNT_NAME);
+			descriptors.add(CONTAINER_NAME);
+			descriptors.add(SAS_QUERY_STRING);
+			descriptors.add(USE_HTTP);
+			descriptors.add(CLIENT_CACHE_SIZE);
+			descriptors.add(BLOB_NAME);
+			descriptors.add(BLOCK_SIZE);
+			descriptors.add(UPLOAD_PARALLELISM);
+			descriptors.add(BLOCK_RETRIES);
+			descriptors.add(BATCH_SIZE);
+			descriptors.add(SKIP_IDENTICAL);
+			descriptors.add(COMPRESSION);
+			descriptors.add(PACK_FORMAT);
+			descriptors.add(PACK_MAX_ENTRIES);
+			descriptors.add(PACK_MAX_SIZE);
+			descriptors.add(PACK_MAX_LATENCY);
+			descriptors.add(PACK_INDEX);
+			descriptors.add(BLOB_TYPE);
+			descriptors.add(APPEND_ROLL_SIZE);
+			descriptors.add(APPEND_ROLL_INTERVAL);
+			descriptors.add(APPEND_MAX_DESTINATIONS);
+			this.descriptors = Collections.unmodifiableList(descriptors);
+		}
+	    
+	    @Override
+		public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+			return descriptors;
+		}
+	    
+	    @OnScheduled
+	    public void startUploader(final ProcessContext context) {
+	    	uploader = new ParallelBlockUploader(context.getProperty(BLOCK_SIZE).asDataSize(DataUnit.B).intValue(),
+	    			context.getProperty(UPLOAD_PARALLELISM).asInteger(), context.getProperty(BLOCK_RETRIES).asInteger(),
+	    			context.getProperty(SKIP_IDENTICAL).asBoolean());
+	    }
+	    
+	    @Override
+	    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+	        final List<ValidationResult> results = new ArrayList<ValidationResult>();
+	        if (BLOB_TYPE_APPEND.getValue().equals(validationContext.getProperty(BLOB_TYPE).getValue())
+	                && !BlobPack.FORMAT_NONE.getValue().equals(validationContext.getProperty(PACK_FORMAT).getValue())) {
+	            results.add(new ValidationResult.Builder().subject(PACK_FORMAT.getName()).valid(false)
+	                    .explanation("packing applies to block blobs only, append blobs already gather flowfiles into blocks").build());
+	        }
+	        return results;
+	    }
+	    
+	    @OnStopped
+	    public void stopUploader() {
+	    	closeAppenders();
+	    	packWaits.clear();
+	    	waitingQueue = null;
+	    	if (uploader != null) {
+	    		uploader.shutdown();
+	    		uploader = null;
+	    	}
+	    }
+
+	@Override
+	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+		if (BLOB_TYPE_APPEND.getValue().equals(context.getProperty(BLOB_TYPE).getValue())) {
+			onTriggerAppend(context, session);
+			return;
+		}
+		if (!BlobPack.FORMAT_NONE.getValue().equals(context.getProperty(PACK_FORMAT).getValue())) {
+			onTriggerPacked(context, session);
+			return;
+		}
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			return;
+		}
+
+		final ParallelBlockUploader uploader = this.uploader;
+		final boolean skipIdentical = context.getProperty(SKIP_IDENTICAL).asBoolean();
+		final boolean gzip = ParallelBlockUploader.GZIP.equals(context.getProperty(COMPRESSION).getValue());
+		final List<PendingUpload> pending = new ArrayList<PendingUpload>(flowFiles.size());
+		for (FlowFile flowFile : flowFiles) {
+			final PendingUpload upload = new PendingUpload(flowFile, getProperty(context, BLOB_NAME, flowFile));
+			pending.add(upload);
+			try {
+				final CloudBlockBlob target = getContainer(context, flowFile).getBlockBlobReference(upload.blobName);
+				upload.target = target;
+				if (flowFile.getSize() > uploader.getBlockSize()) {
+					if (gzip) {
+						target.getProperties().setContentEncoding(ParallelBlockUploader.GZIP);
+					}
+					if (skipIdentical) {
+						// a local pass over the content is cheap next to sending it again, nothing is staged when the blob already has it
+						final MessageDigest digest = ParallelBlockUploader.newMd5();
+						final long[] length = new long[1];
+						session.read(flowFile, new InputStreamCallback() {
+							@Override
+							public void process(InputStream in) throws IOException {
+								length[0] = StreamUtils.copy(new DigestInputStream(gzip ? new GzipCompressingInputStream(in) : in, digest), new NullOutputStream());
+							}
+						});
+						final String md5 = Base64.encode(digest.digest());
+						final CloudBlockBlob existing = ParallelBlockUploader.findIdentical(target, md5, length[0]);
+						if (existing != null) {
+							upload.stored(existing);
+							continue;
+						}
+						target.getProperties().setContentMD5(md5);
+					}
+					// already parallel on its own, so it runs on this thread
+					session.read(flowFile, new InputStreamCallback() {
+						@Override
+						public void process(InputStream in) throws IOException {
+							try {
+								uploader.upload(target, gzip ? new GzipCompressingInputStream(in) : in);
+							} catch (StorageException e) {
+								throw new IOException(e);
+							}
+						}
+					});
+				} else {
+					// the session is single threaded, so content is read here and only the request is async;
+					// the buffer comes from the upload pool, so a batch holds no more than Upload Parallelism of them
+					final byte[] buffer = uploader.acquire();
+					final int length = (int) flowFile.getSize();
+					try {
+						session.read(flowFile, new InputStreamCallback() {
+							@Override
+							public void process(InputStream in) throws IOException {
+								new DataInputStream(in).readFully(buffer, 0, length);
+							}
+						});
+					} catch (RuntimeException e) {
+						uploader.release(buffer);
+						throw e;
+					}
+					upload.future = uploader.submit(target, buffer, length, gzip, skipIdentical);
+				}
+			} catch (Exception e) {
+				upload.failure = e;
+			}
+		}
+
+		for (PendingUpload upload : pending) {
+			FlowFile flowFile = upload.flowFile;
+			try {
+				upload.await();
+				final Map<String, String> attributes = getAttributes(context, upload.target, upload.blobName);
+				if (gzip) {
+					attributes.put("azure.contentencoding", ParallelBlockUploader.GZIP);
+				}
+				if (skipIdentical) {
+					attributes.put("azure.contentmd5", upload.target.getProperties().getContentMD5());
+					attributes.put("azure.deduplicated", String.valueOf(upload.deduplicated));
+				}
+				if (upload.deduplicated) {
+					getLogger().debug("Skipped {}, blob {} already has the same content", new Object[] { flowFile, upload.blobName });
+				} else {
+					final long transferMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - upload.startNanos);
+					session.getProvenanceReporter().send(flowFile, attributes.get("azure.primaryUri"), transferMillis);
+				}
+				flowFile = session.putAllAttributes(flowFile, attributes);
+				session.transfer(flowFile, REL_SUCCESS);
+			} catch (Exception e) {
+				if (requeueIfThrottled(context, session, flowFile, e)) {
+					continue;
+				}
+				getLogger().error("Failed to put Azure blob {}", new Object[] { upload.blobName }, e);
+				flowFile = session.penalize(flowFile);
+				session.transfer(flowFile, REL_FAILURE);
+			}
+		}
+		session.commit();
+	}
+	
+	private void onTriggerPacked(final ProcessContext context, final ProcessSession session) {
+		final QueueSize queueSize = session.getQueueSize();
+		final long now = System.currentTimeMillis();
+		final Set<String> waiting = new HashSet<String>();
+		for (Iterator<Map.Entry<String, PackWait>> it = packWaits.entrySet().iterator(); it.hasNext();) {
+			final Map.Entry<String, PackWait> wait = it.next();
+			if (wait.getValue().isOver(queueSize, now)) {
+				it.remove();
+			} else {
+				packWaits.replace(wait.getKey(), wait.getValue(), wait.getValue().since(queueSize));
+				waiting.add(wait.getKey());
+			}
+		}
+		final QueueSize waited = waitingQueue;
+		if (!waiting.isEmpty() && waited != null && waiting.size() == packWaits.size()
+				&& waited.getObjectCount() == queueSize.getObjectCount() && waited.getByteCount() == queueSize.getByteCount()) {
+			// nothing has arrived that could fill a pack and none is due yet, so the queue is left alone
+			return;
+		}
+		List<FlowFile> flowFiles;
+		for (;;) {
+			final PackFilter filter = new PackFilter(context, waiting);
+			flowFiles = session.get(filter);
+			if (flowFiles.isEmpty()) {
+				waitingQueue = waiting.isEmpty() ? null : queueSize;
+				return;
+			}
+			if (!filter.full) {
+				long oldest = Long.MAX_VALUE;
+				for (FlowFile flowFile : flowFiles) {
+					final Long queued = flowFile.getLastQueueDate();
+					oldest = Math.min(oldest, queued == null ? flowFile.getEntryDate() : queued);
+				}
+				final long due = oldest + context.getProperty(PACK_MAX_LATENCY).asTimePeriod(TimeUnit.MILLISECONDS);
+				if (now < due) {
+					// put them back, and only take them again once the pack can be full or is due; other destinations may be ready
+					packWaits.put(filter.destination, new PackWait(due, queueSize, filter.maxEntries - filter.entries, filter.maxSize - filter.size));
+					waiting.add(filter.destination);
+					session.rollback();
+					continue;
+				}
+			}
+			packWaits.remove(filter.destination);
+			break;
+		}
+		waitingQueue = null;
+
+		final BlobPack pack = new BlobPack(context.getProperty(PACK_FORMAT).getValue());
+		for (FlowFile flowFile : flowFiles) {
+			pack.add(flowFile);
+		}
+		final FlowFile first = flowFiles.get(0);
+		final String blobName = getProperty(context, BLOB_NAME, first);
+		final long startNanos = System.nanoTime();
+		try {
+			final CloudBlobContainer container = getContainer(context, first);
+			final CloudBlockBlob target = container.getBlockBlobReference(blobName);
+			try (final InputStream in = pack.open(session)) {
+				if (pack.getSize() > uploader.getBlockSize()) {
+					uploader.upload(target, in);
+				} else {
+					target.upload(in, pack.getSize());
+				}
+			}
+			final Map<String, String> packAttributes = getAttributes(context, target, blobName);
+			packAttributes.put("azure.pack.count", String.valueOf(flowFiles.size()));
+			if (context.getProperty(PACK_INDEX).asBoolean()) {
+				final byte[] index = pack.index();
+				container.getBlockBlobReference(blobName + ".index").uploadFromByteArray(index, 0, index.length);
+				packAttributes.put("azure.pack.index", blobName + ".index");
+			}
+			final long transferMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+			for (int i = 0; i < flowFiles.size(); i++) {
+				FlowFile flowFile = flowFiles.get(i);
+				final Map<String, String> attributes = new HashMap<String, String>(packAttributes);
+				attributes.put("azure.pack.entry", String.valueOf(i));
+				attributes.put("azure.pack.offset", String.valueOf(pack.getOffset(i)));
+				attributes.put("azure.pack.length", String.valueOf(flowFile.getSize()));
+				session.getProvenanceReporter().send(flowFile, packAttributes.get("azure.primaryUri"), transferMillis);
+				flowFile = session.putAllAttributes(flowFile, attributes);
+				session.transfer(flowFile, REL_SUCCESS);
+			}
+		} catch (Exception e) {
+			if (AdaptiveRequestLimiter.isCausedByThrottling(e)) {
+				for (FlowFile flowFile : flowFiles) {
+					requeueIfThrottled(context, session, flowFile, e);
+				}
+			} else {
+				getLogger().error("Failed to put Azure blob {} packing {} flowfiles", new Object[] { blobName, flowFiles.size() }, e);
+				for (FlowFile flowFile : flowFiles) {
+					session.transfer(session.penalize(flowFile), REL_FAILURE);
+				}
+			}
+		}
+		session.commit();
+	}
+	
+	private void onTriggerAppend(final ProcessContext context, final ProcessSession session) {
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			return;
+		}
+		final long startNanos = System.nanoTime();
+		final long rollSize = context.getProperty(APPEND_ROLL_SIZE).asDataSize(DataUnit.B).longValue();
+		final long rollMillis = context.getProperty(APPEND_ROLL_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+		final int maxDestinations = context.getProperty(APPEND_MAX_DESTINATIONS).asInteger();
+
+		// keeps the order of arrival within each destination
+		final Map<BlobAppender, List<FlowFile>> groups = new LinkedHashMap<BlobAppender, List<FlowFile>>();
+		final Map<BlobAppender, CloudBlobContainer> containers = new HashMap<BlobAppender, CloudBlobContainer>();
+		for (FlowFile flowFile : flowFiles) {
+			final String baseName = getProperty(context, BLOB_NAME, flowFile);
+			try {
+				final CloudBlobContainer container = getContainer(context, flowFile);
+				final BlobAppender appender = getAppender(container, baseName, rollSize, rollMillis, maxDestinations);
+				List<FlowFile> group = groups.get(appender);
+				if (group == null) {
+					group = new ArrayList<FlowFile>();
+					groups.put(appender, group);
+					containers.put(appender, container);
+				}
+				group.add(flowFile);
+			} catch (Exception e) {
+				getLogger().error("Failed to append to Azure blob {}", new Object[] { baseName }, e);
+				session.transfer(session.penalize(flowFile), REL_FAILURE);
+			}
+		}
+
+		for (Map.Entry<BlobAppender, List<FlowFile>> group : groups.entrySet()) {
+			final List<FlowFile> members = group.getValue();
+			final BlobAppender.Results results = group.getKey().append(session, members);
+			final String containerUri = containers.get(group.getKey()).getUri().toString();
+			final long transferMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+			for (int i = 0; i < members.size(); i++) {
+				FlowFile flowFile = members.get(i);
+				if (results.failures[i] != null) {
+					if (requeueIfThrottled(context, session, flowFile, results.failures[i])) {
+						continue;
+					}
+					getLogger().error("Failed to append {} to Azure blob", new Object[] { flowFile }, results.failures[i]);
+					session.transfer(session.penalize(flowFile), REL_FAILURE);
+					continue;
+				}
+				final Map<String, String> attributes = new HashMap<String, String>();
+				attributes.put("azure.container", containers.get(group.getKey()).getName());
+				attributes.put("azure.blobname", results.blobNames[i]);
+				attributes.put("azure.primaryUri", containerUri + "/" + results.blobNames[i]);
+				attributes.put("azure.append.offset", String.valueOf(results.offsets[i]));
+				session.getProvenanceReporter().send(flowFile, attributes.get("azure.primaryUri"), transferMillis);
+				flowFile = session.putAllAttributes(flowFile, attributes);
+				session.transfer(flowFile, REL_SUCCESS);
+			}
+		}
+
+		// a destination that has gone quiet would roll on its next append anyway
+		final long now = System.currentTimeMillis();
+		final List<BlobAppender> expired = new ArrayList<BlobAppender>();
+		synchronized (appenders) {
+			for (Iterator<BlobAppender> it = appenders.values().iterator(); it.hasNext();) {
+				final BlobAppender appender = it.next();
+				if (appender.isExpired(now)) {
+					it.remove();
+					expired.add(appender);
+				}
+			}
+		}
+		close(expired);
+		session.commit();
+	}
+
+	/**
+	 * The appender of this destination, created if there is none. The least
+	 * recently used appenders beyond {@code maxDestinations} are removed and
+	 * closed, outside the lock, since closing waits for an append in progress.
+	 */
+	private BlobAppender getAppender(final CloudBlobContainer container, final String baseName, final long rollSize, final long rollMillis,
+			final int maxDestinations) {
+		final String key = container.getUri() + "/" + baseName;
+		final List<BlobAppender> evicted = new ArrayList<BlobAppender>();
+		BlobAppender appender;
+		synchronized (appenders) {
+			appender = appenders.get(key);
+			if (appender == null) {
+				appender = new BlobAppender(container, baseName, rollSize, rollMillis, uploader.getLimiter());
+				appenders.put(key, appender);
+			}
+			for (Iterator<BlobAppender> it = appenders.values().iterator(); appenders.size() > maxDestinations && it.hasNext();) {
+				evicted.add(it.next());
+				it.remove();
+			}
+		}
+		close(evicted);
+		return appender;
+	}
+
+	private void closeAppenders() {
+		final List<BlobAppender> open;
+		synchronized (appenders) {
+			open = new ArrayList<BlobAppender>(appenders.values());
+			appenders.clear();
+		}
+		close(open);
+	}
+
+	private static void close(final List<BlobAppender> closing) {
+		for (BlobAppender appender : closing) {
+			appender.close();
+		}
+	}
+	
+	private Map<String, String> getAttributes(ProcessContext context, CloudBlockBlob target, String blobName) throws URISyntaxException, StorageException {
+		final Map<String, String> attributes = new HashMap<String, String>();
+		BlobProperties properties = target.getProperties();
+		attributes.put("azure.container", target.getContainer().getName());
+		attributes.put("azure.blobname", blobName);
+		attributes.put("azure.primaryUri", target.getSnapshotQualifiedUri().toString());
+		attributes.put("azure.etag", properties.getEtag());
+		attributes.put("azure.timestamp", String.valueOf(properties.getLastModified()));
+		return attributes;
+	}
+
+	/**
+	 * Takes queued flowfiles for one destination until the pack would exceed its
+	 * entry or size limit, and remembers whether it did. Destinations whose pack
+	 * is waiting are passed over.
+	 */
+	private final class PackFilter implements FlowFileFilter {
+		private final ProcessContext context;
+		private final Set<String> waiting;
+		private final int maxEntries;
+		private final long maxSize;
+		private String destination;
+		private int entries;
+		private long size;
+		private boolean full;
+
+		PackFilter(ProcessContext context, Set<String> waiting) {
+			this.context = context;
+			this.waiting = waiting;
+			this.maxEntries = context.getProperty(PACK_MAX_ENTRIES).asInteger();
+			this.maxSize = context.getProperty(PACK_MAX_SIZE).asDataSize(DataUnit.B).longValue();
+		}
+
+		@Override
+		public FlowFileFilterResult filter(FlowFile flowFile) {
+			final String candidate = getProperty(context, STORAGE_ACCOUNT_NAME, flowFile) + '/' + getProperty(context, CONTAINER_NAME, flowFile)
+					+ '?' + getProperty(context, SAS_QUERY_STRING, flowFile);
+			if (destination == null) {
+				if (waiting.contains(candidate)) {
+					return FlowFileFilterResult.REJECT_AND_CONTINUE;
+				}
+				destination = candidate;
+			} else if (!destination.equals(candidate)) {
+				return FlowFileFilterResult.REJECT_AND_CONTINUE;
+			}
+			if (entries > 0 && size + flowFile.getSize() > maxSize) {
+				full = true;
+				return FlowFileFilterResult.REJECT_AND_TERMINATE;
+			}
+			entries++;
+			size += flowFile.getSize();
+			if (entries >= maxEntries || size >= maxSize) {
+				full = true;
+				return FlowFileFilterResult.ACCEPT_AND_TERMINATE;
+			}
+			return FlowFileFilterResult.ACCEPT_AND_CONTINUE;
+		}
+	}
+
+	/**
+	 * A pack that was put back: when its oldest flowfile is due, the smallest
+	 * the queue has been since, and how many more flowfiles or bytes would have
+	 * filled it. Only arrivals count, flowfiles taken by the packs of other
+	 * destinations do not hide them.
+	 */
+	private static final class PackWait {
+		private final long due;
+		private final QueueSize queueSize;
+		private final int missingEntries;
+		private final long missingBytes;
+
+		PackWait(long due, QueueSize queueSize, int missingEntries, long missingBytes) {
+			this.due = due;
+			this.queueSize = queueSize;
+			this.missingEntries = missingEntries;
+			this.missingBytes = missingBytes;
+		}
+
+		/** The same wait, measured from {@code current} if the queue has shrunk. */
+		PackWait since(QueueSize current) {
+			if (current.getObjectCount() >= queueSize.getObjectCount() && current.getByteCount() >= queueSize.getByteCount()) {
+				return this;
+			}
+			return new PackWait(due, new QueueSize(Math.min(current.getObjectCount(), queueSize.getObjectCount()),
+					Math.min(current.getByteCount(), queueSize.getByteCount())), missingEntries, missingBytes);
+		}
+
+		boolean isOver(QueueSize current, long now) {
+			return now >= due || current.getObjectCount() - queueSize.getObjectCount() >= missingEntries
+					|| current.getByteCount() - queueSize.getByteCount() >= missingBytes;
+		}
+	}
+
+	/** One FlowFile of a batch, from reading its content until its upload has finished. */
+	private static final class PendingUpload {
+		private final FlowFile flowFile;
+		private final String blobName;
+		private final long startNanos = System.nanoTime();
+		private CloudBlockBlob target;
+		private Future<CloudBlockBlob> future;
+		private Exception failure;
+		private boolean deduplicated;
+
+		PendingUpload(FlowFile flowFile, String blobName) {
+			this.flowFile = flowFile;
+			this.blobName = blobName;
+		}
+
+		void await() throws Exception {
+			if (failure != null) {
+				throw failure;
+			}
+			if (future != null) {
+				try {
+					stored(future.get());
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+
+		/** Takes the blob as stored, which is the existing blob when nothing was uploaded. */
+		void stored(CloudBlockBlob blob) {
+			deduplicated = blob != target;
+			target = blob;
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of PutBlobWithSASKey and FetchBlobWithSASKey against a
+ * {@link LocalBlobService}, by flowfile size, concurrent tasks, parallelism
+ * within a flowfile, block or range size, and the latency and request limit
+ * of the account. One operation moves one flowfile per concurrent task, so
+ * ops/s times tasks times the flowfile size gives the bytes per second.
+ * <p>
+ * Run with {@code mvn -P benchmark test-compile exec:exec}, other JMH
+ * arguments go in {@code -Dbenchmark.args}, for example
+ * {@code -Dbenchmark.args="BlobTransferBenchmark.put -p latencyMillis=20 -p accountLimit=8"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class BlobTransferBenchmark {
+
+	private static final String CONTAINER = "benchmark";
+
+	@Param({ "65536", "4194304", "33554432" })
+	public int flowFileSize;
+
+	@Param({ "1", "4" })
+	public int concurrentTasks;
+
+	@Param({ "1", "4", "16" })
+	public int parallelism;
+
+	@Param({ "1048576", "4194304" })
+	public int blockSize;
+
+	@Param({ "0", "20" })
+	public long latencyMillis;
+
+	/** Requests in flight beyond which the account throttles, 0 for no limit. */
+	@Param({ "0" })
+	public int accountLimit;
+
+	private LocalBlobService service;
+	private TestRunner put;
+	private TestRunner fetch;
+	private byte[] content;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		service = new LocalBlobService().install();
+		service.setLatencyMillis(latencyMillis);
+		if (accountLimit > 0) {
+			service.setMaxConcurrentRequests(accountLimit);
+		}
+		content = PutBlobWithSASKeyTest.content(flowFileSize);
+		for (int i = 0; i < concurrentTasks; i++) {
+			service.putBlob(CONTAINER, "blob-" + i, content);
+		}
+
+		put = newRunner(PutBlobWithSASKey.class, "${filename}");
+		put.setProperty(PutBlobWithSASKey.BLOCK_SIZE, blockSize + " B");
+		put.setProperty(PutBlobWithSASKey.UPLOAD_PARALLELISM, String.valueOf(parallelism));
+		put.setProperty(PutBlobWithSASKey.BLOCK_RETRIES, "10");
+		// scheduled once here, so the upload threads outlive the operations
+		put.run(1, false, true);
+
+		fetch = newRunner(FetchBlobWithSASKey.class, "${azure.blobname}");
+		fetch.setProperty(FetchBlobWithSASKey.RANGE_SIZE, blockSize + " B");
+		fetch.setProperty(FetchBlobWithSASKey.DOWNLOAD_PARALLELISM, String.valueOf(parallelism));
+		fetch.setProperty(FetchBlobWithSASKey.RANGE_RETRIES, "10");
+		fetch.run(1, false, true);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() {
+		try {
+			put.run(1, true, false);
+			fetch.run(1, true, false);
+		} finally {
+			service.close();
+		}
+	}
+
+	@Benchmark
+	public void put() {
+		for (int i = 0; i < concurrentTasks; i++) {
+			put.enqueue(content, PutBlobWithSASKeyTest.attributes("filename", "blob-" + i));
+		}
+		put.run(concurrentTasks, false, false);
+		check(put, PutBlobWithSASKey.REL_SUCCESS);
+	}
+
+	@Benchmark
+	public void fetch() {
+		for (int i = 0; i < concurrentTasks; i++) {
+			fetch.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "blob-" + i));
+		}
+		fetch.run(concurrentTasks, false, false);
+		check(fetch, FetchBlobWithSASKey.REL_SUCCESS);
+	}
+
+	private TestRunner newRunner(final Class<? extends AbstractAzureSASKeyProcessor> processor, final String blobName) {
+		final TestRunner runner = TestRunners.newTestRunner(processor);
+		runner.setThreadCount(concurrentTasks);
+		runner.setProperty(AbstractAzureSASKeyProcessor.STORAGE_ACCOUNT_NAME, LocalBlobService.ACCOUNT);
+		runner.setProperty(AbstractAzureSASKeyProcessor.CONTAINER_NAME, CONTAINER);
+		runner.setProperty(AbstractAzureSASKeyProcessor.SAS_QUERY_STRING, LocalBlobService.SAS);
+		runner.setProperty(AbstractAzureSASKeyProcessor.USE_HTTP, AbstractAzureSASKeyProcessor.YES.getValue());
+		// both processors call it Blob Name
+		runner.setProperty(PutBlobWithSASKey.BLOB_NAME.getName(), blobName);
+		return runner;
+	}
+
+	/** A failed or requeued transfer would make the numbers meaningless, so it stops the run. */
+	private void check(final TestRunner runner, final Relationship success) {
+		runner.assertTransferCount(success, concurrentTasks);
+		runner.clearTransferState();
+	}
+
+}
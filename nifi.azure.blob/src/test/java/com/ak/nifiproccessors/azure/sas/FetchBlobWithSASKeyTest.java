@@ -0,0 +1,295 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FetchBlobWithSASKeyTest {
+
+	private static final String CONTAINER = "fetch";
+
+	private static LocalBlobService service;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TestRunner runner;
+
+	@BeforeClass
+	public static void startService() throws IOException {
+		service = new LocalBlobService().install();
+	}
+
+	@AfterClass
+	public static void stopService() {
+		service.close();
+	}
+
+	@Before
+	public void init() {
+		service.reset();
+		runner = TestRunners.newTestRunner(FetchBlobWithSASKey.class);
+		runner.setProperty(FetchBlobWithSASKey.STORAGE_ACCOUNT_NAME, LocalBlobService.ACCOUNT);
+		runner.setProperty(FetchBlobWithSASKey.CONTAINER_NAME, CONTAINER);
+		runner.setProperty(FetchBlobWithSASKey.SAS_QUERY_STRING, LocalBlobService.SAS);
+		runner.setProperty(FetchBlobWithSASKey.USE_HTTP, AbstractAzureSASKeyProcessor.YES.getValue());
+		runner.setProperty(FetchBlobWithSASKey.BLOB_NAME, "${azure.blobname}");
+		runner.setProperty(FetchBlobWithSASKey.RANGE_SIZE, "64 KB");
+	}
+
+	@Test
+	public void testSmallBlob() throws IOException {
+		final byte[] content = PutBlobWithSASKeyTest.content(1000);
+		service.putBlob(CONTAINER, "small.bin", content);
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "small.bin"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(FetchBlobWithSASKey.REL_SUCCESS, 1);
+		final MockFlowFile flowFile = runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0);
+		flowFile.assertContentEquals(content);
+		flowFile.assertAttributeEquals("azure.length", "1000");
+		flowFile.assertAttributeEquals("azure.blobtype", "BLOCK_BLOB");
+		assertEquals(1, runner.getProvenanceEvents().size());
+	}
+
+	@Test
+	public void testLargeBlobIsDownloadedAsRanges() throws IOException {
+		final byte[] content = PutBlobWithSASKeyTest.content(64 * 1024 * 7 + 3);
+		service.putBlob(CONTAINER, "large.bin", content);
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "large.bin"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(FetchBlobWithSASKey.REL_SUCCESS, 1);
+		runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0).assertContentEquals(content);
+		// the properties and eight ranges
+		assertEquals(9, service.getRequestCount());
+	}
+
+	@Test
+	public void testThrottledRangesAreRetried() throws IOException {
+		final byte[] content = PutBlobWithSASKeyTest.content(64 * 1024 * 4);
+		service.putBlob(CONTAINER, "throttled.bin", content);
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "throttled.bin"));
+		service.setMaxConcurrentRequests(1);
+		runner.setProperty(FetchBlobWithSASKey.DOWNLOAD_PARALLELISM, "4");
+		runner.setProperty(FetchBlobWithSASKey.RANGE_RETRIES, "10");
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(FetchBlobWithSASKey.REL_SUCCESS, 1);
+		runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0).assertContentEquals(content);
+	}
+
+	@Test
+	public void testGzipBlobIsDecompressed() throws IOException {
+		final byte[] text = PutBlobWithSASKeyTest.text(64 * 1024 * 3);
+		putGzip("text.gz", text);
+
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "text.gz"));
+		runner.run();
+		runner.assertAllFlowFilesTransferred(FetchBlobWithSASKey.REL_SUCCESS, 1);
+		final MockFlowFile flowFile = runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0);
+		flowFile.assertContentEquals(text);
+		flowFile.assertAttributeEquals("azure.decompressed", "true");
+	}
+
+	@Test
+	public void testMissingBlobGoesToFailure() {
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "missing.bin"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(FetchBlobWithSASKey.REL_FAILURE, 1);
+	}
+
+	@Test
+	public void testUnchangedBlobIsServedFromCache() throws IOException {
+		runner.setProperty(FetchBlobWithSASKey.CACHE_DIRECTORY, folder.getRoot().getPath());
+		final byte[] content = PutBlobWithSASKeyTest.content(64 * 1024 * 3);
+		service.putBlob(CONTAINER, "lookup.bin", content);
+		fetchTwice("lookup.bin");
+
+		final List<MockFlowFile> fetched = runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS);
+		fetched.get(0).assertAttributeEquals("azure.cached", "false");
+		fetched.get(1).assertAttributeEquals("azure.cached", "true");
+		fetched.get(1).assertContentEquals(content);
+		fetched.get(1).assertAttributeEquals("azure.etag", fetched.get(0).getAttribute("azure.etag"));
+		// properties and three ranges, then one revalidation
+		assertEquals(5, service.getRequestCount());
+	}
+
+	@Test
+	public void testChangedBlobIsDownloadedAgain() throws IOException {
+		runner.setProperty(FetchBlobWithSASKey.CACHE_DIRECTORY, folder.getRoot().getPath());
+		service.putBlob(CONTAINER, "model.bin", PutBlobWithSASKeyTest.content(1000));
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "model.bin"));
+		runner.run();
+		final byte[] changed = PutBlobWithSASKeyTest.content(2000);
+		service.putBlob(CONTAINER, "model.bin", changed);
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "model.bin"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(FetchBlobWithSASKey.REL_SUCCESS, 2);
+		final MockFlowFile second = runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(1);
+		second.assertAttributeEquals("azure.cached", "false");
+		second.assertContentEquals(changed);
+
+		runner.clearTransferState();
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "model.bin"));
+		runner.run();
+		runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0).assertContentEquals(changed);
+		runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0).assertAttributeEquals("azure.cached", "true");
+	}
+
+	@Test
+	public void testLeastRecentlyFetchedBlobIsEvicted() throws IOException {
+		runner.setProperty(FetchBlobWithSASKey.CACHE_DIRECTORY, folder.getRoot().getPath());
+		runner.setProperty(FetchBlobWithSASKey.CACHE_MAX_SIZE, "2500 B");
+		for (String name : new String[] { "a", "b", "c" }) {
+			service.putBlob(CONTAINER, name, PutBlobWithSASKeyTest.content(1000));
+			runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", name));
+			runner.run();
+		}
+		// the three do not fit together, so a, the least recently fetched, is gone
+		assertEquals(2, folder.getRoot().listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".blob");
+			}
+		}).length);
+		runner.clearTransferState();
+		fetchTwice("a");
+		runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0).assertAttributeEquals("azure.cached", "false");
+		runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(1).assertAttributeEquals("azure.cached", "true");
+	}
+
+	@Test
+	public void testRangeIsFetched() throws IOException {
+		final byte[] content = PutBlobWithSASKeyTest.content(64 * 1024 * 4);
+		service.putBlob(CONTAINER, "header.bin", content);
+		runner.setProperty(FetchBlobWithSASKey.RANGE_START, "${offset}");
+		runner.setProperty(FetchBlobWithSASKey.RANGE_LENGTH, "100");
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "header.bin", "offset", "1000"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(FetchBlobWithSASKey.REL_SUCCESS, 1);
+		final MockFlowFile flowFile = runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0);
+		flowFile.assertContentEquals(Arrays.copyOfRange(content, 1000, 1100));
+		flowFile.assertAttributeEquals("azure.range.start", "1000");
+		flowFile.assertAttributeEquals("azure.range.length", "100");
+		flowFile.assertAttributeEquals("azure.length", String.valueOf(content.length));
+		// the properties and one range
+		assertEquals(2, service.getRequestCount());
+	}
+
+	@Test
+	public void testTailIsFetchedAsRanges() throws IOException {
+		final byte[] content = PutBlobWithSASKeyTest.content(64 * 1024 * 10);
+		service.putBlob(CONTAINER, "footer.bin", content);
+		runner.setProperty(FetchBlobWithSASKey.TAIL_BYTES, String.valueOf(64 * 1024 * 2 + 8));
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "footer.bin"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(FetchBlobWithSASKey.REL_SUCCESS, 1);
+		final MockFlowFile flowFile = runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0);
+		flowFile.assertContentEquals(Arrays.copyOfRange(content, 64 * 1024 * 8 - 8, content.length));
+		flowFile.assertAttributeEquals("azure.range.start", String.valueOf(64 * 1024 * 8 - 8));
+		// the properties and three ranges, not ten
+		assertEquals(4, service.getRequestCount());
+	}
+
+	@Test
+	public void testRangeIsCutShortAtTheEnd() throws IOException {
+		final byte[] content = PutBlobWithSASKeyTest.content(1000);
+		service.putBlob(CONTAINER, "short.bin", content);
+		runner.setProperty(FetchBlobWithSASKey.TAIL_BYTES, "5000");
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "short.bin"));
+		runner.run();
+		runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0).assertContentEquals(content);
+
+		runner.removeProperty(FetchBlobWithSASKey.TAIL_BYTES);
+		runner.setProperty(FetchBlobWithSASKey.RANGE_START, "2000");
+		runner.clearTransferState();
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "short.bin"));
+		runner.run();
+		final MockFlowFile empty = runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0);
+		empty.assertContentEquals(new byte[0]);
+		empty.assertAttributeEquals("azure.range.length", "0");
+	}
+
+	@Test
+	public void testTailExcludesRangeStart() {
+		runner.setProperty(FetchBlobWithSASKey.TAIL_BYTES, "100");
+		runner.setProperty(FetchBlobWithSASKey.RANGE_START, "0");
+		runner.assertNotValid();
+	}
+
+	@Test
+	public void testCachedFormFollowsDecompress() throws IOException {
+		runner.setProperty(FetchBlobWithSASKey.CACHE_DIRECTORY, folder.getRoot().getPath());
+		final byte[] text = PutBlobWithSASKeyTest.text(64 * 1024 * 3);
+		putGzip("form.gz", text);
+		runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", "form.gz"));
+		runner.run();
+		runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS).get(0).assertContentEquals(text);
+
+		// the decompressed copy in the cache is not what is asked for now
+		runner.setProperty(FetchBlobWithSASKey.DECOMPRESS, "false");
+		runner.clearTransferState();
+		fetchTwice("form.gz");
+		final List<MockFlowFile> fetched = runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS);
+		fetched.get(0).assertAttributeEquals("azure.cached", "false");
+		fetched.get(0).assertContentEquals(service.getBlob(CONTAINER, "form.gz"));
+		fetched.get(1).assertAttributeEquals("azure.cached", "true");
+		fetched.get(1).assertContentEquals(service.getBlob(CONTAINER, "form.gz"));
+	}
+
+	@Test
+	public void testDecompressedContentLargerThanCacheIsNotCached() throws IOException {
+		runner.setProperty(FetchBlobWithSASKey.CACHE_DIRECTORY, folder.getRoot().getPath());
+		runner.setProperty(FetchBlobWithSASKey.CACHE_MAX_SIZE, "64 KB");
+		final byte[] text = PutBlobWithSASKeyTest.text(64 * 1024 * 3);
+		putGzip("big.gz", text);
+		fetchTwice("big.gz");
+
+		for (MockFlowFile flowFile : runner.getFlowFilesForRelationship(FetchBlobWithSASKey.REL_SUCCESS)) {
+			flowFile.assertContentEquals(text);
+			flowFile.assertAttributeEquals("azure.cached", "false");
+		}
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	private void putGzip(final String blobName, final byte[] content) {
+		final TestRunner putRunner = TestRunners.newTestRunner(PutBlobWithSASKey.class);
+		putRunner.setProperty(PutBlobWithSASKey.STORAGE_ACCOUNT_NAME, LocalBlobService.ACCOUNT);
+		putRunner.setProperty(PutBlobWithSASKey.CONTAINER_NAME, CONTAINER);
+		putRunner.setProperty(PutBlobWithSASKey.SAS_QUERY_STRING, LocalBlobService.SAS);
+		putRunner.setProperty(PutBlobWithSASKey.USE_HTTP, AbstractAzureSASKeyProcessor.YES.getValue());
+		putRunner.setProperty(PutBlobWithSASKey.BLOB_NAME, blobName);
+		putRunner.setProperty(PutBlobWithSASKey.COMPRESSION, ParallelBlockUploader.GZIP);
+		putRunner.enqueue(content);
+		putRunner.run();
+		putRunner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 1);
+	}
+
+	private void fetchTwice(final String blobName) {
+		for (int i = 0; i < 2; i++) {
+			runner.enqueue(new byte[0], PutBlobWithSASKeyTest.attributes("azure.blobname", blobName));
+			runner.run();
+		}
+		runner.assertAllFlowFilesTransferred(FetchBlobWithSASKey.REL_SUCCESS, 2);
+	}
+
+}
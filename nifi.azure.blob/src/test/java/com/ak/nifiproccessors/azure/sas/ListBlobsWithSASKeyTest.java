@@ -0,0 +1,177 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.util.LogMessage;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ListBlobsWithSASKeyTest {
+
+	private static final String CONTAINER = "list";
+
+	private static LocalBlobService service;
+
+	private TestRunner runner;
+
+	@BeforeClass
+	public static void startService() throws IOException {
+		service = new LocalBlobService().install();
+	}
+
+	@AfterClass
+	public static void stopService() {
+		service.close();
+	}
+
+	@Before
+	public void init() {
+		service.reset();
+		runner = newRunner();
+	}
+
+	private static TestRunner newRunner() {
+		final TestRunner runner = TestRunners.newTestRunner(ListBlobsWithSASKey.class);
+		runner.setProperty(ListBlobsWithSASKey.STORAGE_ACCOUNT_NAME, LocalBlobService.ACCOUNT);
+		runner.setProperty(ListBlobsWithSASKey.CONTAINER_NAME, CONTAINER);
+		runner.setProperty(ListBlobsWithSASKey.SAS_QUERY_STRING, LocalBlobService.SAS);
+		runner.setProperty(ListBlobsWithSASKey.USE_HTTP, AbstractAzureSASKeyProcessor.YES.getValue());
+		return runner;
+	}
+
+	@Test
+	public void testListsEveryBlobOnce() throws InterruptedException {
+		for (int i = 0; i < 25; i++) {
+			service.putBlob(CONTAINER, String.format("%x-%02d", i % 16, i), new byte[i]);
+		}
+		runner.setProperty(ListBlobsWithSASKey.PAGE_SIZE, "4");
+		runner.setProperty(ListBlobsWithSASKey.PAGES_PER_RUN, "2");
+		// the pass must start in a later second than the blobs were written, or the next pass lists them again
+		Thread.sleep(2100);
+		// eight blobs a run, so four runs make a full pass
+		runner.run(4);
+
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 25);
+		final Set<String> names = new HashSet<String>();
+		for (MockFlowFile flowFile : runner.getFlowFilesForRelationship(ListBlobsWithSASKey.REL_SUCCESS)) {
+			names.add(flowFile.getAttribute("filename"));
+		}
+		assertEquals(25, names.size());
+		runner.getStateManager().assertStateSet(ListBlobsWithSASKey.WATERMARK, Scope.CLUSTER);
+
+		// the last modified times have whole seconds, so wait for a newer one
+		Thread.sleep(1100);
+		service.putBlob(CONTAINER, "f-new", new byte[1]);
+		runner.clearTransferState();
+		runner.run(4);
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 1);
+		runner.getFlowFilesForRelationship(ListBlobsWithSASKey.REL_SUCCESS).get(0).assertAttributeEquals("filename", "f-new");
+	}
+
+	@Test
+	public void testResumesFromSavedMarker() throws IOException {
+		for (int i = 0; i < 6; i++) {
+			service.putBlob(CONTAINER, "resume-" + i, new byte[1]);
+		}
+		runner.setProperty(ListBlobsWithSASKey.PAGE_SIZE, "2");
+		runner.setProperty(ListBlobsWithSASKey.PAGES_PER_RUN, "1");
+		runner.run();
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 2);
+		final Map<String, String> state = runner.getStateManager().getState(Scope.CLUSTER).toMap();
+		assertTrue(state.containsKey(ListBlobsWithSASKey.MARKER_PREFIX + "0"));
+
+		// another node taking over carries on from the marker in the cluster state
+		runner = newRunner();
+		runner.getStateManager().setState(state, Scope.CLUSTER);
+		runner.setProperty(ListBlobsWithSASKey.PAGE_SIZE, "2");
+		runner.setProperty(ListBlobsWithSASKey.PAGES_PER_RUN, "1");
+		runner.run();
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 2);
+		runner.getFlowFilesForRelationship(ListBlobsWithSASKey.REL_SUCCESS).get(0).assertAttributeEquals("filename", "resume-2");
+		runner.getFlowFilesForRelationship(ListBlobsWithSASKey.REL_SUCCESS).get(1).assertAttributeEquals("filename", "resume-3");
+	}
+
+	@Test
+	public void testChangedPartitionsStartTheListingOver() throws IOException {
+		for (String name : new String[] { "a/1", "a/2", "b/1", "b/2", "c/1" }) {
+			service.putBlob(CONTAINER, name, new byte[1]);
+		}
+		runner.setProperty(ListBlobsWithSASKey.PREFIX_PARTITIONS, "a,b");
+		runner.setProperty(ListBlobsWithSASKey.PAGE_SIZE, "1");
+		runner.setProperty(ListBlobsWithSASKey.PAGES_PER_RUN, "1");
+		runner.run();
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 2);
+
+		// the markers of a and b mean nothing to the new partitions, so every partition starts from its beginning
+		runner.setProperty(ListBlobsWithSASKey.PREFIX_PARTITIONS, "a,b,c");
+		runner.clearTransferState();
+		runner.run(2);
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 5);
+		final Map<String, String> state = runner.getStateManager().getState(Scope.CLUSTER).toMap();
+		assertEquals("[a, b, c]", state.get(ListBlobsWithSASKey.PARTITIONS));
+		assertTrue(state.containsKey(ListBlobsWithSASKey.WATERMARK));
+	}
+
+	@Test
+	public void testFailedPartitionIsRetried() throws IOException {
+		service.putBlob(CONTAINER, "a/1", new byte[1]);
+		for (int i = 0; i < 3; i++) {
+			service.putBlob(CONTAINER, "b/" + i, new byte[1]);
+		}
+		runner.setProperty(ListBlobsWithSASKey.PREFIX_PARTITIONS, "a,b");
+		runner.setProperty(ListBlobsWithSASKey.PAGE_SIZE, "1");
+		runner.setProperty(ListBlobsWithSASKey.PAGES_PER_RUN, "1");
+		runner.run();
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 2);
+
+		// a is done, so b is the only partition listed and the one to blame
+		service.failListings("b");
+		runner.run();
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 2);
+		final List<LogMessage> errors = runner.getLogger().getErrorMessages();
+		assertEquals(1, errors.size());
+		assertEquals("b", errors.get(0).getArgs()[1]);
+		assertFalse(runner.getStateManager().getState(Scope.CLUSTER).toMap().containsKey(ListBlobsWithSASKey.WATERMARK));
+
+		// b goes on from its marker, the pass completes
+		service.failListings(null);
+		runner.clearTransferState();
+		runner.run(2);
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 2);
+		final Set<String> names = new HashSet<String>();
+		for (MockFlowFile flowFile : runner.getFlowFilesForRelationship(ListBlobsWithSASKey.REL_SUCCESS)) {
+			names.add(flowFile.getAttribute("filename"));
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("b/1", "b/2")), names);
+		assertTrue(runner.getStateManager().getState(Scope.CLUSTER).toMap().containsKey(ListBlobsWithSASKey.WATERMARK));
+	}
+
+	@Test
+	public void testPartitionsAreListedTogether() {
+		for (int i = 0; i < 32; i++) {
+			service.putBlob(CONTAINER, "data/" + Integer.toHexString(i % 16) + "/" + i, new byte[1]);
+		}
+		service.putBlob(CONTAINER, "other/0", new byte[1]);
+		runner.setProperty(ListBlobsWithSASKey.PREFIX, "data/");
+		runner.setProperty(ListBlobsWithSASKey.PREFIX_PARTITIONS, "0,1,2,3,4,5,6,7,8,9,a,b,c,d,e,f");
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(ListBlobsWithSASKey.REL_SUCCESS, 32);
+	}
+
+}
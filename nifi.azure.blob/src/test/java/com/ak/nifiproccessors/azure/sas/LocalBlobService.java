@@ -0,0 +1,629 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.core.Base64;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stands in for the blob service of any storage account, in memory, so the
+ * processors can be tested and benchmarked offline. It answers the requests
+ * the processors make: put blob, put block and block list, append block, get
+ * with ranges and conditions, get properties and list blobs. Processors reach
+ * it through the USE_HTTP path: {@link #install()} makes it the storage
+ * client's HTTP proxy, so a request for
+ * {@code http://<account>.blob.core.windows.net/...} arrives here unchanged.
+ * Latency and throttling can be injected to see how the processors behave
+ * against a slow or overloaded account. Signatures are not checked, but every
+ * request must carry one.
+ */
+final class LocalBlobService implements HttpHandler, Closeable {
+
+	static final String ACCOUNT = "nifitest";
+	static final String SAS = "sv=2016-05-31&ss=b&srt=co&sp=rwdlac&sig=local";
+
+	private static final String BLOCK_BLOB = "BlockBlob";
+	private static final String APPEND_BLOB = "AppendBlob";
+	private static final Pattern BLOCK_LIST_ENTRY = Pattern.compile("<(?:Latest|Uncommitted|Committed)>([^<]*)</");
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	// account/container/blob, sorted so a listing is a range of keys
+	private final ConcurrentNavigableMap<String, StoredBlob> blobs = new ConcurrentSkipListMap<String, StoredBlob>();
+	private final ConcurrentMap<String, ConcurrentMap<String, byte[]>> uncommitted = new ConcurrentHashMap<String, ConcurrentMap<String, byte[]>>();
+	private final AtomicLong etags = new AtomicLong(0x8D000000000L);
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger throttleNext = new AtomicInteger();
+	private volatile long latencyMillis;
+	private volatile int maxConcurrentRequests = Integer.MAX_VALUE;
+	private volatile String failListingPrefix;
+	// the JVM wide proxy this service replaced, put back by close
+	private Proxy replacedProxy;
+	private boolean installed;
+
+	LocalBlobService() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+		server.createContext("/", this);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Sends every storage request of this JVM here, until {@link #close()}.
+	 * The storage client's default proxy is global, so tests must close the
+	 * service when they are done, whatever their outcome.
+	 */
+	synchronized LocalBlobService install() {
+		if (!installed) {
+			replacedProxy = OperationContext.getDefaultProxy();
+			installed = true;
+		}
+		OperationContext.setDefaultProxy(new Proxy(Proxy.Type.HTTP, server.getAddress()));
+		return this;
+	}
+
+	/** Puts back the proxy {@link #install()} replaced, then stops the server. */
+	@Override
+	public synchronized void close() {
+		if (installed) {
+			OperationContext.setDefaultProxy(replacedProxy);
+			installed = false;
+		}
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/** Delay added to every request before it is answered. */
+	void setLatencyMillis(final long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/** Answers the next {@code count} requests with 503 ServerBusy. */
+	void throttleNext(final int count) {
+		throttleNext.set(count);
+	}
+
+	/**
+	 * Answers requests beyond this many in flight with 503 ServerBusy, the way
+	 * an account past its scalability target does.
+	 */
+	void setMaxConcurrentRequests(final int maxConcurrentRequests) {
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * Refuses listings with exactly this prefix with 403, the way a SAS
+	 * without list permission would, until set to null.
+	 */
+	void failListings(final String prefix) {
+		this.failListingPrefix = prefix;
+	}
+
+	long getRequestCount() {
+		return requests.get();
+	}
+
+	long getThrottledCount() {
+		return throttled.get();
+	}
+
+	/** Blocks staged but not, or not yet, committed, over all blobs. */
+	int getUncommittedBlockCount() {
+		int count = 0;
+		for (Map<String, byte[]> blocks : uncommitted.values()) {
+			count += blocks.size();
+		}
+		return count;
+	}
+
+	void reset() {
+		blobs.clear();
+		uncommitted.clear();
+		requests.set(0);
+		throttled.set(0);
+		throttleNext.set(0);
+		latencyMillis = 0;
+		maxConcurrentRequests = Integer.MAX_VALUE;
+		failListingPrefix = null;
+	}
+
+	void putBlob(final String container, final String name, final byte[] content) {
+		blobs.put(key(ACCOUNT, container, name), new StoredBlob(BLOCK_BLOB, content, newEtag(), md5(content), null, null,
+				new HashMap<String, String>(), 0));
+	}
+
+	/** The blob's content, or null if there is no such blob. */
+	byte[] getBlob(final String container, final String name) {
+		final StoredBlob blob = blobs.get(key(ACCOUNT, container, name));
+		return blob == null ? null : blob.content;
+	}
+
+	String getContentEncoding(final String container, final String name) {
+		final StoredBlob blob = blobs.get(key(ACCOUNT, container, name));
+		return blob == null ? null : blob.contentEncoding;
+	}
+
+	/** Names of the blobs in the container starting with {@code prefix}, in listing order. */
+	List<String> listBlobs(final String container, final String prefix) {
+		final String base = key(ACCOUNT, container, "");
+		final List<String> names = new ArrayList<String>();
+		for (String key : blobs.subMap(base + prefix, base + prefix + Character.MAX_VALUE).keySet()) {
+			names.add(key.substring(base.length()));
+		}
+		return names;
+	}
+
+	@Override
+	public void handle(final HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		inFlight.incrementAndGet();
+		try {
+			final byte[] body = readFully(exchange.getRequestBody());
+			if (latencyMillis > 0) {
+				TimeUnit.MILLISECONDS.sleep(latencyMillis);
+			}
+			if (takeThrottle() || inFlight.get() > maxConcurrentRequests) {
+				throttled.incrementAndGet();
+				error(exchange, 503, "ServerBusy", "The server is busy.");
+				return;
+			}
+			route(exchange, body);
+		} catch (Exception e) {
+			error(exchange, 500, "InternalError", String.valueOf(e));
+		} finally {
+			inFlight.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+	private boolean takeThrottle() {
+		for (;;) {
+			final int remaining = throttleNext.get();
+			if (remaining <= 0) {
+				return false;
+			}
+			if (throttleNext.compareAndSet(remaining, remaining - 1)) {
+				return true;
+			}
+		}
+	}
+
+	private void route(final HttpExchange exchange, final byte[] body) throws IOException {
+		final URI uri = exchange.getRequestURI();
+		String host = uri.getHost() != null ? uri.getHost() : exchange.getRequestHeaders().getFirst("Host");
+		host = host.contains(":") ? host.substring(0, host.indexOf(':')) : host;
+		final String account = host.contains(".") ? host.substring(0, host.indexOf('.')) : host;
+		final String path = uri.getPath().substring(1);
+		final int slash = path.indexOf('/');
+		final String container = slash < 0 ? path : path.substring(0, slash);
+		final String blob = slash < 0 || slash == path.length() - 1 ? null : path.substring(slash + 1);
+		final Map<String, String> query = parseQuery(uri.getRawQuery());
+		final String method = exchange.getRequestMethod();
+		final String comp = query.get("comp");
+
+		if (!query.containsKey("sig")) {
+			error(exchange, 403, "AuthenticationFailed", "Server failed to authenticate the request.");
+		} else if (blob == null && "list".equals(comp) && "GET".equals(method)) {
+			list(exchange, account, container, query);
+		} else if (blob == null) {
+			error(exchange, 400, "UnsupportedQueryParameter", "Only blob listing is supported on a container.");
+		} else if ("PUT".equals(method) && comp == null) {
+			putBlob(exchange, key(account, container, blob), body);
+		} else if ("PUT".equals(method) && "block".equals(comp)) {
+			putBlock(exchange, key(account, container, blob), query.get("blockid"), body);
+		} else if ("PUT".equals(method) && "blocklist".equals(comp)) {
+			putBlockList(exchange, key(account, container, blob), body);
+		} else if ("PUT".equals(method) && "appendblock".equals(comp)) {
+			appendBlock(exchange, key(account, container, blob), body);
+		} else if (("GET".equals(method) || "HEAD".equals(method)) && comp == null) {
+			get(exchange, key(account, container, blob), "HEAD".equals(method));
+		} else {
+			error(exchange, 400, "UnsupportedHttpVerb", method + " " + comp + " is not supported here.");
+		}
+	}
+
+	private void putBlob(final HttpExchange exchange, final String key, final byte[] body) throws IOException {
+		final Headers headers = exchange.getRequestHeaders();
+		final String type = headers.getFirst("x-ms-blob-type");
+		if (!BLOCK_BLOB.equals(type) && !APPEND_BLOB.equals(type)) {
+			error(exchange, 400, "InvalidHeaderValue", "Unsupported blob type " + type);
+			return;
+		}
+		if (!checkMd5(exchange, body)) {
+			return;
+		}
+		final StoredBlob stored;
+		synchronized (blobs) {
+			if (!checkWriteConditions(exchange, blobs.get(key))) {
+				return;
+			}
+			// the service computes the MD5 of a blob put in one request
+			final String md5 = headers.containsKey("x-ms-blob-content-md5") ? headers.getFirst("x-ms-blob-content-md5")
+					: BLOCK_BLOB.equals(type) ? md5(body) : null;
+			stored = new StoredBlob(type, body, newEtag(), md5, headers.getFirst("x-ms-blob-content-encoding"),
+					headers.getFirst("x-ms-blob-content-type"), metadata(headers), 0);
+			blobs.put(key, stored);
+			uncommitted.remove(key);
+		}
+		if (stored.contentMD5 != null) {
+			exchange.getResponseHeaders().set("Content-MD5", stored.contentMD5);
+		}
+		created(exchange, stored);
+	}
+
+	private void putBlock(final HttpExchange exchange, final String key, final String blockId, final byte[] body) throws IOException {
+		if (blockId == null) {
+			error(exchange, 400, "MissingRequiredQueryParameter", "blockid is required.");
+			return;
+		}
+		if (!checkMd5(exchange, body)) {
+			return;
+		}
+		ConcurrentMap<String, byte[]> blocks = uncommitted.get(key);
+		if (blocks == null) {
+			final ConcurrentMap<String, byte[]> created = new ConcurrentHashMap<String, byte[]>();
+			blocks = uncommitted.putIfAbsent(key, created);
+			blocks = blocks == null ? created : blocks;
+		}
+		blocks.put(blockId, body);
+		send(exchange, 201, null);
+	}
+
+	private void putBlockList(final HttpExchange exchange, final String key, final byte[] body) throws IOException {
+		final Headers headers = exchange.getRequestHeaders();
+		final StoredBlob stored;
+		synchronized (blobs) {
+			if (!checkWriteConditions(exchange, blobs.get(key))) {
+				return;
+			}
+			final Map<String, byte[]> blocks = uncommitted.get(key);
+			final ByteArrayOutputStream content = new ByteArrayOutputStream();
+			final Matcher entries = BLOCK_LIST_ENTRY.matcher(new String(body, StandardCharsets.UTF_8));
+			while (entries.find()) {
+				final byte[] block = blocks == null ? null : blocks.get(entries.group(1));
+				if (block == null) {
+					error(exchange, 400, "InvalidBlockList", "The specified block list is invalid.");
+					return;
+				}
+				content.write(block);
+			}
+			stored = new StoredBlob(BLOCK_BLOB, content.toByteArray(), newEtag(), headers.getFirst("x-ms-blob-content-md5"),
+					headers.getFirst("x-ms-blob-content-encoding"), headers.getFirst("x-ms-blob-content-type"), metadata(headers), 0);
+			blobs.put(key, stored);
+			uncommitted.remove(key);
+		}
+		created(exchange, stored);
+	}
+
+	private void appendBlock(final HttpExchange exchange, final String key, final byte[] body) throws IOException {
+		if (!checkMd5(exchange, body)) {
+			return;
+		}
+		final StoredBlob stored;
+		final long offset;
+		synchronized (blobs) {
+			final StoredBlob existing = blobs.get(key);
+			if (existing == null) {
+				error(exchange, 404, "BlobNotFound", "The specified blob does not exist.");
+				return;
+			}
+			if (!APPEND_BLOB.equals(existing.blobType)) {
+				error(exchange, 409, "InvalidBlobType", "The blob type is invalid for this operation.");
+				return;
+			}
+			if (!checkWriteConditions(exchange, existing)) {
+				return;
+			}
+			final String position = exchange.getRequestHeaders().getFirst("x-ms-blob-condition-appendpos");
+			if (position != null && Long.parseLong(position) != existing.content.length) {
+				error(exchange, 412, "AppendPositionConditionNotMet", "The append position condition specified was not met.");
+				return;
+			}
+			offset = existing.content.length;
+			final byte[] content = Arrays.copyOf(existing.content, existing.content.length + body.length);
+			System.arraycopy(body, 0, content, existing.content.length, body.length);
+			stored = new StoredBlob(APPEND_BLOB, content, newEtag(), null, existing.contentEncoding, existing.contentType,
+					existing.metadata, existing.blockCount + 1);
+			blobs.put(key, stored);
+		}
+		exchange.getResponseHeaders().set("x-ms-blob-append-offset", String.valueOf(offset));
+		exchange.getResponseHeaders().set("x-ms-blob-committed-block-count", String.valueOf(stored.blockCount));
+		created(exchange, stored);
+	}
+
+	private void get(final HttpExchange exchange, final String key, final boolean head) throws IOException {
+		final StoredBlob stored = blobs.get(key);
+		if (stored == null) {
+			error(exchange, 404, "BlobNotFound", "The specified blob does not exist.");
+			return;
+		}
+		final Headers headers = exchange.getRequestHeaders();
+		final String ifMatch = headers.getFirst("If-Match");
+		if (ifMatch != null && !"*".equals(ifMatch) && !ifMatch.equals(stored.etag)) {
+			error(exchange, 412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+			return;
+		}
+		final Headers response = exchange.getResponseHeaders();
+		setProperties(response, stored);
+		final String ifNoneMatch = headers.getFirst("If-None-Match");
+		if (ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(stored.etag))) {
+			send(exchange, 304, null);
+			return;
+		}
+
+		String range = headers.getFirst("x-ms-range");
+		range = range != null ? range : headers.getFirst("Range");
+		if (range == null) {
+			if (stored.contentMD5 != null) {
+				response.set("Content-MD5", stored.contentMD5);
+			}
+			if (head) {
+				response.set("Content-Length", String.valueOf(stored.content.length));
+			}
+			send(exchange, 200, head ? null : stored.content);
+			return;
+		}
+		final Matcher bounds = RANGE.matcher(range);
+		if (!bounds.matches() || Long.parseLong(bounds.group(1)) >= stored.content.length) {
+			error(exchange, 416, "InvalidRange", "The range specified is invalid for the current size of the resource.");
+			return;
+		}
+		final int start = Integer.parseInt(bounds.group(1));
+		final int end = bounds.group(2).isEmpty() ? stored.content.length - 1
+				: (int) Math.min(Long.parseLong(bounds.group(2)), stored.content.length - 1);
+		final byte[] slice = Arrays.copyOfRange(stored.content, start, end + 1);
+		response.set("Content-Range", "bytes " + start + "-" + end + "/" + stored.content.length);
+		if ("true".equals(headers.getFirst("x-ms-range-get-content-md5"))) {
+			response.set("Content-MD5", md5(slice));
+		}
+		if (head) {
+			response.set("Content-Length", String.valueOf(slice.length));
+		}
+		send(exchange, 206, head ? null : slice);
+	}
+
+	private void list(final HttpExchange exchange, final String account, final String container, final Map<String, String> query) throws IOException {
+		final String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+		if (prefix.equals(failListingPrefix)) {
+			error(exchange, 403, "AuthorizationPermissionMismatch", "This request is not authorized to perform this operation using this permission.");
+			return;
+		}
+		final String marker = query.get("marker");
+		final int maxResults = query.containsKey("maxresults") ? Integer.parseInt(query.get("maxresults")) : 5000;
+		final String base = key(account, container, "");
+		final String from = marker != null && marker.compareTo(prefix) > 0 ? marker : prefix;
+
+		final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+		xml.append("<EnumerationResults ServiceEndpoint=\"http://").append(account).append(".blob.core.windows.net/\" ContainerName=\"")
+				.append(escape(container)).append("\">");
+		xml.append("<Prefix>").append(escape(prefix)).append("</Prefix>");
+		if (marker != null) {
+			xml.append("<Marker>").append(escape(marker)).append("</Marker>");
+		}
+		xml.append("<MaxResults>").append(maxResults).append("</MaxResults><Blobs>");
+		String nextMarker = null;
+		int count = 0;
+		for (Map.Entry<String, StoredBlob> entry : blobs.subMap(base + from, base + prefix + Character.MAX_VALUE).entrySet()) {
+			final String name = entry.getKey().substring(base.length());
+			if (count == maxResults) {
+				nextMarker = name;
+				break;
+			}
+			final StoredBlob stored = entry.getValue();
+			xml.append("<Blob><Name>").append(escape(name)).append("</Name><Properties>");
+			xml.append("<Last-Modified>").append(httpDate(stored.lastModified)).append("</Last-Modified>");
+			xml.append("<Etag>").append(stored.etag).append("</Etag>");
+			xml.append("<Content-Length>").append(stored.content.length).append("</Content-Length>");
+			xml.append("<Content-Type>").append(escape(stored.contentType)).append("</Content-Type>");
+			if (stored.contentEncoding != null) {
+				xml.append("<Content-Encoding>").append(escape(stored.contentEncoding)).append("</Content-Encoding>");
+			}
+			if (stored.contentMD5 != null) {
+				xml.append("<Content-MD5>").append(stored.contentMD5).append("</Content-MD5>");
+			}
+			xml.append("<BlobType>").append(stored.blobType).append("</BlobType>");
+			xml.append("<LeaseStatus>unlocked</LeaseStatus><LeaseState>available</LeaseState></Properties></Blob>");
+			count++;
+		}
+		xml.append("</Blobs>");
+		xml.append(nextMarker == null ? "<NextMarker />" : "<NextMarker>" + escape(nextMarker) + "</NextMarker>");
+		xml.append("</EnumerationResults>");
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		send(exchange, 200, xml.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Applies If-Match and If-None-Match to a write, answering the request if they fail. */
+	private boolean checkWriteConditions(final HttpExchange exchange, final StoredBlob existing) throws IOException {
+		final Headers headers = exchange.getRequestHeaders();
+		final String ifMatch = headers.getFirst("If-Match");
+		if (ifMatch != null && (existing == null || (!"*".equals(ifMatch) && !ifMatch.equals(existing.etag)))) {
+			error(exchange, 412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+			return false;
+		}
+		final String ifNoneMatch = headers.getFirst("If-None-Match");
+		if (ifNoneMatch != null && existing != null) {
+			if ("*".equals(ifNoneMatch)) {
+				error(exchange, 409, "BlobAlreadyExists", "The specified blob already exists.");
+				return false;
+			}
+			if (ifNoneMatch.equals(existing.etag)) {
+				error(exchange, 412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Checks a transactional Content-MD5, answering the request if it does not match. */
+	private boolean checkMd5(final HttpExchange exchange, final byte[] body) throws IOException {
+		final String md5 = exchange.getRequestHeaders().getFirst("Content-MD5");
+		if (md5 != null && !md5.equals(md5(body))) {
+			error(exchange, 400, "Md5Mismatch", "The MD5 value specified in the request did not match the MD5 value calculated by the server.");
+			return false;
+		}
+		return true;
+	}
+
+	private void created(final HttpExchange exchange, final StoredBlob stored) throws IOException {
+		exchange.getResponseHeaders().set("ETag", stored.etag);
+		exchange.getResponseHeaders().set("Last-Modified", httpDate(stored.lastModified));
+		exchange.getResponseHeaders().set("x-ms-request-server-encrypted", "false");
+		send(exchange, 201, null);
+	}
+
+	private static void setProperties(final Headers response, final StoredBlob stored) {
+		response.set("ETag", stored.etag);
+		response.set("Last-Modified", httpDate(stored.lastModified));
+		response.set("x-ms-blob-type", stored.blobType);
+		response.set("Content-Type", stored.contentType);
+		response.set("Accept-Ranges", "bytes");
+		if (stored.contentEncoding != null) {
+			response.set("Content-Encoding", stored.contentEncoding);
+		}
+		if (APPEND_BLOB.equals(stored.blobType)) {
+			response.set("x-ms-blob-committed-block-count", String.valueOf(stored.blockCount));
+		}
+		for (Map.Entry<String, String> entry : stored.metadata.entrySet()) {
+			response.set("x-ms-meta-" + entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void error(final HttpExchange exchange, final int status, final String code, final String message) throws IOException {
+		exchange.getResponseHeaders().set("x-ms-error-code", code);
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		final String body = "<?xml version=\"1.0\" encoding=\"utf-8\"?><Error><Code>" + code + "</Code><Message>" + escape(message)
+				+ "</Message></Error>";
+		send(exchange, status, "HEAD".equals(exchange.getRequestMethod()) ? null : body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void send(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+		if (body == null || body.length == 0) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	private String newEtag() {
+		return "\"0x" + Long.toHexString(etags.incrementAndGet()).toUpperCase(Locale.ROOT) + "\"";
+	}
+
+	private static String key(final String account, final String container, final String blob) {
+		return account + "/" + container + "/" + blob;
+	}
+
+	private static Map<String, String> metadata(final Headers headers) {
+		final Map<String, String> metadata = new HashMap<String, String>();
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (header.getKey().toLowerCase(Locale.ROOT).startsWith("x-ms-meta-")) {
+				metadata.put(header.getKey().substring("x-ms-meta-".length()).toLowerCase(Locale.ROOT), header.getValue().get(0));
+			}
+		}
+		return metadata;
+	}
+
+	private static Map<String, String> parseQuery(final String rawQuery) throws UnsupportedEncodingException {
+		final Map<String, String> query = new HashMap<String, String>();
+		if (rawQuery == null) {
+			return query;
+		}
+		for (String pair : rawQuery.split("&")) {
+			final int equals = pair.indexOf('=');
+			if (equals < 0) {
+				query.put(URLDecoder.decode(pair, "UTF-8"), "");
+			} else {
+				query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return query;
+	}
+
+	private static byte[] readFully(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	static String md5(final byte[] content) {
+		final MessageDigest digest = ParallelBlockUploader.newMd5();
+		return Base64.encode(digest.digest(content));
+	}
+
+	private static String httpDate(final long millis) {
+		final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(millis));
+	}
+
+	private static String escape(final String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static final class StoredBlob {
+		private final String blobType;
+		private final byte[] content;
+		private final String etag;
+		// the service keeps whole seconds
+		private final long lastModified = System.currentTimeMillis() / 1000 * 1000;
+		private final String contentMD5;
+		private final String contentEncoding;
+		private final String contentType;
+		private final Map<String, String> metadata;
+		private final int blockCount;
+
+		StoredBlob(String blobType, byte[] content, String etag, String contentMD5, String contentEncoding, String contentType,
+				Map<String, String> metadata, int blockCount) {
+			this.blobType = blobType;
+			this.content = content;
+			this.etag = etag;
+			this.contentMD5 = contentMD5;
+			this.contentEncoding = contentEncoding;
+			this.contentType = contentType == null ? "application/octet-stream" : contentType;
+			this.metadata = metadata;
+			this.blockCount = blockCount;
+		}
+	}
+
+}
@@ -0,0 +1,398 @@
+package com.ak.nifiproccessors.azure.sas;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.nifi.stream.io.StreamUtils;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.microsoft.azure.storage.OperationContext;
+
+public class PutBlobWithSASKeyTest {
+
+	private static final String CONTAINER = "put";
+
+	private static LocalBlobService service;
+
+	private TestRunner runner;
+
+	@BeforeClass
+	public static void startService() throws IOException {
+		service = new LocalBlobService().install();
+	}
+
+	@AfterClass
+	public static void stopService() {
+		service.close();
+	}
+
+	@Before
+	public void init() {
+		service.reset();
+		runner = TestRunners.newTestRunner(PutBlobWithSASKey.class);
+		runner.setProperty(PutBlobWithSASKey.STORAGE_ACCOUNT_NAME, LocalBlobService.ACCOUNT);
+		runner.setProperty(PutBlobWithSASKey.CONTAINER_NAME, CONTAINER);
+		runner.setProperty(PutBlobWithSASKey.SAS_QUERY_STRING, LocalBlobService.SAS);
+		runner.setProperty(PutBlobWithSASKey.USE_HTTP, AbstractAzureSASKeyProcessor.YES.getValue());
+		runner.setProperty(PutBlobWithSASKey.BLOB_NAME, "${filename}");
+		runner.setProperty(PutBlobWithSASKey.BLOCK_SIZE, "64 KB");
+	}
+
+	@Test
+	public void testSmallFlowFileIsOneRequest() {
+		final byte[] content = content(1000);
+		runner.enqueue(content, name("small.bin"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 1);
+		assertArrayEquals(content, service.getBlob(CONTAINER, "small.bin"));
+		assertEquals(1, service.getRequestCount());
+		final MockFlowFile flowFile = runner.getFlowFilesForRelationship(PutBlobWithSASKey.REL_SUCCESS).get(0);
+		flowFile.assertAttributeEquals("azure.container", CONTAINER);
+		flowFile.assertAttributeEquals("azure.blobname", "small.bin");
+		flowFile.assertAttributeEquals("azure.primaryUri", "http://" + LocalBlobService.ACCOUNT + ".blob.core.windows.net/" + CONTAINER + "/small.bin");
+		assertEquals(1, runner.getProvenanceEvents().size());
+	}
+
+	@Test
+	public void testLargeFlowFileIsUploadedAsBlocks() {
+		final byte[] content = content(64 * 1024 * 5 + 17);
+		runner.enqueue(content, name("large.bin"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 1);
+		assertArrayEquals(content, service.getBlob(CONTAINER, "large.bin"));
+		// six blocks and the block list
+		assertEquals(7, service.getRequestCount());
+	}
+
+	@Test
+	public void testBatchUploadsEveryFlowFile() {
+		runner.setProperty(PutBlobWithSASKey.BATCH_SIZE, "10");
+		for (int i = 0; i < 10; i++) {
+			runner.enqueue(content(100 + i), name("batch-" + i));
+		}
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 10);
+		assertEquals(10, service.listBlobs(CONTAINER, "batch-").size());
+	}
+
+	@Test
+	public void testBatchSharesTheBoundedBufferPool() {
+		// one pooled buffer for the whole batch, each small flowfile waits for the previous request to hand it back
+		runner.setProperty(PutBlobWithSASKey.UPLOAD_PARALLELISM, "1");
+		runner.setProperty(PutBlobWithSASKey.BATCH_SIZE, "5");
+		final byte[][] contents = new byte[5][];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = content(i == 2 ? 64 * 1024 * 2 + 1 : 1000 + i);
+			runner.enqueue(contents[i], name("pooled-" + i));
+		}
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 5);
+		for (int i = 0; i < contents.length; i++) {
+			assertArrayEquals(contents[i], service.getBlob(CONTAINER, "pooled-" + i));
+		}
+	}
+
+	@Test
+	public void testThrottledBlocksAreRetried() {
+		runner.setProperty(PutBlobWithSASKey.BLOCK_RETRIES, "3");
+		final byte[] content = content(64 * 1024 * 3);
+		service.throttleNext(2);
+		runner.enqueue(content, name("throttled.bin"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 1);
+		assertArrayEquals(content, service.getBlob(CONTAINER, "throttled.bin"));
+		assertEquals(2, service.getThrottledCount());
+	}
+
+	@Test
+	public void testFlowFileGoesBackToQueueWhileThrottled() {
+		runner.setProperty(PutBlobWithSASKey.BLOCK_RETRIES, "0");
+		service.throttleNext(1);
+		runner.enqueue(content(1000), name("busy.bin"));
+		runner.run();
+
+		runner.assertTransferCount(PutBlobWithSASKey.REL_SUCCESS, 0);
+		runner.assertTransferCount(PutBlobWithSASKey.REL_FAILURE, 0);
+		runner.assertQueueNotEmpty();
+		assertNull(service.getBlob(CONTAINER, "busy.bin"));
+
+		runner.run();
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 1);
+	}
+
+	@Test
+	public void testSkipIdenticalContent() {
+		runner.setProperty(PutBlobWithSASKey.SKIP_IDENTICAL, "true");
+		final byte[] small = content(1000);
+		final byte[] large = content(64 * 1024 * 2 + 1);
+		runner.enqueue(small, name("same-small.bin"));
+		runner.enqueue(large, name("same-large.bin"));
+		runner.setProperty(PutBlobWithSASKey.BATCH_SIZE, "2");
+		runner.run();
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 2);
+		final Map<String, String> etags = new HashMap<String, String>();
+		for (MockFlowFile flowFile : runner.getFlowFilesForRelationship(PutBlobWithSASKey.REL_SUCCESS)) {
+			flowFile.assertAttributeEquals("azure.deduplicated", "false");
+			etags.put(flowFile.getAttribute("azure.blobname"), flowFile.getAttribute("azure.etag"));
+		}
+
+		runner.clearTransferState();
+		runner.enqueue(small, name("same-small.bin"));
+		runner.enqueue(large, name("same-large.bin"));
+		runner.run();
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 2);
+		for (MockFlowFile flowFile : runner.getFlowFilesForRelationship(PutBlobWithSASKey.REL_SUCCESS)) {
+			flowFile.assertAttributeEquals("azure.deduplicated", "true");
+			// left as it was
+			flowFile.assertAttributeEquals("azure.etag", etags.get(flowFile.getAttribute("azure.blobname")));
+		}
+		// the large one was hashed locally and not sent at all
+		assertEquals(0, service.getUncommittedBlockCount());
+	}
+
+	@Test
+	public void testGzipCompression() throws IOException {
+		runner.setProperty(PutBlobWithSASKey.COMPRESSION, ParallelBlockUploader.GZIP);
+		runner.setProperty(PutBlobWithSASKey.BATCH_SIZE, "2");
+		final byte[] small = text(2000);
+		final byte[] large = text(64 * 1024 * 8);
+		runner.enqueue(small, name("small.txt.gz"));
+		runner.enqueue(large, name("large.txt.gz"));
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 2);
+		assertEquals(ParallelBlockUploader.GZIP, service.getContentEncoding(CONTAINER, "small.txt.gz"));
+		assertArrayEquals(small, gunzip(service.getBlob(CONTAINER, "small.txt.gz")));
+		assertArrayEquals(large, gunzip(service.getBlob(CONTAINER, "large.txt.gz")));
+	}
+
+	@Test
+	public void testOverwriteSetsContentEncodingOfNewContent() throws IOException {
+		runner.setProperty(PutBlobWithSASKey.SKIP_IDENTICAL, "true");
+		runner.setProperty(PutBlobWithSASKey.BATCH_SIZE, "2");
+		service.putBlob(CONTAINER, "over-small", content(500));
+		service.putBlob(CONTAINER, "over-large", content(64 * 1024 * 2));
+
+		// compressed over plain blobs
+		runner.setProperty(PutBlobWithSASKey.COMPRESSION, ParallelBlockUploader.GZIP);
+		final byte[] small = text(2000);
+		final byte[] large = text(64 * 1024 * 8);
+		runner.enqueue(small, name("over-small"));
+		runner.enqueue(large, name("over-large"));
+		runner.run();
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 2);
+		assertEquals(ParallelBlockUploader.GZIP, service.getContentEncoding(CONTAINER, "over-small"));
+		assertEquals(ParallelBlockUploader.GZIP, service.getContentEncoding(CONTAINER, "over-large"));
+		assertArrayEquals(small, gunzip(service.getBlob(CONTAINER, "over-small")));
+		assertArrayEquals(large, gunzip(service.getBlob(CONTAINER, "over-large")));
+
+		// and plain over compressed ones
+		runner.clearTransferState();
+		runner.setProperty(PutBlobWithSASKey.COMPRESSION, "none");
+		final byte[] plainSmall = content(1500);
+		final byte[] plainLarge = content(64 * 1024 * 3);
+		runner.enqueue(plainSmall, name("over-small"));
+		runner.enqueue(plainLarge, name("over-large"));
+		runner.run();
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 2);
+		assertNull(service.getContentEncoding(CONTAINER, "over-small"));
+		assertNull(service.getContentEncoding(CONTAINER, "over-large"));
+		assertArrayEquals(plainSmall, service.getBlob(CONTAINER, "over-small"));
+		assertArrayEquals(plainLarge, service.getBlob(CONTAINER, "over-large"));
+		for (MockFlowFile flowFile : runner.getFlowFilesForRelationship(PutBlobWithSASKey.REL_SUCCESS)) {
+			flowFile.assertAttributeEquals("azure.deduplicated", "false");
+		}
+	}
+
+	@Test
+	public void testPackedFlowFilesShareOneBlob() {
+		runner.setProperty(PutBlobWithSASKey.PACK_FORMAT, BlobPack.FORMAT_NEWLINE_DELIMITED.getValue());
+		runner.setProperty(PutBlobWithSASKey.PACK_MAX_ENTRIES, "3");
+		runner.setProperty(PutBlobWithSASKey.BLOB_NAME, "pack");
+		for (String record : new String[] { "{\"a\":1}", "{\"b\":2}", "{\"c\":3}" }) {
+			runner.enqueue(record.getBytes());
+		}
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 3);
+		final MockFlowFile second = runner.getFlowFilesForRelationship(PutBlobWithSASKey.REL_SUCCESS).get(1);
+		final String blobName = second.getAttribute("azure.blobname");
+		assertEquals("{\"a\":1}\n{\"b\":2}\n{\"c\":3}\n", new String(service.getBlob(CONTAINER, blobName)));
+		second.assertAttributeEquals("azure.pack.offset", "8");
+		second.assertAttributeEquals("azure.pack.length", "7");
+		assertTrue(service.getBlob(CONTAINER, blobName + ".index") != null);
+	}
+
+	@Test
+	public void testPackWaitsForLatencyWithoutYielding() throws InterruptedException {
+		runner.setProperty(PutBlobWithSASKey.PACK_FORMAT, BlobPack.FORMAT_NEWLINE_DELIMITED.getValue());
+		runner.setProperty(PutBlobWithSASKey.PACK_MAX_ENTRIES, "5");
+		runner.setProperty(PutBlobWithSASKey.PACK_MAX_LATENCY, "300 ms");
+		runner.setProperty(PutBlobWithSASKey.BLOB_NAME, "late-pack");
+		for (int i = 0; i < 3; i++) {
+			runner.enqueue(("{\"n\":" + i + "}").getBytes());
+		}
+		runner.run(3, false, true);
+		runner.assertTransferCount(PutBlobWithSASKey.REL_SUCCESS, 0);
+		runner.assertQueueNotEmpty();
+		assertFalse(((MockProcessContext) runner.getProcessContext()).isYieldCalled());
+
+		// two more fill the pack before it is due
+		runner.enqueue("{\"n\":3}".getBytes());
+		runner.enqueue("{\"n\":4}".getBytes());
+		runner.run(1, false, false);
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 5);
+
+		runner.clearTransferState();
+		runner.enqueue("{\"n\":5}".getBytes());
+		runner.run(1, false, false);
+		runner.assertTransferCount(PutBlobWithSASKey.REL_SUCCESS, 0);
+		Thread.sleep(350);
+		runner.run(1, true, false);
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 1);
+	}
+
+	@Test
+	public void testWaitingPackDoesNotHoldBackOtherDestinations() {
+		runner.setProperty(PutBlobWithSASKey.PACK_FORMAT, BlobPack.FORMAT_NEWLINE_DELIMITED.getValue());
+		runner.setProperty(PutBlobWithSASKey.PACK_MAX_ENTRIES, "3");
+		runner.setProperty(PutBlobWithSASKey.PACK_MAX_LATENCY, "1 min");
+		runner.setProperty(PutBlobWithSASKey.CONTAINER_NAME, "${container}");
+		runner.setProperty(PutBlobWithSASKey.BLOB_NAME, "pack");
+		// the first destination in the queue cannot fill its pack, the second one can
+		runner.enqueue("{\"slow\":0}".getBytes(), Collections.singletonMap("container", "slow"));
+		for (int i = 0; i < 3; i++) {
+			runner.enqueue(("{\"busy\":" + i + "}").getBytes(), Collections.singletonMap("container", "busy"));
+		}
+		runner.run(2, false, true);
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 3);
+		assertEquals(1, runner.getQueueSize().getObjectCount());
+
+		// and the slow one is still waiting for its own flowfiles
+		runner.enqueue("{\"slow\":1}".getBytes(), Collections.singletonMap("container", "slow"));
+		runner.enqueue("{\"slow\":2}".getBytes(), Collections.singletonMap("container", "slow"));
+		runner.run(1, true, false);
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 6);
+		assertEquals("{\"slow\":0}\n{\"slow\":1}\n{\"slow\":2}\n", new String(service.getBlob("slow", "pack")));
+	}
+
+	@Test
+	public void testAppendBlobCollectsAFeed() {
+		runner.setProperty(PutBlobWithSASKey.BLOB_TYPE, PutBlobWithSASKey.BLOB_TYPE_APPEND.getValue());
+		runner.setProperty(PutBlobWithSASKey.BLOB_NAME, "feed.log");
+		runner.setProperty(PutBlobWithSASKey.BATCH_SIZE, "5");
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < 5; i++) {
+			final byte[] line = ("line " + i + "\n").getBytes();
+			expected.write(line, 0, line.length);
+			runner.enqueue(line);
+		}
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 5);
+		final List<String> blobs = service.listBlobs(CONTAINER, "feed.log.");
+		assertEquals(1, blobs.size());
+		assertArrayEquals(expected.toByteArray(), service.getBlob(CONTAINER, blobs.get(0)));
+		runner.getFlowFilesForRelationship(PutBlobWithSASKey.REL_SUCCESS).get(3).assertAttributeEquals("azure.append.offset", "21");
+	}
+
+	@Test
+	public void testThrottledAppendGoesBackToQueue() {
+		runner.setProperty(PutBlobWithSASKey.BLOB_TYPE, PutBlobWithSASKey.BLOB_TYPE_APPEND.getValue());
+		runner.setProperty(PutBlobWithSASKey.BLOB_NAME, "busy.log");
+		runner.setProperty(PutBlobWithSASKey.BLOCK_RETRIES, "0");
+		service.throttleNext(1);
+		runner.enqueue("line\n".getBytes());
+		runner.run();
+
+		runner.assertTransferCount(PutBlobWithSASKey.REL_FAILURE, 0);
+		runner.assertTransferCount(PutBlobWithSASKey.REL_SUCCESS, 0);
+		assertEquals(1, runner.getQueueSize().getObjectCount());
+		assertEquals(1, runner.getPenalizedFlowFiles().size());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedAppenderIsClosed() {
+		runner.setProperty(PutBlobWithSASKey.BLOB_TYPE, PutBlobWithSASKey.BLOB_TYPE_APPEND.getValue());
+		runner.setProperty(PutBlobWithSASKey.BLOB_NAME, "${filename}");
+		runner.setProperty(PutBlobWithSASKey.APPEND_MAX_DESTINATIONS, "1");
+		runner.enqueue("a1\n".getBytes(), name("a.log"));
+		runner.enqueue("b1\n".getBytes(), name("b.log"));
+		runner.run(2, false, true);
+		runner.enqueue("b2\n".getBytes(), name("b.log"));
+		runner.enqueue("a2\n".getBytes(), name("a.log"));
+		runner.run(2, true, false);
+
+		runner.assertAllFlowFilesTransferred(PutBlobWithSASKey.REL_SUCCESS, 4);
+		// b stayed open and kept its blob, a was closed by b and started a second one
+		assertEquals(1, service.listBlobs(CONTAINER, "b.log.").size());
+		assertEquals(2, service.listBlobs(CONTAINER, "a.log.").size());
+	}
+
+	@Test
+	public void testClosedServiceHandsBackTheProxy() throws IOException {
+		final Proxy proxy = OperationContext.getDefaultProxy();
+		new LocalBlobService().install().close();
+		assertSame(proxy, OperationContext.getDefaultProxy());
+	}
+
+	static Map<String, String> name(final String filename) {
+		return Collections.singletonMap("filename", filename);
+	}
+
+	static byte[] content(final int size) {
+		final byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+
+	static byte[] text(final int size) {
+		final StringBuilder text = new StringBuilder(size);
+		for (int i = 0; text.length() < size; i++) {
+			text.append("record ").append(i).append(", compressible text\n");
+		}
+		return text.substring(0, size).getBytes();
+	}
+
+	static byte[] gunzip(final byte[] compressed) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamUtils.copy(new GZIPInputStream(new ByteArrayInputStream(compressed)), out);
+		return out.toByteArray();
+	}
+
+	static Map<String, String> attributes(final String... keysAndValues) {
+		final Map<String, String> attributes = new HashMap<String, String>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			attributes.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return attributes;
+	}
+
+}
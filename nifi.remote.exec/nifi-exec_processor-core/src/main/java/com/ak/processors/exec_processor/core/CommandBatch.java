@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs several commands in one invocation. The generated script runs every
+ * command in a shell of its own, {@code sh -c '<command>'}, whether or not
+ * it has a timeout, so exit, cd or variables in one command do not affect the
+ * next, and follows it with a marker line carrying the command's index
+ * and exit status on both stdout and stderr. The marker contains a random
+ * nonce, so command output cannot fake it.
+ * <p>
+ * Used as the task's {@link RemoteCommandTask.OutputHandler}, the batch
+ * collects stdout and notes when each marker arrives, which gives every
+ * command its own elapsed time; the first command's time includes the
+ * connect. The script needs a POSIX shell on the target.
+ * <p>
+ * With a per command timeout that shell runs under the target's
+ * {@code timeout} utility, which kills it on expiry and reports exit
+ * status 124; the batch then goes on with the next command. Targets without
+ * the utility run the commands unlimited and only the limit of the whole
+ * batch, see {@link #getTimeoutMillis()}, applies.
+ */
+public class CommandBatch implements RemoteCommandTask.OutputHandler {
+
+	/** Slack per command for the shell and the marker lines on top of the command's own limit. */
+	private static final long COMMAND_GRACE_MILLIS = 1000L;
+
+	private final List<String> commands;
+	private final long commandTimeoutSeconds;
+	private final String marker;
+	private final byte[] markerBytes;
+	private final long[] doneNanos;
+
+	private byte[] data = new byte[8192];
+	private int size;
+	private int scanFrom;
+	private int markersSeen;
+	private long startNanos;
+
+	public CommandBatch(List<String> commands) {
+		this(commands, 0L);
+	}
+
+	/**
+	 * @param commandTimeoutMillis limit of each command, rounded up to whole
+	 *            seconds; 0 for none
+	 */
+	public CommandBatch(List<String> commands, long commandTimeoutMillis) {
+		if (commands.isEmpty()) {
+			throw new IllegalArgumentException("A batch needs at least one command");
+		}
+		this.commands = new ArrayList<String>(commands);
+		this.commandTimeoutSeconds = (commandTimeoutMillis + 999L) / 1000L;
+		this.marker = "__NIFI_BATCH_" + UUID.randomUUID().toString().replace("-", "") + "__";
+		this.markerBytes = ("\n" + marker + " ").getBytes(StandardCharsets.US_ASCII);
+		this.doneNanos = new long[commands.size()];
+	}
+
+	public int size() {
+		return commands.size();
+	}
+
+	/**
+	 * Limit of the whole batch: every command's limit plus some slack, so it
+	 * only fires when the per command limits could not be enforced; 0 for
+	 * none.
+	 */
+	public long getTimeoutMillis() {
+		if (commandTimeoutSeconds == 0) {
+			return 0L;
+		}
+		return commands.size() * (TimeUnit.SECONDS.toMillis(commandTimeoutSeconds) + COMMAND_GRACE_MILLIS);
+	}
+
+	public String getScript() {
+		final StringBuilder script = new StringBuilder();
+		if (commandTimeoutSeconds > 0) {
+			script.append("if command -v timeout >/dev/null 2>&1; then __nifi_limit='timeout ")
+					.append(commandTimeoutSeconds).append("'; else __nifi_limit=; fi\n");
+		}
+		final String limit = commandTimeoutSeconds > 0 ? "$__nifi_limit " : "";
+		for (int i = 0; i < commands.size(); i++) {
+			script.append(limit).append("sh -c '").append(commands.get(i).replace("'", "'\\''")).append("' </dev/null\n");
+			script.append("printf '\\n%s %d %d\\n' '").append(marker).append("' ").append(i).append(" $?\n");
+			script.append("printf '\\n%s %d\\n' '").append(marker).append("' ").append(i).append(" >&2\n");
+		}
+		return script.toString();
+	}
+
+	/** Starts the clock for the first command; call right before running the batch. */
+	public void start() {
+		startNanos = System.nanoTime();
+	}
+
+	@Override
+	public void onOutput(byte[] buffer, int offset, int length) throws IOException {
+		if (size + length > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+		}
+		System.arraycopy(buffer, offset, data, size, length);
+		size += length;
+		final long now = System.nanoTime();
+		int found;
+		while ((found = indexOf(scanFrom)) >= 0) {
+			if (markersSeen < doneNanos.length) {
+				doneNanos[markersSeen++] = now;
+			}
+			scanFrom = found + markerBytes.length;
+		}
+		scanFrom = Math.max(scanFrom, size - markerBytes.length + 1);
+	}
+
+	@Override
+	public void onIdle() {
+	}
+
+	/**
+	 * Splits the outcome of the batch into one result per command, in command
+	 * order. Commands the batch did not get to, because it timed out or the
+	 * connection failed, get the batch's exit status and, if they have no
+	 * output of their own, the batch's message.
+	 */
+	public List<Result> split(Result batchResult) {
+		final String output = new String(data, 0, size, StandardCharsets.UTF_8);
+		final Section[] stdout = sections(output, true, false);
+		final Section[] stderr = sections(batchResult.getErrorString(), false, batchResult.isErrorTruncated());
+		final int missingStatus = batchResult.isExecutionSuccessful() ? -1 : batchResult.getExitStatus();
+		final List<Result> results = new ArrayList<Result>(commands.size());
+		for (int i = 0; i < commands.size(); i++) {
+			final Section out = stdout[i];
+			final Result result;
+			if (out != null && out.complete) {
+				result = new Result(out.text, out.exitStatus);
+			} else {
+				final String partial = out == null ? "" : out.text;
+				result = new Result(partial.isEmpty() ? batchResult.getResultString() : partial, missingStatus);
+			}
+			final Section err = stderr[i];
+			if (err != null) {
+				result.setErrorString(err.text);
+				result.setErrorTruncated(err.truncated);
+			} else {
+				// the section fell out of the stderr tail
+				result.setErrorTruncated(batchResult.isErrorTruncated());
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Elapsed time of the command at the index, from the previous command's
+	 * end; 0 for commands the batch never got to.
+	 */
+	public long getElapsedMillis(int index) {
+		if (index > markersSeen) {
+			return 0;
+		}
+		final long end = index < markersSeen ? doneNanos[index] : System.nanoTime();
+		final long begin = index == 0 ? startNanos : doneNanos[index - 1];
+		return TimeUnit.NANOSECONDS.toMillis(Math.max(0, end - begin));
+	}
+
+	private int indexOf(int from) {
+		outer: for (int i = from; i <= size - markerBytes.length; i++) {
+			for (int j = 0; j < markerBytes.length; j++) {
+				if (data[i + j] != markerBytes[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static class Section {
+		private final String text;
+		private final boolean complete;
+		private final int exitStatus;
+		private final boolean truncated;
+
+		private Section(String text, boolean complete, int exitStatus, boolean truncated) {
+			this.text = text;
+			this.complete = complete;
+			this.exitStatus = exitStatus;
+			this.truncated = truncated;
+		}
+	}
+
+	/**
+	 * Cuts the stream at the marker lines. The text before a marker belongs to
+	 * the command named in it, text after the last marker to the command that
+	 * was still running. Stderr is a tail, so the first section found there
+	 * may have lost its beginning.
+	 */
+	private Section[] sections(String stream, boolean withExitStatus, boolean headTruncated) {
+		final Section[] sections = new Section[commands.size()];
+		final String prefix = "\n" + marker + " ";
+		int textStart = 0;
+		int next = 0;
+		int index;
+		while ((index = stream.indexOf(prefix, textStart)) >= 0) {
+			final int lineEnd = stream.indexOf('\n', index + prefix.length());
+			if (lineEnd < 0) {
+				break;
+			}
+			final String[] fields = stream.substring(index + prefix.length(), lineEnd).split(" ");
+			try {
+				final int command = Integer.parseInt(fields[0]);
+				final int exitStatus = withExitStatus ? Integer.parseInt(fields[1]) : 0;
+				if (command >= 0 && command < sections.length) {
+					sections[command] = new Section(stream.substring(textStart, index), true, exitStatus,
+							headTruncated && textStart == 0);
+					next = command + 1;
+				}
+			} catch (RuntimeException e) {
+				// not a marker after all, keep it as output
+			}
+			textStart = lineEnd + 1;
+		}
+		if (next < sections.length && textStart < stream.length()) {
+			sections[next] = new Section(stream.substring(textStart), false, 0, headTruncated && textStart == 0);
+		}
+		return sections;
+	}
+
+}
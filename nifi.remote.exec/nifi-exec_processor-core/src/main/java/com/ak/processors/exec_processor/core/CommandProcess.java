@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A single run of a command. {@link #kill()} may be called from any thread at
+ * any time, including before or while the command is started.
+ */
+public interface CommandProcess {
+
+	/**
+	 * Starts the command.
+	 *
+	 * @param stderr receives standard error as it is produced, or null to
+	 *            discard it. Writes to it must never block.
+	 * @param permit the connection slot held for the host, or null
+	 * @param timings receives the time spent connecting and opening the channel
+	 */
+	void start(OutputStream stderr, HostAdmissionControl.Permit permit, PhaseTimings timings) throws Exception;
+
+	/** Standard output of the started command. */
+	InputStream getInputStream() throws Exception;
+
+	/** Exit status once standard output is exhausted, -1 if the target did not report one. */
+	int getExitStatus() throws InterruptedException;
+
+	/** Terminates the command forcibly and releases its resources. */
+	void kill();
+
+	/** Releases the resources of a command that has ended. */
+	void close();
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how hard a single host is hit: at most a fixed number of concurrent
+ * connections and optionally a maximum connect rate per host. Hosts that
+ * refuse connections, for instance because sshd MaxStartups was reached, are
+ * backed off exponentially until a connection succeeds again.
+ */
+public class HostAdmissionControl {
+
+	private static final long INITIAL_BACKOFF_MILLIS = 100;
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+	private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	private final ConcurrentMap<String, HostGate> gates = new ConcurrentHashMap<String, HostGate>();
+	private final int maxConnections;
+	private final long connectIntervalNanos;
+	private final int refusedRetries;
+
+	/**
+	 * @param maxConnections concurrent connections allowed per host
+	 * @param maxConnectsPerSecond connects per second per host, 0 for no limit
+	 * @param refusedRetries how often a refused connect is retried after backing off
+	 */
+	public HostAdmissionControl(int maxConnections, double maxConnectsPerSecond, int refusedRetries) {
+		this.maxConnections = maxConnections;
+		this.connectIntervalNanos = maxConnectsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxConnectsPerSecond) : 0L;
+		this.refusedRetries = refusedRetries;
+	}
+
+	/**
+	 * Waits up to the given time for a connection slot on the host.
+	 *
+	 * @param waitMillis maximum time to wait, negative to wait as long as it takes
+	 * @return the permit, or null if the host stayed busy
+	 */
+	public Permit acquire(String host, long waitMillis) throws InterruptedException {
+		HostGate gate = gates.get(host);
+		if (gate == null) {
+			final HostGate created = new HostGate(maxConnections);
+			gate = gates.putIfAbsent(host, created);
+			if (gate == null) {
+				gate = created;
+			}
+		}
+		final long deadline = waitMillis < 0 ? NO_DEADLINE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+		if (waitMillis < 0) {
+			gate.connections.acquire();
+		} else if (!gate.connections.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+			return null;
+		}
+		if (!gate.awaitConnectSlot(deadline)) {
+			gate.connections.release();
+			return null;
+		}
+		return new Permit(gate);
+	}
+
+	/** Current connections, waiting requests and refused connects of every host seen so far. */
+	public List<HostStatus> getStatus() {
+		final List<HostStatus> status = new ArrayList<HostStatus>(gates.size());
+		for (Map.Entry<String, HostGate> entry : gates.entrySet()) {
+			final HostGate gate = entry.getValue();
+			synchronized (gate) {
+				status.add(new HostStatus(entry.getKey(), maxConnections - gate.connections.availablePermits(),
+						gate.connections.getQueueLength(), gate.refusedConnects,
+						Math.max(0, TimeUnit.NANOSECONDS.toMillis(gate.backoffUntilNanos - System.nanoTime()))));
+			}
+		}
+		return status;
+	}
+
+	public static class HostStatus {
+		private final String host;
+		private final int activeConnections;
+		private final int waiting;
+		private final long refusedConnects;
+		private final long backoffMillis;
+
+		private HostStatus(String host, int activeConnections, int waiting, long refusedConnects, long backoffMillis) {
+			this.host = host;
+			this.activeConnections = activeConnections;
+			this.waiting = waiting;
+			this.refusedConnects = refusedConnects;
+			this.backoffMillis = backoffMillis;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getActiveConnections() {
+			return activeConnections;
+		}
+
+		/** Requests waiting for a connection slot, an estimate. */
+		public int getWaiting() {
+			return waiting;
+		}
+
+		/** Refused connects since the processor was scheduled. */
+		public long getRefusedConnects() {
+			return refusedConnects;
+		}
+
+		/** How much longer the host is backed off, 0 if it is not. */
+		public long getBackoffMillis() {
+			return backoffMillis;
+		}
+	}
+
+	public class Permit {
+		private final HostGate gate;
+		private boolean released;
+
+		private Permit(HostGate gate) {
+			this.gate = gate;
+		}
+
+		public int getRefusedRetries() {
+			return refusedRetries;
+		}
+
+		public void onConnected() {
+			gate.onConnected();
+		}
+
+		/** Backs the host off and waits until the backoff has passed. */
+		public void onRefused() throws InterruptedException {
+			gate.onRefused();
+			gate.awaitConnectSlot(NO_DEADLINE);
+		}
+
+		public synchronized void release() {
+			if (!released) {
+				released = true;
+				gate.connections.release();
+			}
+		}
+	}
+
+	private class HostGate {
+		private final Semaphore connections;
+		private long nextConnectNanos = System.nanoTime();
+		private long backoffMillis;
+		private long backoffUntilNanos = System.nanoTime();
+		private long refusedConnects;
+
+		private HostGate(int maxConnections) {
+			this.connections = new Semaphore(maxConnections, true);
+		}
+
+		/** Reserves the next connect slot allowed by rate limit and backoff. */
+		private boolean awaitConnectSlot(long deadlineNanos) throws InterruptedException {
+			while (true) {
+				final long waitNanos;
+				synchronized (this) {
+					final long now = System.nanoTime();
+					final long ready = Math.max(nextConnectNanos, backoffUntilNanos);
+					if (ready - now <= 0) {
+						nextConnectNanos = now + connectIntervalNanos;
+						return true;
+					}
+					if (deadlineNanos != NO_DEADLINE && ready - deadlineNanos > 0) {
+						return false;
+					}
+					waitNanos = ready - now;
+				}
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			}
+		}
+
+		private synchronized void onConnected() {
+			backoffMillis = 0;
+		}
+
+		private synchronized void onRefused() {
+			refusedConnects++;
+			backoffMillis = backoffMillis == 0 ? INITIAL_BACKOFF_MILLIS : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+			final long jitter = ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+			backoffUntilNanos = Math.max(backoffUntilNanos,
+					System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis + jitter));
+		}
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs commands as child processes of the NiFi JVM through the platform
+ * shell, for targets that are the NiFi node itself. Output, standard error,
+ * exit status and kill behave as with {@link SshTransport}, without the cost
+ * of an SSH handshake. Commands get no standard input: it is closed as soon
+ * as the process starts, so a command reading it sees end of input at once
+ * instead of waiting for input that never comes.
+ */
+public class LocalProcessTransport implements CommandTransport {
+
+	public static final String LOCALHOST = "localhost";
+
+	private static final boolean IS_WINDOWS = System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+	private static final int BUFFER_SIZE = 8192;
+	private static final long STDERR_DRAIN_MILLIS = 1000;
+
+	@Override
+	public String getHostName() {
+		return LOCALHOST;
+	}
+
+	@Override
+	public int getPort() {
+		return 0;
+	}
+
+	@Override
+	public String getUserName() {
+		return System.getProperty("user.name");
+	}
+
+	@Override
+	public CommandProcess newProcess(String command) {
+		return new LocalProcess(command);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof LocalProcessTransport;
+	}
+
+	@Override
+	public int hashCode() {
+		return LocalProcessTransport.class.hashCode();
+	}
+
+	private static List<String> shell(String command) {
+		return IS_WINDOWS ? Arrays.asList("cmd.exe", "/c", command) : Arrays.asList("/bin/sh", "-c", command);
+	}
+
+	/**
+	 * Kills the shell together with everything it started. Children of the
+	 * shell inherit its stdout, so killing only the shell leaves the output
+	 * open until they end. Process.descendants() only exists on Java 9 and
+	 * later, on Java 8 just the shell is killed.
+	 */
+	private static void destroyTree(Process process) {
+		final List<Object> descendants = new ArrayList<Object>();
+		Method destroy = null;
+		try {
+			final Stream<?> handles = (Stream<?>) Process.class.getMethod("descendants").invoke(process);
+			for (Iterator<?> it = handles.iterator(); it.hasNext();) {
+				descendants.add(it.next());
+			}
+			destroy = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+		} catch (Exception e) {
+			// Java 8
+		}
+		process.destroyForcibly();
+		for (Object descendant : descendants) {
+			try {
+				destroy.invoke(descendant);
+			} catch (Exception e) {
+				// already gone
+			}
+		}
+	}
+
+	private static class LocalProcess implements CommandProcess {
+		private final String command;
+		private volatile Process process;
+		private volatile boolean killed;
+		private Thread stderrPump;
+
+		private LocalProcess(String command) {
+			this.command = command;
+		}
+
+		@Override
+		public void start(final OutputStream stderr, HostAdmissionControl.Permit permit, PhaseTimings timings)
+				throws Exception {
+			final long startNanos = System.nanoTime();
+			process = new ProcessBuilder(shell(command)).start();
+			timings.add(PhaseTimings.Phase.CHANNEL_OPEN, System.nanoTime() - startNanos);
+			if (killed) {
+				destroyTree(process);
+				throw new IOException("Command was killed before it started");
+			}
+			// there is no input to pass on
+			process.getOutputStream().close();
+			// stderr has to be drained even when it is discarded, or a full pipe blocks the command
+			final InputStream errorStream = process.getErrorStream();
+			stderrPump = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final byte[] buffer = new byte[BUFFER_SIZE];
+					try {
+						int read;
+						while ((read = errorStream.read(buffer)) != -1) {
+							if (stderr != null) {
+								stderr.write(buffer, 0, read);
+							}
+						}
+					} catch (IOException e) {
+						// the process was killed or closed
+					}
+				}
+			}, "local-process-stderr");
+			stderrPump.setDaemon(true);
+			stderrPump.start();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return process.getInputStream();
+		}
+
+		@Override
+		public int getExitStatus() throws InterruptedException {
+			final int exitStatus = process.waitFor();
+			stderrPump.join(STDERR_DRAIN_MILLIS);
+			return exitStatus;
+		}
+
+		@Override
+		public void kill() {
+			killed = true;
+			final Process current = process;
+			if (current != null) {
+				destroyTree(current);
+			}
+		}
+
+		@Override
+		public void close() {
+			final Process current = process;
+			if (current == null) {
+				return;
+			}
+			if (current.isAlive()) {
+				destroyTree(current);
+			}
+			try {
+				current.waitFor(STDERR_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			closeQuietly(current.getInputStream());
+			closeQuietly(current.getErrorStream());
+		}
+
+		private static void closeQuietly(InputStream in) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing left to read
+			}
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time of one command went. The transport fills in connect, auth
+ * and channel open, the task execution and output transfer. Phases a
+ * transport does not have, such as connect for local processes, stay 0.
+ */
+public class PhaseTimings {
+
+	public enum Phase {
+		/** TCP connect, summed over refused attempts. */
+		CONNECT("connect"),
+		/** SSH key exchange and user authentication, which JSch runs as one step. */
+		AUTH("auth"),
+		/** Opening the exec channel, or starting the local process. */
+		CHANNEL_OPEN("channel"),
+		/** From the started command to its first byte of output, or to its end if it has none. */
+		EXECUTION("execution"),
+		/** From the first byte of output to the end of output. */
+		TRANSFER("transfer");
+
+		private final String name;
+
+		Phase(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private final long[] nanos = new long[Phase.values().length];
+
+	public void add(Phase phase, long elapsedNanos) {
+		nanos[phase.ordinal()] += elapsedNanos;
+	}
+
+	public long getNanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	public long getMillis(Phase phase) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos[phase.ordinal()]);
+	}
+
+}
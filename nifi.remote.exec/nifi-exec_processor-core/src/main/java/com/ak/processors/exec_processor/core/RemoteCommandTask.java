@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a single command over a {@link CommandTransport} and collects its
+ * output. The task can run on the calling thread or on an executor; in both
+ * cases {@link #kill()} terminates the command and releases the connection,
+ * which is how the command timeout is enforced.
+ */
+public class RemoteCommandTask implements Callable<Result> {
+
+	/**
+	 * Receives output as it arrives instead of it being collected into the
+	 * {@link Result}. {@link #onIdle()} is called periodically on the watchdog
+	 * thread, never at the same time as {@link #onOutput}, so time based
+	 * flushing works for quiet commands too. Without a watchdog it is not
+	 * called at all.
+	 */
+	public interface OutputHandler {
+		void onOutput(byte[] buffer, int offset, int length) throws IOException;
+
+		void onIdle() throws IOException;
+	}
+
+	/** Exit status reported for commands killed on timeout, same as coreutils timeout(1). */
+	public static final int TIMEOUT_EXIT_STATUS = 124;
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final long STREAM_IDLE_MILLIS = 10;
+
+	private final CommandTransport transport;
+	private final String command;
+	private final long timeoutMillis;
+	private final ScheduledExecutorService watchdog;
+
+	private volatile CommandProcess process;
+	private volatile boolean killed;
+	private volatile boolean timedOut;
+	private volatile long elapsedMillis;
+	private volatile PhaseTimings timings;
+	private long firstOutputNanos;
+	private OutputHandler outputHandler;
+	private HostAdmissionControl.Permit permit;
+	private int stderrCapacity;
+
+	public RemoteCommandTask(CommandTransport transport, String command, long timeoutMillis,
+			ScheduledExecutorService watchdog) {
+		this.transport = transport;
+		this.command = command;
+		this.timeoutMillis = timeoutMillis;
+		this.watchdog = watchdog;
+	}
+
+	/** Streams output to the handler; the result string is then empty. */
+	public void setOutputHandler(OutputHandler outputHandler) {
+		this.outputHandler = outputHandler;
+	}
+
+	/**
+	 * Hands over a connection slot for the host. The task reports refused
+	 * connects to it, retries them after the host's backoff and releases it
+	 * once done.
+	 */
+	public void setPermit(HostAdmissionControl.Permit permit) {
+		this.permit = permit;
+	}
+
+	/** Keeps the last bytes of stderr, up to the given capacity, in the result. */
+	public void setStderrCapacity(int stderrCapacity) {
+		this.stderrCapacity = stderrCapacity;
+	}
+
+	/** Gives the connection slot back; safe to call more than once or without a permit. */
+	public void releasePermit() {
+		if (permit != null) {
+			permit.release();
+		}
+	}
+
+	public CommandTransport getTransport() {
+		return transport;
+	}
+
+	public String getUserName() {
+		return transport.getUserName();
+	}
+
+	public String getHostName() {
+		return transport.getHostName();
+	}
+
+	public int getPort() {
+		return transport.getPort();
+	}
+
+	/** Wall clock time of the last {@link #call()}, including connect and output transfer. */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/** Phase breakdown of the last {@link #call()}, also attached to its result. */
+	public PhaseTimings getTimings() {
+		return timings;
+	}
+
+	@Override
+	public Result call() throws Exception {
+		final long startNanos = System.nanoTime();
+		ScheduledFuture<?> timeout = null;
+		if (timeoutMillis > 0 && watchdog != null) {
+			timeout = watchdog.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timedOut = true;
+					kill();
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		final CommandProcess started = transport.newProcess(command);
+		process = started;
+		timings = new PhaseTimings();
+		try {
+			if (killed) {
+				started.kill();
+			}
+			return executeCommand(started);
+		} catch (Exception e) {
+			if (timedOut) {
+				final Result result = new Result("Command timed out after " + timeoutMillis + " ms: " + e.getMessage(),
+						TIMEOUT_EXIT_STATUS);
+				result.setTimings(timings);
+				return result;
+			}
+			throw e;
+		} finally {
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			started.close();
+			releasePermit();
+			elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		}
+	}
+
+	/** Terminates the command; on SSH it is sent SIGKILL and its channel is closed. */
+	public void kill() {
+		killed = true;
+		final CommandProcess current = process;
+		if (current != null) {
+			current.kill();
+		}
+	}
+
+	private Result executeCommand(CommandProcess started) throws Exception {
+		final TailBuffer stderr = stderrCapacity > 0 ? new TailBuffer(stderrCapacity) : null;
+		started.start(stderr, permit, timings);
+		final long startedNanos = System.nanoTime();
+		firstOutputNanos = 0;
+		final InputStream commandOutput = started.getInputStream();
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		if (outputHandler != null) {
+			streamOutput(commandOutput, buffer);
+			return finish(new Result("", exitStatus(started)), stderr, startedNanos);
+		}
+		final ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
+		try {
+			int read;
+			while ((read = commandOutput.read(buffer)) != -1) {
+				if (firstOutputNanos == 0 && read > 0) {
+					firstOutputNanos = System.nanoTime();
+				}
+				outputBuffer.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			if (!killed) {
+				throw e;
+			}
+		}
+		final String output = new String(outputBuffer.toByteArray(), StandardCharsets.UTF_8);
+		return finish(new Result(output, exitStatus(started)), stderr, startedNanos);
+	}
+
+	private int exitStatus(CommandProcess started) throws InterruptedException {
+		return timedOut ? TIMEOUT_EXIT_STATUS : started.getExitStatus();
+	}
+
+	/**
+	 * Hands output to the handler with blocking reads. A piped stream such as
+	 * JSch's only wakes its writer when the reader blocks, so polling
+	 * available() stalls the transfer for up to a second per pipe fill. The
+	 * idle calls run on the watchdog instead, under the handler's lock.
+	 */
+	private void streamOutput(InputStream commandOutput, byte[] buffer) throws Exception {
+		final boolean[] active = { true };
+		final IOException[] idleFailure = new IOException[1];
+		ScheduledFuture<?> idle = null;
+		if (watchdog != null) {
+			idle = watchdog.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (outputHandler) {
+						if (!active[0]) {
+							return;
+						}
+						try {
+							outputHandler.onIdle();
+						} catch (IOException e) {
+							idleFailure[0] = e;
+							kill();
+						}
+					}
+				}
+			}, STREAM_IDLE_MILLIS, STREAM_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		try {
+			int read;
+			while ((read = commandOutput.read(buffer)) != -1) {
+				if (firstOutputNanos == 0 && read > 0) {
+					firstOutputNanos = System.nanoTime();
+				}
+				synchronized (outputHandler) {
+					outputHandler.onOutput(buffer, 0, read);
+				}
+			}
+		} catch (IOException e) {
+			if (!killed) {
+				throw e;
+			}
+		} finally {
+			if (idle != null) {
+				idle.cancel(false);
+			}
+			synchronized (outputHandler) {
+				active[0] = false;
+			}
+		}
+		if (idleFailure[0] != null) {
+			throw idleFailure[0];
+		}
+	}
+
+	private Result finish(Result result, TailBuffer stderr, long startedNanos) {
+		final long endNanos = System.nanoTime();
+		if (firstOutputNanos == 0) {
+			timings.add(PhaseTimings.Phase.EXECUTION, endNanos - startedNanos);
+		} else {
+			timings.add(PhaseTimings.Phase.EXECUTION, firstOutputNanos - startedNanos);
+			timings.add(PhaseTimings.Phase.TRANSFER, endNanos - firstOutputNanos);
+		}
+		result.setTimings(timings);
+		if (stderr != null) {
+			result.setErrorString(stderr.toString());
+			result.setErrorTruncated(stderr.isTruncated());
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Per host latency histograms of every {@link PhaseTimings.Phase}, so a slow
+ * network (connect), a slow or overloaded sshd (auth, channel) and slow
+ * commands (execution, transfer) can be told apart. Recording is lock free;
+ * {@link #report} hands out what was recorded since the previous report.
+ * <p>
+ * The connection gauges come from {@link HostAdmissionControl}. Sessions are
+ * not pooled, every command opens its own and closes it when done, so there
+ * are no idle or evicted sessions to report: active connections are the
+ * open sessions, and waiting requests and refused connects show a host
+ * running out of them.
+ */
+public class RemoteExecutionMetrics {
+
+	/** Two significant digits keep each histogram at a few KB with 1% error. */
+	private static final int SIGNIFICANT_DIGITS = 2;
+	private static final double MICROS_PER_MILLI = 1000.0;
+
+	private final ConcurrentMap<String, Recorder[]> recorders = new ConcurrentHashMap<String, Recorder[]>();
+
+	public void record(String host, PhaseTimings timings) {
+		Recorder[] phases = recorders.get(host);
+		if (phases == null) {
+			final Recorder[] created = new Recorder[PhaseTimings.Phase.values().length];
+			for (int i = 0; i < created.length; i++) {
+				created[i] = new Recorder(SIGNIFICANT_DIGITS);
+			}
+			phases = recorders.putIfAbsent(host, created);
+			if (phases == null) {
+				phases = created;
+			}
+		}
+		for (PhaseTimings.Phase phase : PhaseTimings.Phase.values()) {
+			final long nanos = timings.getNanos(phase);
+			// phases the transport does not have, such as connect for local commands
+			if (nanos > 0) {
+				phases[phase.ordinal()].recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+			}
+		}
+	}
+
+	/**
+	 * One line per host with count and p50/p90/p99/max in milliseconds of
+	 * every phase recorded since the last report, followed by the host's
+	 * admission gauges. Hosts without new executions are left out unless
+	 * they have connections or waiters.
+	 */
+	public String report(List<HostAdmissionControl.HostStatus> status) {
+		final Map<String, StringBuilder> lines = new TreeMap<String, StringBuilder>();
+		for (Map.Entry<String, Recorder[]> entry : recorders.entrySet()) {
+			final StringBuilder line = new StringBuilder();
+			for (PhaseTimings.Phase phase : PhaseTimings.Phase.values()) {
+				final Histogram histogram = entry.getValue()[phase.ordinal()].getIntervalHistogram();
+				if (histogram.getTotalCount() == 0) {
+					continue;
+				}
+				line.append(String.format(Locale.ROOT, " %s[n=%d p50=%.1f p90=%.1f p99=%.1f max=%.1f]",
+						phase.getName(), histogram.getTotalCount(), millis(histogram.getValueAtPercentile(50)),
+						millis(histogram.getValueAtPercentile(90)), millis(histogram.getValueAtPercentile(99)),
+						millis(histogram.getMaxValue())));
+			}
+			if (line.length() > 0) {
+				lines.put(entry.getKey(), line);
+			}
+		}
+		for (HostAdmissionControl.HostStatus host : status) {
+			StringBuilder line = lines.get(host.getHost());
+			if (line == null) {
+				if (host.getActiveConnections() == 0 && host.getWaiting() == 0) {
+					continue;
+				}
+				line = new StringBuilder();
+				lines.put(host.getHost(), line);
+			}
+			line.append(" active=").append(host.getActiveConnections()).append(" waiting=").append(host.getWaiting())
+					.append(" refused=").append(host.getRefusedConnects()).append(" backoff=")
+					.append(host.getBackoffMillis()).append("ms");
+		}
+		final StringBuilder report = new StringBuilder("Remote execution latency in ms since last report:");
+		if (lines.isEmpty()) {
+			report.append(" no executions");
+		}
+		for (Map.Entry<String, StringBuilder> line : lines.entrySet()) {
+			report.append('\n').append(line.getKey()).append(':').append(line.getValue());
+		}
+		return report.toString();
+	}
+
+	private static double millis(long micros) {
+		return micros / MICROS_PER_MILLI;
+	}
+
+}
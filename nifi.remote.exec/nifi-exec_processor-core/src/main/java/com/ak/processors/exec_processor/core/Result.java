@@ -0,0 +1,61 @@
+package com.ak.processors.exec_processor.core;
+
+public class Result {
+
+	public String getResultString() {
+		return resultString;
+	}
+	public void setResultString(String resultString) {
+		this.resultString = resultString;
+	}
+	public int getExitStatus() {
+		return exitStatus;
+	}
+	public void setExitStatus(int exitStatus) {
+		this.exitStatus = exitStatus;
+	}
+	public String getErrorString() {
+		return errorString;
+	}
+	public void setErrorString(String errorString) {
+		this.errorString = errorString;
+	}
+	public boolean isCached() {
+		return cached;
+	}
+	public void setCached(boolean cached) {
+		this.cached = cached;
+	}
+	/** Phase breakdown of the execution, null for results that did not come from a run such as cache hits. */
+	public PhaseTimings getTimings() {
+		return timings;
+	}
+	public void setTimings(PhaseTimings timings) {
+		this.timings = timings;
+	}
+	public boolean isErrorTruncated() {
+		return errorTruncated;
+	}
+	public void setErrorTruncated(boolean errorTruncated) {
+		this.errorTruncated = errorTruncated;
+	}
+	
+	
+	private String resultString;
+	private int exitStatus;
+	private String errorString = "";
+	private boolean errorTruncated;
+	private boolean cached;
+	private PhaseTimings timings;
+	public Result(String resultString, int exitStatus) {
+		super();
+		this.resultString = resultString;
+		this.exitStatus = exitStatus;
+	}
+	
+	public boolean isExecutionSuccessful() {
+		return exitStatus==0?true:false;
+	}
+	
+	
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches successful results of idempotent commands for a fixed time, evicting
+ * the least recently used entry once full. Concurrent requests for the same
+ * key that miss the cache share a single execution.
+ */
+public class ResultCache {
+
+	private final long ttlNanos;
+	private final Map<String, CachedResult> entries;
+	private final ConcurrentMap<String, FutureTask<Result>> inFlight = new ConcurrentHashMap<String, FutureTask<Result>>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	public ResultCache(long ttlMillis, final int maxEntries) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public static String key(String userName, String hostName, int port, String command) {
+		return userName + "@" + hostName + ":" + port + "\n" + command;
+	}
+
+	/**
+	 * Returns the cached result for the key or runs the loader, unless another
+	 * thread is already running it for the same key, in which case that
+	 * execution's result is returned. Only results with exit status 0 are
+	 * cached; a null result from the loader is passed through uncached.
+	 */
+	public Result get(String key, Callable<Result> loader) throws Exception {
+		final Result cached = getIfPresent(key);
+		if (cached != null) {
+			return cached;
+		}
+		final FutureTask<Result> created = new FutureTask<Result>(loader);
+		final FutureTask<Result> running = inFlight.putIfAbsent(key, created);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			return await(running);
+		}
+		misses.incrementAndGet();
+		try {
+			created.run();
+			final Result result = await(created);
+			if (result != null && result.isExecutionSuccessful()) {
+				synchronized (entries) {
+					entries.put(key, new CachedResult(result, System.nanoTime() + ttlNanos));
+				}
+			}
+			return result;
+		} finally {
+			inFlight.remove(key, created);
+		}
+	}
+
+	public Result getIfPresent(String key) {
+		synchronized (entries) {
+			final CachedResult entry = entries.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (System.nanoTime() - entry.expiresAtNanos >= 0) {
+				entries.remove(key);
+				return null;
+			}
+			hits.incrementAndGet();
+			return entry.result;
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/** Requests that missed the cache but shared an execution already in flight. */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private static Result await(FutureTask<Result> task) throws Exception {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	private static final class CachedResult {
+		private final Result result;
+		private final long expiresAtNanos;
+
+		private CachedResult(Result result, long expiresAtNanos) {
+			this.result = result;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Shares one {@link JSch} per private key, passphrase and known_hosts file,
+ * so keys are parsed and decrypted and known_hosts is parsed once instead of
+ * on every connect. The files' modification times are checked on each
+ * lookup and a changed file gives a fresh instance; sessions already
+ * connected keep the old one.
+ * <p>
+ * At most {@value #MAX_CLIENTS} instances are kept, the least recently used
+ * one is evicted first, and {@link #clear()} drops them all, so keys and
+ * passphrases of credentials no longer configured do not stay in memory for
+ * the life of the JVM.
+ */
+final class SshClients {
+
+	static final int MAX_CLIENTS = 64;
+
+	private static final Map<Key, Client> CLIENTS = new LinkedHashMap<Key, Client>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Client> eldest) {
+			return size() > MAX_CLIENTS;
+		}
+	};
+
+	private SshClients() {
+	}
+
+	/**
+	 * @param privateKeyFile private key to offer, or null for password only
+	 * @param passphrase passphrase of the private key, or null if it has none
+	 * @param knownHostsFile known_hosts to verify host keys against, or null
+	 */
+	static JSch get(String privateKeyFile, String passphrase, String knownHostsFile) throws JSchException {
+		final Key key = new Key(privateKeyFile, passphrase, knownHostsFile);
+		synchronized (CLIENTS) {
+			Client client = CLIENTS.get(key);
+			if (client == null || client.isStale()) {
+				client = new Client(key);
+				CLIENTS.put(key, client);
+			}
+			return client.jsch;
+		}
+	}
+
+	/** Drops every shared instance; the next lookups load the files again. */
+	static void clear() {
+		synchronized (CLIENTS) {
+			CLIENTS.clear();
+		}
+	}
+
+	static int size() {
+		synchronized (CLIENTS) {
+			return CLIENTS.size();
+		}
+	}
+
+	private static long lastModified(String file) {
+		return file == null ? 0L : new File(file).lastModified();
+	}
+
+	private static final class Key {
+		private final String privateKeyFile;
+		private final String passphrase;
+		private final String knownHostsFile;
+
+		private Key(String privateKeyFile, String passphrase, String knownHostsFile) {
+			this.privateKeyFile = privateKeyFile;
+			this.passphrase = passphrase;
+			this.knownHostsFile = knownHostsFile;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) obj;
+			return Arrays.equals(new String[] { privateKeyFile, passphrase, knownHostsFile },
+					new String[] { other.privateKeyFile, other.passphrase, other.knownHostsFile });
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(new String[] { privateKeyFile, knownHostsFile });
+		}
+	}
+
+	private static final class Client {
+		private final Key key;
+		private final JSch jsch = new JSch();
+		private final long privateKeyModified;
+		private final long knownHostsModified;
+
+		private Client(Key key) throws JSchException {
+			this.key = key;
+			// read the times first, so a change while loading is picked up by the next lookup
+			this.privateKeyModified = lastModified(key.privateKeyFile);
+			this.knownHostsModified = lastModified(key.knownHostsFile);
+			if (key.privateKeyFile != null) {
+				jsch.addIdentity(key.privateKeyFile,
+						key.passphrase == null ? null : key.passphrase.getBytes(StandardCharsets.UTF_8));
+			}
+			if (key.knownHostsFile != null) {
+				jsch.setKnownHosts(key.knownHostsFile);
+			}
+		}
+
+		private boolean isStale() {
+			return privateKeyModified != lastModified(key.privateKeyFile)
+					|| knownHostsModified != lastModified(key.knownHostsFile);
+		}
+	}
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * Runs commands on an exec channel of a JSch session, one session per command.
+ * Authenticates with a private key, a password or both, key first. Keys and
+ * known_hosts come from a JSch shared through {@link SshClients}, so they are
+ * not parsed again for every connect.
+ */
+public class SshTransport implements CommandTransport {
+
+	private static final String EXEC = "exec";
+	private static final String KILL = "KILL";
+	private static final String STRICT_HOST_KEY_CHECKING = "StrictHostKeyChecking";
+	private static final String NO = "no";
+	private static final String YES = "yes";
+	private static final String PREFERRED_AUTHENTICATIONS = "PreferredAuthentications";
+	private static final String PUBLICKEY = "publickey";
+	private static final String PASSWORD = "password";
+	private static final long EXIT_STATUS_WAIT_MILLIS = 1000;
+
+	private final String hostName;
+	private final int port;
+	private final String userName;
+	private final String password;
+	private final String privateKeyFile;
+	private final String passphrase;
+	private final String knownHostsFile;
+	private final boolean isHostCheckDisabled;
+
+	public SshTransport(String hostName, int port, String userName, String password, boolean isHostCheckDisabled) {
+		this(hostName, port, userName, password, null, null, null, isHostCheckDisabled);
+	}
+
+	/**
+	 * @param password login password, or null for key authentication only
+	 * @param privateKeyFile private key file, or null for password authentication only
+	 * @param passphrase passphrase of the private key, or null if it has none
+	 * @param knownHostsFile known_hosts file the host key must be listed in,
+	 *            or null for JSch's default of rejecting unknown hosts
+	 * @param isHostCheckDisabled accept any host key
+	 */
+	public SshTransport(String hostName, int port, String userName, String password, String privateKeyFile,
+			String passphrase, String knownHostsFile, boolean isHostCheckDisabled) {
+		this.hostName = hostName;
+		this.port = port;
+		this.userName = userName;
+		this.password = password;
+		this.privateKeyFile = privateKeyFile;
+		this.passphrase = passphrase;
+		this.knownHostsFile = knownHostsFile;
+		this.isHostCheckDisabled = isHostCheckDisabled;
+	}
+
+	/**
+	 * Forgets the keys and known_hosts loaded so far, for example once the
+	 * credentials they belong to are no longer configured.
+	 */
+	public static void clearSharedClients() {
+		SshClients.clear();
+	}
+
+	@Override
+	public String getHostName() {
+		return hostName;
+	}
+
+	@Override
+	public int getPort() {
+		return port;
+	}
+
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	@Override
+	public CommandProcess newProcess(String command) {
+		return new SshProcess(command);
+	}
+
+	/** Transports are equal when they log in to the same host as the same user the same way. */
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SshTransport)) {
+			return false;
+		}
+		final SshTransport other = (SshTransport) obj;
+		return port == other.port && isHostCheckDisabled == other.isHostCheckDisabled
+				&& Arrays.equals(new String[] { hostName, userName, password, privateKeyFile, passphrase, knownHostsFile },
+						new String[] { other.hostName, other.userName, other.password, other.privateKeyFile,
+								other.passphrase, other.knownHostsFile });
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(new Object[] { hostName, port, userName });
+	}
+
+	/** sshd drops connections over MaxStartups, the OS refuses them when the backlog is full. */
+	private static boolean isRefused(JSchException e) {
+		final String message = String.valueOf(e.getMessage());
+		return message.contains("Connection refused") || message.contains("Connection reset")
+				|| message.contains("closed by foreign host");
+	}
+
+	/** Plain sockets like JSch's own, timing the TCP connect apart from the SSH handshake. */
+	private static class TimedSocketFactory implements SocketFactory {
+		private long connectNanos;
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			final long startNanos = System.nanoTime();
+			try {
+				return new Socket(host, port);
+			} finally {
+				connectNanos = System.nanoTime() - startNanos;
+			}
+		}
+
+		@Override
+		public InputStream getInputStream(Socket socket) throws IOException {
+			return socket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream(Socket socket) throws IOException {
+			return socket.getOutputStream();
+		}
+	}
+
+	private class SshProcess implements CommandProcess {
+		private final String command;
+		private volatile Session remoteSession;
+		private volatile ChannelExec channel;
+		private volatile boolean killed;
+
+		private SshProcess(String command) {
+			this.command = command;
+		}
+
+		@Override
+		public void start(OutputStream stderr, HostAdmissionControl.Permit permit, PhaseTimings timings)
+				throws Exception {
+			connect(permit, timings);
+			final long openNanos = System.nanoTime();
+			final ChannelExec execChannel = (ChannelExec) remoteSession.openChannel(EXEC);
+			execChannel.setCommand(command);
+			if (stderr != null) {
+				// JSch writes stderr on its session thread straight into this stream, no pipe to drain
+				execChannel.setErrStream(stderr, true);
+			}
+			channel = execChannel;
+			if (killed) {
+				throw new JSchException("Command was killed before it started");
+			}
+			execChannel.connect();
+			timings.add(PhaseTimings.Phase.CHANNEL_OPEN, System.nanoTime() - openNanos);
+		}
+
+		private void connect(HostAdmissionControl.Permit permit, PhaseTimings timings) throws Exception {
+			final JSch jsch = SshClients.get(privateKeyFile, passphrase, isHostCheckDisabled ? null : knownHostsFile);
+			for (int attempt = 0;; attempt++) {
+				remoteSession = jsch.getSession(userName, hostName, port);
+				if (password != null) {
+					remoteSession.setPassword(password);
+				}
+				// only offer what is configured, skipping the gssapi and keyboard-interactive round trips
+				remoteSession.setConfig(PREFERRED_AUTHENTICATIONS, privateKeyFile == null ? PASSWORD
+						: password == null ? PUBLICKEY : PUBLICKEY + "," + PASSWORD);
+				if (isHostCheckDisabled) {
+					remoteSession.setConfig(STRICT_HOST_KEY_CHECKING, NO);
+				} else if (knownHostsFile != null) {
+					remoteSession.setConfig(STRICT_HOST_KEY_CHECKING, YES);
+				}
+				final TimedSocketFactory sockets = new TimedSocketFactory();
+				remoteSession.setSocketFactory(sockets);
+				final long connectNanos = System.nanoTime();
+				try {
+					remoteSession.connect();
+					timings.add(PhaseTimings.Phase.CONNECT, sockets.connectNanos);
+					timings.add(PhaseTimings.Phase.AUTH, System.nanoTime() - connectNanos - sockets.connectNanos);
+					if (permit != null) {
+						permit.onConnected();
+					}
+					return;
+				} catch (JSchException e) {
+					timings.add(PhaseTimings.Phase.CONNECT, sockets.connectNanos);
+					if (permit == null || killed || attempt >= permit.getRefusedRetries() || !isRefused(e)) {
+						throw e;
+					}
+					permit.onRefused();
+				}
+			}
+		}
+
+		@Override
+		public InputStream getInputStream() throws Exception {
+			return channel.getInputStream();
+		}
+
+		@Override
+		public int getExitStatus() throws InterruptedException {
+			// the exit status arrives just before the channel is closed, which may be after stdout EOF
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EXIT_STATUS_WAIT_MILLIS);
+			while (!channel.isClosed() && !killed && System.nanoTime() - deadline < 0) {
+				Thread.sleep(1);
+			}
+			return channel.getExitStatus();
+		}
+
+		/**
+		 * Sends SIGKILL to the remote command and closes the channel and
+		 * session. Servers that ignore signals still see the channel closed,
+		 * which tears down the command's pipes.
+		 */
+		@Override
+		public void kill() {
+			killed = true;
+			final ChannelExec current = channel;
+			if (current != null && current.isConnected()) {
+				try {
+					current.sendSignal(KILL);
+				} catch (Exception e) {
+					// best effort, closing below ends the channel regardless
+				}
+			}
+			close();
+		}
+
+		@Override
+		public void close() {
+			final Channel currentChannel = channel;
+			if (currentChannel != null) {
+				currentChannel.disconnect();
+			}
+			final Session currentSession = remoteSession;
+			if (currentSession != null) {
+				currentSession.disconnect();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits command output into records on a delimiter and hands complete
+ * records on in batches, once a batch holds enough records or once the
+ * batch interval has passed since its first record. Only the current batch
+ * is held in memory, so output of long running commands can be emitted
+ * while they are still running. A record that reaches the maximum record
+ * size without a delimiter is cut there and the rest of it starts the next
+ * record, so output without delimiters cannot fill the heap.
+ */
+public class StreamingOutput implements RemoteCommandTask.OutputHandler {
+
+	/** Receives a batch; the buffer is reused once the call returns. */
+	public interface BatchListener {
+		void onBatch(byte[] buffer, int length, int records) throws IOException;
+	}
+
+	private final byte[] delimiter;
+	private final int maxRecordSize;
+	private final int batchSize;
+	private final long intervalNanos;
+	private final BatchListener listener;
+
+	private byte[] data = new byte[8192];
+	private int size;
+	private int completeSize;
+	private int records;
+	private long batchStartNanos;
+	private int batches;
+
+	/**
+	 * @param maxRecordSize bytes a record may hold, delimiter included,
+	 *            before it is cut
+	 */
+	public StreamingOutput(byte[] delimiter, int maxRecordSize, int batchSize, long intervalMillis,
+			BatchListener listener) {
+		if (delimiter.length == 0) {
+			throw new IllegalArgumentException("Delimiter must not be empty");
+		}
+		if (maxRecordSize < 1) {
+			throw new IllegalArgumentException("Maximum record size must be positive");
+		}
+		this.delimiter = delimiter;
+		this.maxRecordSize = maxRecordSize;
+		this.batchSize = batchSize;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.listener = listener;
+	}
+
+	public int getBatchCount() {
+		return batches;
+	}
+
+	@Override
+	public void onOutput(byte[] buffer, int offset, int length) throws IOException {
+		for (int i = offset; i < offset + length; i++) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+			data[size++] = buffer[i];
+			if (endsWithDelimiter() || size - completeSize >= maxRecordSize) {
+				completeSize = size;
+				if (records++ == 0) {
+					batchStartNanos = System.nanoTime();
+				}
+				if (records >= batchSize) {
+					emit();
+				}
+			}
+		}
+		onIdle();
+	}
+
+	@Override
+	public void onIdle() throws IOException {
+		if (records > 0 && System.nanoTime() - batchStartNanos >= intervalNanos) {
+			emit();
+		}
+	}
+
+	/** Emits whatever is left, including a trailing record without delimiter. */
+	public void finish() throws IOException {
+		if (size > completeSize) {
+			completeSize = size;
+			records++;
+		}
+		if (records > 0) {
+			emit();
+		}
+	}
+
+	private boolean endsWithDelimiter() {
+		if (size - completeSize < delimiter.length) {
+			return false;
+		}
+		for (int i = 0; i < delimiter.length; i++) {
+			if (data[size - delimiter.length + i] != delimiter[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void emit() throws IOException {
+		listener.onBatch(data, completeSize, records);
+		batches++;
+		System.arraycopy(data, completeSize, data, 0, size - completeSize);
+		size -= completeSize;
+		completeSize = 0;
+		records = 0;
+	}
+
+}
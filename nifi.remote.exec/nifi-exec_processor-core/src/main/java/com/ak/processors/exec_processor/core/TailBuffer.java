@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Ring buffer that keeps only the last bytes written to it. Writes never
+ * block, which matters because JSch writes stderr from its session thread:
+ * a slow consumer there would stall stdout of the same connection.
+ */
+public class TailBuffer extends OutputStream {
+
+	private final byte[] ring;
+	private long written;
+
+	public TailBuffer(int capacity) {
+		this.ring = new byte[capacity];
+	}
+
+	@Override
+	public synchronized void write(int b) {
+		if (ring.length == 0) {
+			written++;
+			return;
+		}
+		ring[(int) (written++ % ring.length)] = (byte) b;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) {
+		if (len >= ring.length) {
+			// only the last ring.length bytes survive, copy just those
+			off += len - ring.length;
+			written += len - ring.length;
+			len = ring.length;
+		}
+		while (len > 0) {
+			final int position = (int) (written % ring.length);
+			final int chunk = Math.min(len, ring.length - position);
+			System.arraycopy(b, off, ring, position, chunk);
+			written += chunk;
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	/** Total number of bytes written, including those no longer held. */
+	public synchronized long getWrittenCount() {
+		return written;
+	}
+
+	public synchronized boolean isTruncated() {
+		return written > ring.length;
+	}
+
+	public synchronized byte[] toByteArray() {
+		final int size = (int) Math.min(written, ring.length);
+		final byte[] tail = new byte[size];
+		if (size == 0) {
+			return tail;
+		}
+		final int start = (int) ((written - size) % ring.length);
+		final int first = Math.min(size, ring.length - start);
+		System.arraycopy(ring, start, tail, 0, first);
+		System.arraycopy(ring, 0, tail, first, size - first);
+		return tail;
+	}
+
+	@Override
+	public String toString() {
+		return new String(toByteArray(), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CommandBatchTest {
+
+	@Test
+	public void testEveryCommandGetsItsOwnResult() throws Exception {
+		final List<Result> results = run(new CommandBatch(Arrays.asList("echo a", "echo b >&2; exit 2", "echo c")));
+
+		assertEquals(3, results.size());
+		assertResult("a\n", 0, results.get(0));
+		assertResult("", 2, results.get(1));
+		assertEquals("b\n", results.get(1).getErrorString());
+		assertResult("c\n", 0, results.get(2));
+		assertEquals("", results.get(2).getErrorString());
+	}
+
+	@Test
+	public void testExitAndCdStayInTheirCommand() throws Exception {
+		final List<Result> results = run(new CommandBatch(Arrays.asList("cd / && exit 5", "pwd")));
+
+		assertResult("", 5, results.get(0));
+		assertResult(new File("").getAbsolutePath() + "\n", 0, results.get(1));
+	}
+
+	@Test
+	public void testCommandsRunTheSameWayWithoutTimeout() throws Exception {
+		final List<Result> results = run(new CommandBatch(Arrays.asList("x='it'\\''s'; echo \"$x\"", "echo \"[$x]\"")));
+
+		assertResult("it's\n", 0, results.get(0));
+		assertResult("[]\n", 0, results.get(1));
+	}
+
+	@Test
+	public void testElapsedTimePerCommand() throws Exception {
+		final CommandBatch batch = new CommandBatch(Arrays.asList("true", "sleep 0.3", "true"));
+		run(batch);
+
+		assertTrue(batch.getElapsedMillis(1) >= 250);
+		assertTrue(batch.getElapsedMillis(2) < 250);
+	}
+
+	@Test
+	public void testCommandTimeoutAppliesPerCommand() throws Exception {
+		assumeTrue(new File("/usr/bin/timeout").exists() || new File("/bin/timeout").exists());
+		final CommandBatch batch = new CommandBatch(Arrays.asList("sleep 30", "echo 'quoted'"), 1000);
+		final List<Result> results = run(batch);
+
+		assertResult("", RemoteCommandTask.TIMEOUT_EXIT_STATUS, results.get(0));
+		assertResult("quoted\n", 0, results.get(1));
+	}
+
+	@Test
+	public void testCommandsNotReachedGetTheBatchOutcome() {
+		final CommandBatch batch = new CommandBatch(Arrays.asList("echo a", "echo b"));
+		final List<Result> results = batch.split(new Result("Connection refused", 255));
+
+		assertResult("Connection refused", 255, results.get(0));
+		assertResult("Connection refused", 255, results.get(1));
+	}
+
+	@Test
+	public void testBatchTimeoutCoversEveryCommand() {
+		assertEquals(0, new CommandBatch(Arrays.asList("a", "b")).getTimeoutMillis());
+		// 1.5 s rounds up to 2 s per command, plus a second of slack each
+		assertEquals(6000, new CommandBatch(Arrays.asList("a", "b"), 1500).getTimeoutMillis());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyBatchIsRejected() {
+		new CommandBatch(Arrays.<String> asList());
+	}
+
+	private static List<Result> run(CommandBatch batch) throws Exception {
+		final RemoteCommandTask task = new RemoteCommandTask(new LocalProcessTransport(), batch.getScript(),
+				batch.getTimeoutMillis(), null);
+		task.setOutputHandler(batch);
+		task.setStderrCapacity(1024);
+		batch.start();
+		return batch.split(task.call());
+	}
+
+	private static void assertResult(String output, int exitStatus, Result result) {
+		assertEquals(output, result.getResultString());
+		assertEquals(exitStatus, result.getExitStatus());
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class HostAdmissionControlTest {
+
+	@Test
+	public void testLimitsConnectionsPerHost() throws Exception {
+		final HostAdmissionControl control = new HostAdmissionControl(2, 0, 0);
+		final HostAdmissionControl.Permit first = control.acquire("a", 0);
+		final HostAdmissionControl.Permit second = control.acquire("a", 0);
+
+		assertNotNull(first);
+		assertNotNull(second);
+		assertNull(control.acquire("a", 0));
+		assertNotNull(control.acquire("b", 0));
+
+		first.release();
+		first.release();
+		assertNotNull(control.acquire("a", 0));
+		assertNull(control.acquire("a", 0));
+	}
+
+	@Test
+	public void testStatusCountsActiveConnections() throws Exception {
+		final HostAdmissionControl control = new HostAdmissionControl(3, 0, 0);
+		control.acquire("a", 0);
+		control.acquire("a", 0).release();
+
+		final List<HostAdmissionControl.HostStatus> status = control.getStatus();
+		assertEquals(1, status.size());
+		assertEquals("a", status.get(0).getHost());
+		assertEquals(1, status.get(0).getActiveConnections());
+		assertEquals(0, status.get(0).getRefusedConnects());
+	}
+
+	@Test
+	public void testConnectRateIsLimited() throws Exception {
+		final HostAdmissionControl control = new HostAdmissionControl(10, 10, 0);
+		assertNotNull(control.acquire("a", 0));
+		// the next connect slot is 100 ms away
+		assertNull(control.acquire("a", 0));
+
+		final long start = System.nanoTime();
+		assertNotNull(control.acquire("a", 1000));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+	}
+
+	@Test
+	public void testRefusedConnectsBackOff() throws Exception {
+		final HostAdmissionControl control = new HostAdmissionControl(10, 0, 3);
+		final HostAdmissionControl.Permit permit = control.acquire("a", 0);
+		assertEquals(3, permit.getRefusedRetries());
+
+		final long start = System.nanoTime();
+		permit.onRefused();
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+		assertEquals(1, control.getStatus().get(0).getRefusedConnects());
+
+		// the backoff doubles while the host keeps refusing
+		final long retry = System.nanoTime();
+		permit.onRefused();
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - retry) >= 200);
+		assertEquals(2, control.getStatus().get(0).getRefusedConnects());
+		permit.onConnected();
+		permit.release();
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RemoteCommandTaskTest {
+
+	private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+
+	@After
+	public void shutdown() {
+		watchdog.shutdownNow();
+	}
+
+	@Test
+	public void testCollectsOutputAndExitStatus() throws Exception {
+		final RemoteCommandTask task = new RemoteCommandTask(new LocalProcessTransport(),
+				"echo out; echo err >&2; exit 3", 0, watchdog);
+		task.setStderrCapacity(64);
+		final Result result = task.call();
+
+		assertEquals("out\n", result.getResultString());
+		assertEquals(3, result.getExitStatus());
+		assertEquals("err\n", result.getErrorString());
+		assertNotNull(result.getTimings());
+	}
+
+	@Test
+	public void testStderrKeepsTheTail() throws Exception {
+		final RemoteCommandTask task = new RemoteCommandTask(new LocalProcessTransport(), "printf 0123456789 >&2", 0,
+				watchdog);
+		task.setStderrCapacity(4);
+		final Result result = task.call();
+
+		assertEquals("6789", result.getErrorString());
+		assertTrue(result.isErrorTruncated());
+	}
+
+	@Test
+	public void testTimeoutKillsCommand() throws Exception {
+		final RemoteCommandTask task = new RemoteCommandTask(new LocalProcessTransport(), "sleep 30", 200, watchdog);
+		final Result result = task.call();
+
+		assertEquals(RemoteCommandTask.TIMEOUT_EXIT_STATUS, result.getExitStatus());
+		assertTrue(task.isTimedOut());
+		assertTrue(task.getElapsedMillis() < 10000);
+	}
+
+	@Test
+	public void testOutputGoesToHandler() throws Exception {
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final RemoteCommandTask task = new RemoteCommandTask(new LocalProcessTransport(), "echo a; echo b", 0, watchdog);
+		task.setOutputHandler(new RemoteCommandTask.OutputHandler() {
+			@Override
+			public void onOutput(byte[] buffer, int offset, int length) {
+				received.write(buffer, offset, length);
+			}
+
+			@Override
+			public void onIdle() {
+			}
+		});
+		final Result result = task.call();
+
+		assertEquals("", result.getResultString());
+		assertEquals("a\nb\n", new String(received.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testPermitIsReleased() throws Exception {
+		final HostAdmissionControl control = new HostAdmissionControl(1, 0, 0);
+		final RemoteCommandTask task = new RemoteCommandTask(new LocalProcessTransport(), "true", 0, watchdog);
+		task.setPermit(control.acquire(task.getHostName(), 0));
+		task.call();
+
+		assertNotNull(control.acquire(task.getHostName(), 0));
+	}
+
+	@Test
+	public void testPermitIsReleasedWhenStartFails() throws Exception {
+		final HostAdmissionControl control = new HostAdmissionControl(1, 0, 0);
+		final RemoteCommandTask task = new RemoteCommandTask(new UnreachableTransport(), "true", 0, watchdog);
+		task.setPermit(control.acquire(task.getHostName(), 0));
+		try {
+			task.call();
+			fail();
+		} catch (IOException e) {
+			assertEquals("unreachable", e.getMessage());
+		}
+
+		assertNotNull(control.acquire(task.getHostName(), 0));
+	}
+
+	@Test(expected = IOException.class)
+	public void testKilledTaskDoesNotStart() throws Exception {
+		final RemoteCommandTask task = new RemoteCommandTask(new LocalProcessTransport(), "echo never", 0, watchdog);
+		task.kill();
+		task.call();
+	}
+
+	private static class UnreachableTransport implements CommandTransport {
+		@Override
+		public String getHostName() {
+			return "unreachable";
+		}
+
+		@Override
+		public int getPort() {
+			return 22;
+		}
+
+		@Override
+		public String getUserName() {
+			return "nifi";
+		}
+
+		@Override
+		public CommandProcess newProcess(String command) {
+			return new CommandProcess() {
+				@Override
+				public void start(OutputStream stderr, HostAdmissionControl.Permit permit, PhaseTimings timings)
+						throws Exception {
+					throw new IOException("unreachable");
+				}
+
+				@Override
+				public InputStream getInputStream() {
+					throw new IllegalStateException();
+				}
+
+				@Override
+				public int getExitStatus() {
+					return -1;
+				}
+
+				@Override
+				public void kill() {
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+}
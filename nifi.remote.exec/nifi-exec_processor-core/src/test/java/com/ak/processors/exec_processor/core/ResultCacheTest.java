@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ResultCacheTest {
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	@Test
+	public void testCachesSuccessfulResults() throws Exception {
+		final ResultCache cache = new ResultCache(60000, 10);
+		final Result first = cache.get("a", loader(0));
+		final Result second = cache.get("a", loader(0));
+
+		assertSame(first, second);
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void testFailedResultsAreNotCached() throws Exception {
+		final ResultCache cache = new ResultCache(60000, 10);
+		cache.get("a", loader(1));
+		cache.get("a", loader(1));
+
+		assertEquals(2, loads.get());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLoaderExceptionIsThrownAndNotCached() throws Exception {
+		final ResultCache cache = new ResultCache(60000, 10);
+		try {
+			cache.get("a", new Callable<Result>() {
+				@Override
+				public Result call() throws Exception {
+					throw new IOException("unreachable");
+				}
+			});
+			fail();
+		} catch (IOException e) {
+			assertEquals("unreachable", e.getMessage());
+		}
+		cache.get("a", loader(0));
+
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testEntriesExpire() throws Exception {
+		final ResultCache cache = new ResultCache(10, 10);
+		cache.get("a", loader(0));
+		Thread.sleep(20);
+
+		assertNull(cache.getIfPresent("a"));
+		cache.get("a", loader(0));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		final ResultCache cache = new ResultCache(60000, 2);
+		cache.get("a", loader(0));
+		cache.get("b", loader(0));
+		cache.getIfPresent("a");
+		cache.get("c", loader(0));
+
+		assertEquals(2, cache.size());
+		assertNull(cache.getIfPresent("b"));
+		assertEquals("a", cache.getIfPresent("a").getResultString());
+	}
+
+	@Test
+	public void testConcurrentMissesShareOneExecution() throws Exception {
+		final ResultCache cache = new ResultCache(60000, 10);
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final Future<Result> first = executor.submit(new Callable<Result>() {
+				@Override
+				public Result call() throws Exception {
+					return cache.get("a", new Callable<Result>() {
+						@Override
+						public Result call() throws Exception {
+							loading.countDown();
+							release.await();
+							return new Result("slow", 0);
+						}
+					});
+				}
+			});
+			loading.await();
+			final Future<Result> second = executor.submit(new Callable<Result>() {
+				@Override
+				public Result call() throws Exception {
+					return cache.get("a", loader(0));
+				}
+			});
+			while (cache.getCoalescedCount() == 0) {
+				Thread.sleep(1);
+			}
+			release.countDown();
+
+			assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+			assertEquals(0, loads.get());
+			assertEquals(1, cache.getMissCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testKeyNamesUserHostPortAndCommand() {
+		assertEquals("nifi@host:22\nuptime", ResultCache.key("nifi", "host", 22, "uptime"));
+	}
+
+	private Callable<Result> loader(final int exitStatus) {
+		return new Callable<Result>() {
+			@Override
+			public Result call() {
+				loads.incrementAndGet();
+				return new Result("a", exitStatus);
+			}
+		};
+	}
+
+}
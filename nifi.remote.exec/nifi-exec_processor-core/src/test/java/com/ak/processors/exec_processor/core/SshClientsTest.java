@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SshClientsTest {
+
+	@After
+	public void clear() {
+		SshClients.clear();
+	}
+
+	@Test
+	public void testSharesOneClientPerCredentials() throws Exception {
+		assertSame(SshClients.get(null, "a", null), SshClients.get(null, "a", null));
+		assertNotSame(SshClients.get(null, "a", null), SshClients.get(null, "b", null));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		final Object first = SshClients.get(null, "0", null);
+		for (int i = 1; i <= SshClients.MAX_CLIENTS; i++) {
+			SshClients.get(null, String.valueOf(i), null);
+		}
+
+		assertEquals(SshClients.MAX_CLIENTS, SshClients.size());
+		assertNotSame(first, SshClients.get(null, "0", null));
+	}
+
+	@Test
+	public void testClearDropsEveryClient() throws Exception {
+		final Object client = SshClients.get(null, "a", null);
+		SshTransport.clearSharedClients();
+
+		assertEquals(0, SshClients.size());
+		assertNotSame(client, SshClients.get(null, "a", null));
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StreamingOutputTest {
+
+	private static final byte[] NEWLINE = { '\n' };
+
+	private final List<String> batches = new ArrayList<String>();
+	private final List<Integer> records = new ArrayList<Integer>();
+
+	private final StreamingOutput.BatchListener listener = new StreamingOutput.BatchListener() {
+		@Override
+		public void onBatch(byte[] buffer, int length, int count) {
+			batches.add(new String(buffer, 0, length, StandardCharsets.UTF_8));
+			records.add(count);
+		}
+	};
+
+	@Test
+	public void testEmitsFullBatches() throws IOException {
+		final StreamingOutput output = new StreamingOutput(NEWLINE, 1024, 2, 60000, listener);
+		write(output, "a\nb\nc");
+		assertEquals(1, batches.size());
+		assertEquals("a\nb\n", batches.get(0));
+
+		write(output, "\nd\n");
+		output.finish();
+		assertEquals(2, batches.size());
+		assertEquals("c\nd\n", batches.get(1));
+		assertEquals(2, output.getBatchCount());
+	}
+
+	@Test
+	public void testDelimiterSplitAcrossWrites() throws IOException {
+		final StreamingOutput output = new StreamingOutput(new byte[] { '\r', '\n' }, 1024, 1, 60000, listener);
+		write(output, "a\r");
+		write(output, "\nb\nc\r\n");
+
+		assertEquals(2, batches.size());
+		assertEquals("a\r\n", batches.get(0));
+		assertEquals("b\nc\r\n", batches.get(1));
+	}
+
+	@Test
+	public void testIntervalEmitsPartialBatch() throws Exception {
+		final StreamingOutput output = new StreamingOutput(NEWLINE, 1024, 100, 10, listener);
+		write(output, "a\nb");
+		assertTrue(batches.isEmpty());
+
+		Thread.sleep(20);
+		output.onIdle();
+		assertEquals(1, batches.size());
+		assertEquals("a\n", batches.get(0));
+		assertEquals(1, records.get(0).intValue());
+	}
+
+	@Test
+	public void testFinishEmitsTrailingRecord() throws IOException {
+		final StreamingOutput output = new StreamingOutput(NEWLINE, 1024, 100, 60000, listener);
+		write(output, "a\nb");
+		output.finish();
+
+		assertEquals("a\nb", batches.get(0));
+		assertEquals(2, records.get(0).intValue());
+	}
+
+	@Test
+	public void testRecordWithoutDelimiterIsCut() throws IOException {
+		final StreamingOutput output = new StreamingOutput(NEWLINE, 4, 1, 60000, listener);
+		write(output, "abcdefghij\n");
+		output.finish();
+
+		assertEquals(3, batches.size());
+		assertEquals("abcd", batches.get(0));
+		assertEquals("efgh", batches.get(1));
+		assertEquals("ij\n", batches.get(2));
+	}
+
+	@Test
+	public void testOutputWithoutDelimiterIsNotBufferedWhole() throws IOException {
+		final int[] largest = new int[1];
+		final StreamingOutput output = new StreamingOutput(NEWLINE, 1024, 10, 60000,
+				new StreamingOutput.BatchListener() {
+					@Override
+					public void onBatch(byte[] buffer, int length, int count) {
+						largest[0] = Math.max(largest[0], length);
+					}
+				});
+		final byte[] chunk = new byte[8192];
+		for (int i = 0; i < 1024; i++) {
+			output.onOutput(chunk, 0, chunk.length);
+		}
+		output.finish();
+
+		assertEquals(1024 * 10, largest[0]);
+		assertEquals(1024 * 8192 / (1024 * 10) + 1, output.getBatchCount());
+	}
+
+	private static void write(StreamingOutput output, String text) throws IOException {
+		final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		output.onOutput(bytes, 0, bytes.length);
+	}
+
+}
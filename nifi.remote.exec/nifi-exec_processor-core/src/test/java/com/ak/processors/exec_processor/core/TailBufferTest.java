@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class TailBufferTest {
+
+	@Test
+	public void testKeepsEverythingWithinCapacity() {
+		final TailBuffer buffer = new TailBuffer(8);
+		buffer.write(bytes("abc"), 0, 3);
+		buffer.write('d');
+
+		assertEquals("abcd", buffer.toString());
+		assertEquals(4, buffer.getWrittenCount());
+		assertFalse(buffer.isTruncated());
+	}
+
+	@Test
+	public void testKeepsOnlyTheLastBytes() {
+		final TailBuffer buffer = new TailBuffer(4);
+		buffer.write(bytes("abc"), 0, 3);
+		buffer.write(bytes("defgh"), 1, 3);
+		buffer.write('x');
+
+		assertEquals("efgx", buffer.toString());
+		assertEquals(7, buffer.getWrittenCount());
+		assertTrue(buffer.isTruncated());
+	}
+
+	@Test
+	public void testWriteLargerThanCapacity() {
+		final TailBuffer buffer = new TailBuffer(4);
+		buffer.write('a');
+		buffer.write(bytes("0123456789"), 0, 10);
+
+		assertArrayEquals(bytes("6789"), buffer.toByteArray());
+		assertEquals(11, buffer.getWrittenCount());
+	}
+
+	@Test
+	public void testSingleByteWritesWrapAround() {
+		final TailBuffer buffer = new TailBuffer(3);
+		for (byte b : bytes("abcdefg")) {
+			buffer.write(b);
+		}
+
+		assertEquals("efg", buffer.toString());
+	}
+
+	@Test
+	public void testZeroCapacityOnlyCounts() {
+		final TailBuffer buffer = new TailBuffer(0);
+		buffer.write(bytes("abc"), 0, 3);
+		buffer.write('d');
+
+		assertEquals(0, buffer.toByteArray().length);
+		assertEquals(4, buffer.getWrittenCount());
+		assertTrue(buffer.isTruncated());
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -16,86 +16,175 @@
  */
 package com.ak.processors.exec_processor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.Reader;
 import java.io.StringWriter;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
+import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.nifi.annotation.behavior.Restricted;
 import org.apache.nifi.annotation.behavior.Restriction;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.RequiredPermission;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 
-import com.jcraft.jsch.Channel;
-import com.jcraft.jsch.ChannelExec;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.Session;
+import com.ak.processors.exec_processor.core.CommandBatch;
+import com.ak.processors.exec_processor.core.CommandTransport;
+import com.ak.processors.exec_processor.core.HostAdmissionControl;
+import com.ak.processors.exec_processor.core.LocalProcessTransport;
+import com.ak.processors.exec_processor.core.PhaseTimings;
+import com.ak.processors.exec_processor.core.RemoteCommandTask;
+import com.ak.processors.exec_processor.core.RemoteExecutionMetrics;
+import com.ak.processors.exec_processor.core.Result;
+import com.ak.processors.exec_processor.core.ResultCache;
+import com.ak.processors.exec_processor.core.SshTransport;
+import com.ak.processors.exec_processor.core.StreamingOutput;
 
-@Tags({ "ssh", "jsch", "remote", "execute", "command" })
-@CapabilityDescription("Remote Login to a machine, executes the user specified command and returns the result as a flowfile or attribute based on user's choice. For commands that do not produce a result, an empty flow file/attribute")
+@Tags({ "ssh", "jsch", "remote", "execute", "command", "publickey" })
+@CapabilityDescription("Remote Login to a machine, executes the user specified command and returns the result as a flowfile or attribute based on user's choice. For commands that do not produce a result, an empty flow file/attribute. "
+		+ "In asynchronous mode commands run on a dedicated executor and their results are transferred on later triggers, so long running commands do not hold NiFi threads. "
+		+ "Given a host list, the command runs on all hosts in parallel and the results are emitted per host or as a single JSON record set. "
+		+ "With Stream Output enabled, output is split into records and emitted in batches while the command is still running. "
+		+ "Connections are limited per host; flowfiles for a busy host wait or go back to the queue instead of failing. "
+		+ "The tail of the command's standard error is kept in a fixed size buffer and written to an attribute or to the stderr relationship. "
+		+ "Results of idempotent commands can be cached per host, user and command. "
+		+ "With the Local transport the command runs on the NiFi host itself instead of over SSH. "
+		+ "With a Batch Size above 1, the commands of several flowfiles for the same host run in one invocation. "
+		+ "The time of every execution is broken down into connect, auth, channel open, execution and output transfer, "
+		+ "summed up in counters and, with a Metrics Report Interval, logged as per host percentiles.")
 @WritesAttributes({
 		@WritesAttribute(attribute = "remote.execution.time", description = "Time it took to execute the command"),
 		@WritesAttribute(attribute = "remote.execution.result", description = "Result of the command, if successful"),
 		@WritesAttribute(attribute = "remote.execution.exitcode", description = "Exit Code from the remote execution command"),
-		@WritesAttribute(attribute = "remote.execution.error", description = "If possible to grab the erros, publish the error message of a failed command") })
-
+		@WritesAttribute(attribute = "remote.execution.error", description = "If possible to grab the erros, publish the error message of a failed command"),
+		@WritesAttribute(attribute = "remote.execution.host", description = "Host the command ran on, when running against a host list"),
+		@WritesAttribute(attribute = "remote.execution.host.count", description = "Number of hosts the command ran on, when running against a host list"),
+		@WritesAttribute(attribute = "remote.execution.failure.count", description = "Number of hosts on which the command failed, when running against a host list"),
+		@WritesAttribute(attribute = "remote.execution.stream.index", description = "Sequence number of a streamed output batch, starting at 0"),
+		@WritesAttribute(attribute = "remote.execution.stream.records", description = "Number of records in a streamed output batch"),
+		@WritesAttribute(attribute = "remote.execution.stream.batches", description = "Number of batches streamed for the original flowfile"),
+		@WritesAttribute(attribute = "remote.execution.stderr", description = "The last Stderr Buffer Size bytes of the command's standard error, if any"),
+		@WritesAttribute(attribute = "remote.execution.stderr.truncated", description = "true if standard error was longer than Stderr Buffer Size"),
+		@WritesAttribute(attribute = "remote.execution.cached", description = "true if the result came from the result cache, when the cache is enabled"),
+		@WritesAttribute(attribute = "remote.execution.batch.size", description = "Number of commands that ran in the same invocation, when batching"),
+		@WritesAttribute(attribute = "remote.execution.time.connect", description = "Milliseconds spent on the TCP connect"),
+		@WritesAttribute(attribute = "remote.execution.time.auth", description = "Milliseconds spent on SSH key exchange and authentication"),
+		@WritesAttribute(attribute = "remote.execution.time.channel", description = "Milliseconds spent opening the exec channel or starting the local process"),
+		@WritesAttribute(attribute = "remote.execution.time.execution", description = "Milliseconds from the started command to its first output"),
+		@WritesAttribute(attribute = "remote.execution.time.transfer", description = "Milliseconds from the first output to the end of output") })
+@TriggerWhenEmpty
 @Restricted(restrictions = {
 		@Restriction(requiredPermission = RequiredPermission.EXECUTE_CODE, explanation = "Provides operator the ability to execute arbitrary code on a remote host, provided the user has access to do so.") })
-public class ExecuteRemoteCommand extends AbstractProcessor {
+public class ExecuteRemoteCommand extends AbstractSessionFactoryProcessor {
 
 	private static final String REMOTE_EXECUTION_EXITCODE = "remote.execution.exitcode";
 	private static final String REMOTE_EXECUTION_TIME = "remote.execution.time";
 	private static final String REMOTE_EXECUTION_RESULT = "remote.execution.result";
 	private static final String REMOTE_EXECUTION_ERROR = "remote.execution.error";
-	private static final String STRICT_HOST_KEY_CHECKING = "StrictHostKeyChecking";
-	private static final String EXEC = "exec";
+	private static final String REMOTE_EXECUTION_HOST = "remote.execution.host";
+	private static final String REMOTE_EXECUTION_HOST_COUNT = "remote.execution.host.count";
+	private static final String REMOTE_EXECUTION_FAILURE_COUNT = "remote.execution.failure.count";
+	private static final String REMOTE_EXECUTION_STREAM_INDEX = "remote.execution.stream.index";
+	private static final String REMOTE_EXECUTION_STREAM_RECORDS = "remote.execution.stream.records";
+	private static final String REMOTE_EXECUTION_STREAM_BATCHES = "remote.execution.stream.batches";
+	private static final String REMOTE_EXECUTION_STDERR = "remote.execution.stderr";
+	private static final String REMOTE_EXECUTION_STDERR_TRUNCATED = "remote.execution.stderr.truncated";
+	private static final String REMOTE_EXECUTION_CACHED = "remote.execution.cached";
+	private static final String REMOTE_EXECUTION_BATCH_SIZE = "remote.execution.batch.size";
+	private static final String APPLICATION_JSON = "application/json";
+	private static final String COUNTER_CACHE_HITS = "Result Cache Hits";
+	private static final String COUNTER_CACHE_MISSES = "Result Cache Misses";
+	private static final String COUNTER_EXECUTIONS = "Remote Executions";
+	private static final String COUNTER_PHASE_TIME = "Time in %s (ms)";
+
+	/** Marks a task whose connection slot was taken before it was handed to {@link #execute}. */
+	private static final long ADMITTED = Long.MIN_VALUE;
 	private static final String YES = "yes";
 	private static final String NO = "no";
 	public static final String DESTINATION_ATTRIBUTE = "flowfile-attribute";
 	public static final String DESTINATION_CONTENT = "flowfile-content";
-	
-	private static final String ERROR_CODE_MAPPING="1 - Catchall for general errors\n2 - Misuse of shell builtins (according to Bash documentation)\n126 - Command invoked cannot execute\n127 - command not found\n128 - Invalid argument to exit\n128+n - Fatal error signal 'n'\n130 - Script terminated by Control-C\n255\\* - Exit status out of range";
 
-	private Result result;
+	private static final String ERROR_CODE_MAPPING="1 - Catchall for general errors\n2 - Misuse of shell builtins (according to Bash documentation)\n124 - Command timed out and was killed\n126 - Command invoked cannot execute\n127 - command not found\n128 - Invalid argument to exit\n128+n - Fatal error signal 'n'\n130 - Script terminated by Control-C\n255\\* - Exit status out of range";
+
+	/** How long an idle asynchronous trigger waits for a running command before giving the thread back. */
+	private static final long COLLECT_WAIT_MILLIS = 50;
+
+	static final AllowableValue MODE_SYNCHRONOUS = new AllowableValue("synchronous", "synchronous",
+			"Run the command on the NiFi thread that triggered the processor");
+	static final AllowableValue MODE_ASYNCHRONOUS = new AllowableValue("asynchronous", "asynchronous",
+			"Hand the command to a dedicated executor and transfer the result on a later trigger");
 
-	private JSch jschSSHChannel;
-	private Session remoteSession;
-	private long transferMillis;
-	private boolean isDestinationFlowFile;
-	private boolean isHostCheckDisabled;
-	private Map<String, String> attributeMap;
-	private boolean isExceptionTrue;
+	static final AllowableValue HOSTS_FROM_REMOTE_HOST = new AllowableValue("remote-host", "Remote Host",
+			"Run the command on the single host given by Remote Host");
+	static final AllowableValue HOSTS_FROM_PROPERTY = new AllowableValue("remote-hosts", "Remote Hosts",
+			"Run the command on every host listed in Remote Hosts, which may reference flowfile attributes");
+	static final AllowableValue HOSTS_FROM_CONTENT = new AllowableValue("flowfile-content", "FlowFile Content",
+			"Run the command on every host listed in the flowfile content");
 
-	FlowFile flowFileGenerated;
+	static final AllowableValue OUTPUT_PER_HOST = new AllowableValue("flowfile-per-host", "FlowFile per Host",
+			"Emit one flowfile per host, routed to success or failure by that host's exit code");
+	static final AllowableValue OUTPUT_RECORD_SET = new AllowableValue("record-set", "Record Set",
+			"Emit a single JSON array to success holding host, exit code, output, standard error and time for every host");
+
+	static final AllowableValue TRANSPORT_SSH = new AllowableValue("ssh", "SSH",
+			"Run the command on the remote host over an SSH exec channel");
+	static final AllowableValue TRANSPORT_LOCAL = new AllowableValue("local", "Local",
+			"Run the command on the NiFi host through the system shell; Remote Host is then only used as a label");
+
+	static final AllowableValue STDERR_TO_ATTRIBUTE = new AllowableValue("attribute", "Attribute",
+			"Write the captured standard error to the remote.execution.stderr attribute");
+	static final AllowableValue STDERR_TO_RELATIONSHIP = new AllowableValue("relationship", "stderr Relationship",
+			"Write the captured standard error as content of a flowfile routed to the stderr relationship");
+	static final AllowableValue STDERR_DISCARD = new AllowableValue("discard", "Discard",
+			"Do not capture standard error");
 
 	public static final PropertyDescriptor ALLOW_STRICT_HOSTCHECKING = new PropertyDescriptor.Builder()
 			.name("Allow Strict Host Check").description("Enable/Disable Strict Host Checking").required(true)
@@ -113,7 +202,7 @@ public class ExecuteRemoteCommand extends AbstractProcessor {
 			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
 
 	public static final PropertyDescriptor REMOTE_HOST = new PropertyDescriptor.Builder().name("Remote Host")
-			.displayName("Remote Host").description("Remote hostname").required(true)
+			.displayName("Remote Host").description("Remote hostname. Required unless the hosts come from a host list").required(false)
 			.addValidator(StandardValidators.NON_BLANK_VALIDATOR)
 			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
 
@@ -123,15 +212,168 @@ public class ExecuteRemoteCommand extends AbstractProcessor {
 			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
 
 	public static final PropertyDescriptor REMOTE_USER = new PropertyDescriptor.Builder().name("Remote Username")
-			.displayName("Remote username").description("Remote username").required(true)
+			.displayName("Remote username").description("Remote username. Required for the SSH transport").required(false)
 			.addValidator(StandardValidators.NON_BLANK_VALIDATOR)
 			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
 
 	public static final PropertyDescriptor REMOTE_USERPASSWORD = new PropertyDescriptor.Builder()
-			.name("Remote User Password").displayName("Remote User Password").description("Remote User Password")
-			.required(true).sensitive(true).addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+			.name("Remote User Password").displayName("Remote User Password")
+			.description("Remote User Password. Required for the SSH transport unless a Private Key File is given")
+			.required(false).sensitive(true).addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
+
+	public static final PropertyDescriptor PRIVATE_KEY_FILE = new PropertyDescriptor.Builder()
+			.name("Private Key File").displayName("Private Key File")
+			.description("Private key to authenticate with, tried before the password. The key is parsed once and shared "
+					+ "by all connections until the file changes")
+			.required(false).addValidator(StandardValidators.NON_BLANK_VALIDATOR)
 			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
 
+	public static final PropertyDescriptor PRIVATE_KEY_PASSPHRASE = new PropertyDescriptor.Builder()
+			.name("Private Key Passphrase").displayName("Private Key Passphrase")
+			.description("Passphrase of the Private Key File, if it is encrypted").required(false).sensitive(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
+
+	public static final PropertyDescriptor KNOWN_HOSTS_FILE = new PropertyDescriptor.Builder()
+			.name("Known Hosts File").displayName("Known Hosts File")
+			.description("known_hosts file the remote host key must be listed in when strict host checking is allowed. "
+					+ "It is parsed once and reloaded when it changes")
+			.required(false).addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+			.expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY).build();
+
+	public static final PropertyDescriptor EXECUTION_MODE = new PropertyDescriptor.Builder().name("Execution Mode")
+			.displayName("Execution Mode")
+			.description("Whether the command blocks the triggering NiFi thread or runs on a dedicated executor")
+			.required(true).allowableValues(MODE_SYNCHRONOUS, MODE_ASYNCHRONOUS)
+			.defaultValue(MODE_SYNCHRONOUS.getValue()).build();
+
+	public static final PropertyDescriptor COMMAND_TIMEOUT = new PropertyDescriptor.Builder().name("Command Timeout")
+			.displayName("Command Timeout")
+			.description("Maximum time a command may run. On expiry the remote command is killed and the flowfile is routed to failure with exit code 124. Leave empty for no timeout")
+			.required(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor MAX_ASYNC_COMMANDS = new PropertyDescriptor.Builder()
+			.name("Max Asynchronous Commands").displayName("Max Asynchronous Commands")
+			.description("Maximum number of commands in flight at once in asynchronous mode")
+			.required(true).defaultValue("10").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor HOST_LIST_SOURCE = new PropertyDescriptor.Builder().name("Host List Source")
+			.displayName("Host List Source").description("Where the hosts to run the command on are taken from")
+			.required(true).allowableValues(HOSTS_FROM_REMOTE_HOST, HOSTS_FROM_PROPERTY, HOSTS_FROM_CONTENT)
+			.defaultValue(HOSTS_FROM_REMOTE_HOST.getValue()).build();
+
+	public static final PropertyDescriptor REMOTE_HOSTS = new PropertyDescriptor.Builder().name("Remote Hosts")
+			.displayName("Remote Hosts")
+			.description("Hosts separated by commas, whitespace or new lines, each optionally as host:port. Used when Host List Source is Remote Hosts")
+			.required(false).addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+			.expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES).build();
+
+	public static final PropertyDescriptor FAN_OUT_CONCURRENCY = new PropertyDescriptor.Builder()
+			.name("Fan-out Concurrency").displayName("Fan-out Concurrency")
+			.description("Maximum number of hosts a host list command runs on at the same time")
+			.required(true).defaultValue("16").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor FAN_OUT_OUTPUT = new PropertyDescriptor.Builder().name("Fan-out Output")
+			.displayName("Fan-out Output").description("How results are emitted when running against a host list")
+			.required(true).allowableValues(OUTPUT_PER_HOST, OUTPUT_RECORD_SET)
+			.defaultValue(OUTPUT_PER_HOST.getValue()).build();
+
+	public static final PropertyDescriptor STREAM_OUTPUT = new PropertyDescriptor.Builder().name("Stream Output")
+			.displayName("Stream Output")
+			.description("Emit the output in batches to success while the command is still running, instead of once when it ends. "
+					+ "Requires synchronous execution against a single Remote Host. Streaming commands are killed when the processor is stopped")
+			.required(true).allowableValues("true", "false").defaultValue("false").build();
+
+	public static final PropertyDescriptor OUTPUT_DELIMITER = new PropertyDescriptor.Builder().name("Output Delimiter")
+			.displayName("Output Delimiter")
+			.description("Delimiter that separates records in streamed output. The escapes \\n, \\r and \\t are supported")
+			.required(true).defaultValue("\\n").addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor STREAM_BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Stream Batch Size").displayName("Stream Batch Size")
+			.description("Maximum number of records in a streamed flowfile")
+			.required(true).defaultValue("1000").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor STREAM_BATCH_INTERVAL = new PropertyDescriptor.Builder()
+			.name("Stream Batch Interval").displayName("Stream Batch Interval")
+			.description("Maximum time a record waits before its batch is emitted, even if the batch is not full")
+			.required(true).defaultValue("1 sec").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor STREAM_MAX_RECORD_SIZE = new PropertyDescriptor.Builder()
+			.name("Stream Max Record Size").displayName("Stream Max Record Size")
+			.description("Maximum size of a streamed record. Output that reaches it without an Output Delimiter is cut "
+					+ "into records of this size, so only a bounded amount of it is held in memory")
+			.required(true).defaultValue("1 MB")
+			.addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE)).build();
+
+	public static final PropertyDescriptor MAX_CONNECTIONS_PER_HOST = new PropertyDescriptor.Builder()
+			.name("Max Connections Per Host").displayName("Max Connections Per Host")
+			.description("Maximum number of concurrent connections to a single host. Keep it at or below the host's sshd MaxStartups")
+			.required(true).defaultValue("10").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor MAX_CONNECT_RATE = new PropertyDescriptor.Builder()
+			.name("Max Connect Rate Per Host").displayName("Max Connect Rate Per Host")
+			.description("Maximum number of new connections per second to a single host. Leave empty for no limit")
+			.required(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor ADMISSION_WAIT = new PropertyDescriptor.Builder()
+			.name("Host Admission Wait").displayName("Host Admission Wait")
+			.description("How long a flowfile waits for a connection slot on a busy host before it is put back on the queue")
+			.required(true).defaultValue("5 sec").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor REFUSED_RETRIES = new PropertyDescriptor.Builder()
+			.name("Refused Connection Retries").displayName("Refused Connection Retries")
+			.description("How often a refused or reset connect is retried. The host is backed off exponentially between retries")
+			.required(true).defaultValue("3").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor STDERR_DESTINATION = new PropertyDescriptor.Builder()
+			.name("Stderr Destination").displayName("Stderr Destination")
+			.description("Where the command's standard error goes")
+			.required(true).allowableValues(STDERR_TO_ATTRIBUTE, STDERR_TO_RELATIONSHIP, STDERR_DISCARD)
+			.defaultValue(STDERR_TO_ATTRIBUTE.getValue()).build();
+
+	public static final PropertyDescriptor STDERR_BUFFER_SIZE = new PropertyDescriptor.Builder()
+			.name("Stderr Buffer Size").displayName("Stderr Buffer Size")
+			.description("Standard error is kept in a ring buffer of this size per command, so only its last bytes are retained")
+			.required(true).defaultValue("64 KB").addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+
+	public static final PropertyDescriptor RESULT_CACHE_TTL = new PropertyDescriptor.Builder()
+			.name("Result Cache TTL").displayName("Result Cache TTL")
+			.description("Enables the result cache: successful results are reused for this long for the same host, port, user and evaluated command. "
+					+ "Only enable it for read-only commands. Leave empty to always run the command")
+			.required(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor RESULT_CACHE_SIZE = new PropertyDescriptor.Builder()
+			.name("Result Cache Size").displayName("Result Cache Size")
+			.description("Maximum number of cached results; the least recently used one is evicted first")
+			.required(true).defaultValue("1000").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor TRANSPORT = new PropertyDescriptor.Builder().name("Transport")
+			.displayName("Transport")
+			.description("How the command is run. Local skips SSH entirely, which is useful when NiFi runs on the target host. "
+					+ "Local commands get no standard input: it is closed when they start, so a command reading it sees end of input at once")
+			.required(true).allowableValues(TRANSPORT_SSH, TRANSPORT_LOCAL).defaultValue(TRANSPORT_SSH.getValue())
+			.build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("Batch Size")
+			.displayName("Batch Size")
+			.description("Maximum number of flowfiles pulled per trigger whose commands run together in one invocation when they "
+					+ "target the same host with the same credentials. Each command runs in its own sh -c, with or without a timeout, and every flowfile "
+					+ "still gets its own output, exit code and time. The Command Timeout applies per command, rounded up "
+					+ "to whole seconds: a command that runs out of time is killed with exit code 124 and the batch goes on with "
+					+ "the next one. This needs the timeout utility on the target; without it only the sum of the commands' "
+					+ "timeouts limits the whole batch, and commands the batch did not get to fail with exit code 124 too. "
+					+ "Requires a POSIX shell on the target and synchronous execution against a single Remote Host")
+			.required(true).defaultValue("1").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor METRICS_REPORT_INTERVAL = new PropertyDescriptor.Builder()
+			.name("Metrics Report Interval").displayName("Metrics Report Interval")
+			.description("How often to log, at INFO level, per host latency percentiles of every execution phase together with "
+					+ "the host's active connections, waiting flowfiles and refused connects. Every command opens its own "
+					+ "session, so there are no idle or evicted sessions to report. Not set means no report")
+			.required(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
 	public static final Relationship FAILURE = new Relationship.Builder().name("Failure").description("Failure")
 			.build();
 
@@ -141,13 +383,38 @@ public class ExecuteRemoteCommand extends AbstractProcessor {
 	public static final Relationship SUCCESS = new Relationship.Builder().name("Success").description("Success")
 			.build();
 
+	public static final Relationship STDERR = new Relationship.Builder().name("stderr")
+			.description("Standard error of the command, when Stderr Destination is the stderr relationship").build();
+
 	private List<PropertyDescriptor> descriptors;
 
-	private Set<Relationship> relationships;
+	private volatile Set<Relationship> relationships;
+
+	private volatile ScheduledExecutorService watchdog;
+	private volatile ExecutorService asyncExecutor;
+	private volatile ExecutorService fanOutExecutor;
+	private volatile String hostListSource;
+	private volatile boolean isLocal;
+	private volatile boolean isStreaming;
+	private volatile int batchSize;
+	private volatile HostAdmissionControl admissionControl;
+	private volatile long admissionWaitMillis;
+	private volatile String stderrDestination;
+	private volatile int stderrCapacity;
+	private volatile ResultCache resultCache;
+	private volatile RemoteExecutionMetrics metrics;
+
+	private final Set<RemoteCommandTask> activeStreams = Collections.newSetFromMap(new ConcurrentHashMap<RemoteCommandTask, Boolean>());
+	private volatile long timeoutMillis;
+	private volatile int maxAsyncCommands;
+
+	private final Set<PendingCommand> pending = Collections.newSetFromMap(new ConcurrentHashMap<PendingCommand, Boolean>());
+	private final BlockingQueue<PendingCommand> completed = new LinkedBlockingQueue<PendingCommand>();
 
 	@Override
 	protected void init(final ProcessorInitializationContext context) {
 		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(TRANSPORT);
 		descriptors.add(DESTINATION);
 		descriptors.add(REMOTE_HOST);
 		descriptors.add(REMOTE_PORT);
@@ -155,6 +422,31 @@ public class ExecuteRemoteCommand extends AbstractProcessor {
 		descriptors.add(COMMAND);
 		descriptors.add(REMOTE_USER);
 		descriptors.add(REMOTE_USERPASSWORD);
+		descriptors.add(PRIVATE_KEY_FILE);
+		descriptors.add(PRIVATE_KEY_PASSPHRASE);
+		descriptors.add(KNOWN_HOSTS_FILE);
+		descriptors.add(EXECUTION_MODE);
+		descriptors.add(COMMAND_TIMEOUT);
+		descriptors.add(MAX_ASYNC_COMMANDS);
+		descriptors.add(HOST_LIST_SOURCE);
+		descriptors.add(REMOTE_HOSTS);
+		descriptors.add(FAN_OUT_CONCURRENCY);
+		descriptors.add(FAN_OUT_OUTPUT);
+		descriptors.add(STREAM_OUTPUT);
+		descriptors.add(OUTPUT_DELIMITER);
+		descriptors.add(STREAM_BATCH_SIZE);
+		descriptors.add(STREAM_BATCH_INTERVAL);
+		descriptors.add(STREAM_MAX_RECORD_SIZE);
+		descriptors.add(MAX_CONNECTIONS_PER_HOST);
+		descriptors.add(MAX_CONNECT_RATE);
+		descriptors.add(ADMISSION_WAIT);
+		descriptors.add(REFUSED_RETRIES);
+		descriptors.add(STDERR_DESTINATION);
+		descriptors.add(STDERR_BUFFER_SIZE);
+		descriptors.add(RESULT_CACHE_TTL);
+		descriptors.add(RESULT_CACHE_SIZE);
+		descriptors.add(BATCH_SIZE);
+		descriptors.add(METRICS_REPORT_INTERVAL);
 
 		this.descriptors = Collections.unmodifiableList(descriptors);
 
@@ -170,64 +462,737 @@ public class ExecuteRemoteCommand extends AbstractProcessor {
 		return this.relationships;
 	}
 
+	@Override
+	public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+		if (descriptor.equals(STDERR_DESTINATION)) {
+			final Set<Relationship> relationships = new HashSet<Relationship>();
+			relationships.add(SUCCESS);
+			relationships.add(FAILURE);
+			relationships.add(ORIGINAL);
+			if (STDERR_TO_RELATIONSHIP.getValue().equals(newValue)) {
+				relationships.add(STDERR);
+			}
+			this.relationships = Collections.unmodifiableSet(relationships);
+		}
+	}
+
 	@Override
 	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
 		return descriptors;
 	}
 
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+		final List<ValidationResult> results = new ArrayList<ValidationResult>();
+		final String source = validationContext.getProperty(HOST_LIST_SOURCE).getValue();
+		if (HOSTS_FROM_REMOTE_HOST.getValue().equals(source) && !validationContext.getProperty(REMOTE_HOST).isSet()) {
+			results.add(new ValidationResult.Builder().subject(REMOTE_HOST.getDisplayName()).valid(false)
+					.explanation("Remote Host is required when Host List Source is Remote Host").build());
+		}
+		if (HOSTS_FROM_PROPERTY.getValue().equals(source) && !validationContext.getProperty(REMOTE_HOSTS).isSet()) {
+			results.add(new ValidationResult.Builder().subject(REMOTE_HOSTS.getDisplayName()).valid(false)
+					.explanation("Remote Hosts is required when Host List Source is Remote Hosts").build());
+		}
+		if (validationContext.getProperty(STREAM_OUTPUT).asBoolean()
+				&& (!HOSTS_FROM_REMOTE_HOST.getValue().equals(source)
+						|| MODE_ASYNCHRONOUS.getValue().equals(validationContext.getProperty(EXECUTION_MODE).getValue()))) {
+			results.add(new ValidationResult.Builder().subject(STREAM_OUTPUT.getDisplayName()).valid(false)
+					.explanation("Stream Output requires synchronous execution against a single Remote Host").build());
+		}
+		if (TRANSPORT_SSH.getValue().equals(validationContext.getProperty(TRANSPORT).getValue())) {
+			if (!validationContext.getProperty(REMOTE_USER).isSet()) {
+				results.add(new ValidationResult.Builder().subject(REMOTE_USER.getDisplayName()).valid(false)
+						.explanation(REMOTE_USER.getDisplayName() + " is required for the SSH transport").build());
+			}
+			if (!validationContext.getProperty(REMOTE_USERPASSWORD).isSet()
+					&& !validationContext.getProperty(PRIVATE_KEY_FILE).isSet()) {
+				results.add(new ValidationResult.Builder().subject(REMOTE_USERPASSWORD.getDisplayName()).valid(false)
+						.explanation("The SSH transport needs a Remote User Password or a Private Key File").build());
+			}
+		} else if (!HOSTS_FROM_REMOTE_HOST.getValue().equals(source)) {
+			results.add(new ValidationResult.Builder().subject(HOST_LIST_SOURCE.getDisplayName()).valid(false)
+					.explanation("The Local transport runs on the NiFi host only and cannot fan out to a host list").build());
+		}
+		if (validationContext.getProperty(BATCH_SIZE).asInteger() > 1
+				&& (!HOSTS_FROM_REMOTE_HOST.getValue().equals(source)
+						|| MODE_ASYNCHRONOUS.getValue().equals(validationContext.getProperty(EXECUTION_MODE).getValue())
+						|| validationContext.getProperty(STREAM_OUTPUT).asBoolean()
+						|| validationContext.getProperty(RESULT_CACHE_TTL).isSet())) {
+			results.add(new ValidationResult.Builder().subject(BATCH_SIZE.getDisplayName()).valid(false)
+					.explanation("Batching requires synchronous execution against a single Remote Host, without streaming or result cache").build());
+		}
+		if (validationContext.getProperty(STREAM_OUTPUT).asBoolean() && validationContext.getProperty(RESULT_CACHE_TTL).isSet()) {
+			results.add(new ValidationResult.Builder().subject(RESULT_CACHE_TTL.getDisplayName()).valid(false)
+					.explanation("Streamed output cannot be cached").build());
+		}
+		return results;
+	}
+
 	@OnScheduled
 	public void onScheduled(final ProcessContext context) {
+		timeoutMillis = context.getProperty(COMMAND_TIMEOUT).isSet()
+				? context.getProperty(COMMAND_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS) : 0L;
+		maxAsyncCommands = context.getProperty(MAX_ASYNC_COMMANDS).asInteger();
+		watchdog = Executors.newSingleThreadScheduledExecutor(newThreadFactory("watchdog"));
+		if (getProperty(context, EXECUTION_MODE).equalsIgnoreCase(MODE_ASYNCHRONOUS.getValue())) {
+			asyncExecutor = newCommandExecutor(maxAsyncCommands);
+		}
+		hostListSource = getProperty(context, HOST_LIST_SOURCE);
+		isLocal = TRANSPORT_LOCAL.getValue().equals(getProperty(context, TRANSPORT));
+		isStreaming = context.getProperty(STREAM_OUTPUT).asBoolean();
+		batchSize = context.getProperty(BATCH_SIZE).asInteger();
+		admissionControl = new HostAdmissionControl(context.getProperty(MAX_CONNECTIONS_PER_HOST).asInteger(),
+				context.getProperty(MAX_CONNECT_RATE).isSet() ? context.getProperty(MAX_CONNECT_RATE).asInteger() : 0,
+				context.getProperty(REFUSED_RETRIES).asInteger());
+		admissionWaitMillis = context.getProperty(ADMISSION_WAIT).asTimePeriod(TimeUnit.MILLISECONDS);
+		stderrDestination = getProperty(context, STDERR_DESTINATION);
+		stderrCapacity = STDERR_DISCARD.getValue().equals(stderrDestination) ? 0
+				: context.getProperty(STDERR_BUFFER_SIZE).asDataSize(DataUnit.B).intValue();
+		resultCache = context.getProperty(RESULT_CACHE_TTL).isSet()
+				? new ResultCache(context.getProperty(RESULT_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS),
+						context.getProperty(RESULT_CACHE_SIZE).asInteger())
+				: null;
+		if (isFanOut()) {
+			fanOutExecutor = Executors.newFixedThreadPool(context.getProperty(FAN_OUT_CONCURRENCY).asInteger(),
+					newThreadFactory("fan-out"));
+		}
+		metrics = new RemoteExecutionMetrics();
+		if (context.getProperty(METRICS_REPORT_INTERVAL).isSet()) {
+			final long reportMillis = context.getProperty(METRICS_REPORT_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+			watchdog.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					getLogger().info(metrics.report(admissionControl.getStatus()));
+				}
+			}, reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+		}
+	}
 
+	@OnUnscheduled
+	public void onUnscheduled() {
+		// streaming commands such as tail -f never end on their own
+		for (RemoteCommandTask task : activeStreams) {
+			task.kill();
+		}
 	}
 
-	@Override
-	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+	@OnStopped
+	public void onStopped(final ProcessContext context) {
+		PendingCommand done;
+		while ((done = completed.poll()) != null) {
+			finish(context, done);
+		}
+		for (PendingCommand command : pending) {
+			for (RemoteCommandTask task : command.tasks) {
+				task.kill();
+			}
+			command.session.rollback();
+		}
+		pending.clear();
+		completed.clear();
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdownNow();
+			asyncExecutor = null;
+		}
+		if (fanOutExecutor != null) {
+			fanOutExecutor.shutdownNow();
+			fanOutExecutor = null;
+		}
+		if (watchdog != null) {
+			watchdog.shutdownNow();
+			watchdog = null;
+		}
+		// drops decrypted keys of credentials that may be gone; running instances reload theirs on the next connect
+		SshTransport.clearSharedClients();
+	}
 
-		result = null;
-		jschSSHChannel = new JSch();
-		attributeMap = new HashMap<String, String>();
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory)
+			throws ProcessException {
+		if (asyncExecutor != null) {
+			onTriggerAsync(context, sessionFactory);
+			return;
+		}
+		final ProcessSession session = sessionFactory.createSession();
+		try {
+			onTrigger(context, sessionFactory, session);
+			session.commit();
+		} catch (final Throwable t) {
+			session.rollback(true);
+			throw t;
+		}
+	}
 
-		FlowFile flowFile = session.get();
+	private void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory,
+			final ProcessSession session) throws ProcessException {
+		if (batchSize > 1) {
+			onTriggerBatch(context, session);
+			return;
+		}
+		final FlowFile flowFile = session.get();
 		if (flowFile == null) {
+			// only asynchronous mode needs empty triggers; a yield here would delay the next flowfile by a whole yield period
+			return;
+		}
+
+		final List<RemoteCommandTask> tasks = createTasks(context, session, flowFile);
+		final long startNanos = System.nanoTime();
+		final Result cached = isFanOut() ? null : getCached(tasks.get(0));
+		if (cached != null) {
+			transferResults(context, session, flowFile, tasks, Collections.singletonList(cached), startNanos);
+			return;
+		}
+		if (!isFanOut() && !admit(tasks.get(0), admissionWaitMillis)) {
+			getLogger().debug("{} is busy, returning {} to the queue", new Object[] { tasks.get(0).getHostName(), flowFile });
+			session.transfer(flowFile);
+			return;
+		}
+		if (isStreaming) {
+			streamResult(context, sessionFactory, session, flowFile, tasks.get(0), startNanos);
+			return;
+		}
+		final List<Result> results = runAll(tasks);
+		transferResults(context, session, flowFile, tasks, results, startNanos);
+	}
+
+	/**
+	 * Runs the commands of up to Batch Size flowfiles, one invocation per
+	 * host and credentials, so tiny commands share connect and channel setup.
+	 */
+	private void onTriggerBatch(final ProcessContext context, final ProcessSession session) {
+		final List<FlowFile> flowFiles = session.get(batchSize);
+		if (flowFiles.isEmpty()) {
 			return;
 		}
+		final Map<CommandTransport, List<FlowFile>> groups = new LinkedHashMap<CommandTransport, List<FlowFile>>();
+		final Map<FlowFile, String> commands = new HashMap<FlowFile, String>();
+		for (FlowFile flowFile : flowFiles) {
+			final RemoteCommandTask task = createTasks(context, session, flowFile).get(0);
+			List<FlowFile> group = groups.get(task.getTransport());
+			if (group == null) {
+				group = new ArrayList<FlowFile>();
+				groups.put(task.getTransport(), group);
+			}
+			group.add(flowFile);
+			commands.put(flowFile, task.getCommand());
+		}
 
-		isDestinationFlowFile = getProperty(context, DESTINATION).equalsIgnoreCase(DESTINATION_CONTENT);
-		isHostCheckDisabled = getProperty(context, ALLOW_STRICT_HOSTCHECKING).equalsIgnoreCase(NO);
+		for (Map.Entry<CommandTransport, List<FlowFile>> group : groups.entrySet()) {
+			final List<FlowFile> members = group.getValue();
+			final List<String> batchCommands = new ArrayList<String>(members.size());
+			for (FlowFile flowFile : members) {
+				batchCommands.add(commands.get(flowFile));
+			}
+			final CommandBatch batch = new CommandBatch(batchCommands, timeoutMillis);
+			final RemoteCommandTask task = new RemoteCommandTask(group.getKey(), batch.getScript(),
+					batch.getTimeoutMillis(), watchdog);
+			task.setOutputHandler(batch);
+			task.setStderrCapacity(stderrCapacity);
+			if (!admit(task, admissionWaitMillis)) {
+				getLogger().debug("{} is busy, returning {} flowfiles to the queue", new Object[] { task.getHostName(), members.size() });
+				session.transfer(members);
+				continue;
+			}
+			batch.start();
+			final List<Result> results = batch.split(runSafely(task));
+			addTimings(session, task.getTimings(), null);
+			for (int i = 0; i < members.size(); i++) {
+				final FlowFile flowFile = session.putAttribute(members.get(i), REMOTE_EXECUTION_BATCH_SIZE,
+						String.valueOf(batch.size()));
+				transferResult(context, session, flowFile, batchCommands.get(i), results.get(i), batch.getElapsedMillis(i));
+			}
+		}
+	}
 
-		String command = getProperty(context, COMMAND, flowFile);
-		String hostName = getProperty(context, REMOTE_HOST, flowFile);
-		int port = Integer.valueOf(getProperty(context, REMOTE_PORT, flowFile));
-		String userName = getProperty(context, REMOTE_USER, flowFile);
-		String password = getProperty(context, REMOTE_USERPASSWORD, flowFile);
+	private void onTriggerAsync(final ProcessContext context, final ProcessSessionFactory sessionFactory) {
+		int progress = 0;
+		PendingCommand done;
+		while ((done = completed.poll()) != null) {
+			finish(context, done);
+			progress++;
+		}
 
-		final long startNanos = System.nanoTime();
+		while (pending.size() < maxAsyncCommands) {
+			final ProcessSession session = sessionFactory.createSession();
+			final FlowFile flowFile = session.get();
+			if (flowFile == null) {
+				break;
+			}
+			final List<RemoteCommandTask> tasks;
+			try {
+				tasks = createTasks(context, session, flowFile);
+			} catch (final RuntimeException e) {
+				// no host, a bad port or a failed expression; the session belongs to no trigger and must not leak,
+				// and a rollback would only hand the same flowfile back to the next pass
+				getLogger().error("Failed to prepare remote command for {}, routing to failure", new Object[] { flowFile }, e);
+				final FlowFile failure = session.putAttribute(flowFile, REMOTE_EXECUTION_ERROR, String.valueOf(e.getMessage()));
+				session.transfer(session.penalize(failure), FAILURE);
+				session.commit();
+				progress++;
+				continue;
+			}
+			final PendingCommand command = new PendingCommand(session, flowFile, tasks);
+			final Result cached = isFanOut() ? null : getCached(command.tasks.get(0));
+			if (cached != null) {
+				transferResults(context, session, flowFile, command.tasks, Collections.singletonList(cached),
+						command.startNanos);
+				session.commit();
+				progress++;
+				continue;
+			}
+			if (!isFanOut() && !admit(command.tasks.get(0), 0)) {
+				session.rollback();
+				break;
+			}
+			pending.add(command);
+			asyncExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					command.results = runAll(command.tasks);
+					completed.offer(command);
+				}
+			});
+			progress++;
+		}
+
+		if (progress > 0) {
+			return;
+		}
+		if (pending.isEmpty()) {
+			context.yield();
+			return;
+		}
+		try {
+			done = completed.poll(COLLECT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (done != null) {
+			finish(context, done);
+		}
+	}
+
+	/**
+	 * Runs the command with its output split into batches, each committed in
+	 * its own session as soon as it is complete. The original flowfile stays
+	 * in the trigger's session until the command ends.
+	 */
+	private void streamResult(final ProcessContext context, final ProcessSessionFactory sessionFactory,
+			final ProcessSession session, FlowFile flowFile, final RemoteCommandTask task, final long startNanos) {
+		final String transitUri = task.getHostName() + ":" + task.getCommand();
+		final Map<String, String> batchAttributes = new HashMap<String, String>(flowFile.getAttributes());
+		batchAttributes.remove(CoreAttributes.UUID.key());
+		batchAttributes.put(REMOTE_EXECUTION_HOST, task.getHostName());
+
+		final StreamingOutput output = new StreamingOutput(unescape(context.getProperty(OUTPUT_DELIMITER).getValue()),
+				context.getProperty(STREAM_MAX_RECORD_SIZE).asDataSize(DataUnit.B).intValue(),
+				context.getProperty(STREAM_BATCH_SIZE).asInteger(),
+				context.getProperty(STREAM_BATCH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS),
+				new StreamingOutput.BatchListener() {
+					private int index;
+
+					@Override
+					public void onBatch(final byte[] buffer, final int length, final int records) {
+						final ProcessSession batchSession = sessionFactory.createSession();
+						FlowFile batch = batchSession.create();
+						batch = batchSession.write(batch, new OutputStreamCallback() {
+							@Override
+							public void process(final OutputStream out) throws IOException {
+								out.write(buffer, 0, length);
+							}
+						});
+						batchAttributes.put(REMOTE_EXECUTION_STREAM_INDEX, String.valueOf(index++));
+						batchAttributes.put(REMOTE_EXECUTION_STREAM_RECORDS, String.valueOf(records));
+						batch = batchSession.putAllAttributes(batch, batchAttributes);
+						batchSession.getProvenanceReporter().receive(batch, transitUri);
+						batchSession.transfer(batch, SUCCESS);
+						batchSession.commit();
+					}
+				});
+		task.setOutputHandler(output);
+
+		activeStreams.add(task);
+		Result result;
+		try {
+			result = runSafely(task);
+			output.finish();
+		} catch (IOException e) {
+			getLogger().error("Failed to emit the last output batch of {}", new Object[] { task.getCommand() }, e);
+			result = new Result(e.toString(), -127);
+		} finally {
+			activeStreams.remove(task);
+		}
+
+		final long transferMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		final Map<String, String> attributeMap = new HashMap<String, String>();
+		attributeMap.put(REMOTE_EXECUTION_TIME, String.valueOf(transferMillis));
+		attributeMap.put(REMOTE_EXECUTION_EXITCODE, String.valueOf(result.getExitStatus()));
+		attributeMap.put(REMOTE_EXECUTION_STREAM_BATCHES, String.valueOf(output.getBatchCount()));
+		addTimings(session, result.getTimings(), attributeMap);
+		addStderr(session, flowFile, transitUri, result, attributeMap);
+		if (!result.isExecutionSuccessful()) {
+			FlowFile failure = session.clone(flowFile);
+			attributeMap.put(REMOTE_EXECUTION_ERROR, errorMessage(result));
+			failure = session.putAllAttributes(failure, attributeMap);
+			session.transfer(failure, FAILURE);
+		}
+		flowFile = session.putAllAttributes(flowFile, attributeMap);
+		session.getProvenanceReporter().send(flowFile, transitUri, transferMillis);
+		session.transfer(flowFile, ORIGINAL);
+	}
+
+	private void finish(final ProcessContext context, final PendingCommand command) {
+		if (!pending.remove(command)) {
+			return;
+		}
+		try {
+			transferResults(context, command.session, command.flowFile, command.tasks, command.results,
+					command.startNanos);
+			command.session.commit();
+		} catch (final Throwable t) {
+			getLogger().error("Failed to transfer result of remote command {}", new Object[] { command.tasks.get(0).getCommand() }, t);
+			command.session.rollback(true);
+		}
+	}
+
+	private boolean isFanOut() {
+		return !HOSTS_FROM_REMOTE_HOST.getValue().equals(hostListSource);
+	}
+
+	private List<RemoteCommandTask> createTasks(final ProcessContext context, final ProcessSession session,
+			final FlowFile flowFile) {
+		final boolean isHostCheckDisabled = getProperty(context, ALLOW_STRICT_HOSTCHECKING).equalsIgnoreCase(NO);
+		final String command = getProperty(context, COMMAND, flowFile);
+		final List<RemoteCommandTask> tasks = new ArrayList<RemoteCommandTask>();
+		if (isLocal) {
+			final RemoteCommandTask task = new RemoteCommandTask(new LocalProcessTransport(), command, timeoutMillis,
+					watchdog);
+			task.setStderrCapacity(stderrCapacity);
+			tasks.add(task);
+			return tasks;
+		}
+
+		final int port = Integer.valueOf(getProperty(context, REMOTE_PORT, flowFile));
+		final String userName = getProperty(context, REMOTE_USER, flowFile);
+		final String password = getOptionalProperty(context, REMOTE_USERPASSWORD, flowFile);
+		final String privateKeyFile = getOptionalProperty(context, PRIVATE_KEY_FILE, flowFile);
+		// a passphrase may well start or end with a space
+		final String passphrase = context.getProperty(PRIVATE_KEY_PASSPHRASE).evaluateAttributeExpressions(flowFile).getValue();
+		final String knownHostsFile = context.getProperty(KNOWN_HOSTS_FILE).isSet()
+				? context.getProperty(KNOWN_HOSTS_FILE).evaluateAttributeExpressions().getValue().trim() : null;
+		for (String host : getHosts(context, session, flowFile)) {
+			String hostName = host;
+			int hostPort = port;
+			final int separator = host.lastIndexOf(':');
+			if (isFanOut() && separator > 0 && host.indexOf(':') == separator) {
+				hostName = host.substring(0, separator);
+				hostPort = Integer.parseInt(host.substring(separator + 1));
+			}
+			final CommandTransport transport = new SshTransport(hostName, hostPort, userName, password, privateKeyFile,
+					passphrase, knownHostsFile, isHostCheckDisabled);
+			final RemoteCommandTask task = new RemoteCommandTask(transport, command, timeoutMillis, watchdog);
+			task.setStderrCapacity(stderrCapacity);
+			tasks.add(task);
+		}
+		if (tasks.isEmpty()) {
+			throw new ProcessException("No remote hosts found for " + flowFile);
+		}
+		return tasks;
+	}
+
+	private List<String> getHosts(final ProcessContext context, final ProcessSession session, final FlowFile flowFile) {
+		if (HOSTS_FROM_REMOTE_HOST.getValue().equals(hostListSource)) {
+			return Collections.singletonList(getProperty(context, REMOTE_HOST, flowFile));
+		}
+		final String hostList;
+		if (HOSTS_FROM_PROPERTY.getValue().equals(hostListSource)) {
+			hostList = getProperty(context, REMOTE_HOSTS, flowFile);
+		} else {
+			final ByteArrayOutputStream content = new ByteArrayOutputStream();
+			session.read(flowFile, new InputStreamCallback() {
+				@Override
+				public void process(final InputStream in) throws IOException {
+					final byte[] buffer = new byte[8192];
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						content.write(buffer, 0, read);
+					}
+				}
+			});
+			hostList = new String(content.toByteArray(), StandardCharsets.UTF_8);
+		}
+		final List<String> hosts = new ArrayList<String>();
+		for (String host : hostList.split("[,\\s]+")) {
+			if (!host.isEmpty()) {
+				hosts.add(host);
+			}
+		}
+		return hosts;
+	}
+
+	/**
+	 * Runs a single task on the calling thread, or fans a host list out over
+	 * the bounded fan-out pool and waits for every host to finish.
+	 */
+	private List<Result> runAll(final List<RemoteCommandTask> tasks) {
+		if (tasks.size() == 1 && !isFanOut()) {
+			return Collections.singletonList(execute(tasks.get(0), ADMITTED));
+		}
+		final List<Future<Result>> futures = new ArrayList<Future<Result>>(tasks.size());
+		for (final RemoteCommandTask task : tasks) {
+			futures.add(fanOutExecutor.submit(new Callable<Result>() {
+				@Override
+				public Result call() {
+					final Result result = execute(task, -1);
+					if (result == null) {
+						return new Result("Interrupted while waiting for a connection to " + task.getHostName(), -127);
+					}
+					return result;
+				}
+			}));
+		}
+		final List<Result> results = new ArrayList<Result>(tasks.size());
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results.add(futures.get(i).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (RemoteCommandTask task : tasks) {
+					task.kill();
+				}
+				throw new ProcessException("Interrupted while waiting for remote commands", e);
+			} catch (ExecutionException e) {
+				results.add(new Result(String.valueOf(e.getCause()), -127));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Takes a connection slot on the task's host, waiting up to the given
+	 * time (negative to wait as long as it takes).
+	 */
+	private boolean admit(final RemoteCommandTask task, final long waitMillis) {
 		try {
-			remoteSession = jschSSHChannel.getSession(userName, hostName, port);
-			remoteSession.setPassword(password);
-			if (isHostCheckDisabled) {
-				remoteSession.setConfig(STRICT_HOST_KEY_CHECKING, NO);
+			final HostAdmissionControl.Permit permit = admissionControl.acquire(task.getHostName(), waitMillis);
+			task.setPermit(permit);
+			return permit != null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Runs the task through the result cache when it is enabled, taking a
+	 * connection slot first unless the task already holds one.
+	 *
+	 * @return the result, or null if the host stayed busy
+	 */
+	private Result execute(final RemoteCommandTask task, final long admissionWait) {
+		final ResultCache cache = resultCache;
+		if (cache == null) {
+			return admitAndRun(task, admissionWait);
+		}
+		final boolean[] loaded = new boolean[1];
+		final Callable<Result> loader = new Callable<Result>() {
+			@Override
+			public Result call() {
+				loaded[0] = true;
+				return admitAndRun(task, admissionWait);
+			}
+		};
+		try {
+			final Result result = cache.get(ResultCache.key(task.getUserName(), task.getHostName(), task.getPort(),
+					task.getCommand()), loader);
+			return loaded[0] || result == null ? result : asCached(result);
+		} catch (Exception e) {
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
 			}
-			remoteSession.connect();
-			result = executeCommand(command, remoteSession);
-			remoteSession.disconnect();
+			return new Result("Failed to wait for the shared execution of " + task.getCommand() + ": " + e, -127);
+		} finally {
+			// requests that shared another execution never used their slot
+			task.releasePermit();
+		}
+	}
+
+	private Result admitAndRun(final RemoteCommandTask task, final long admissionWait) {
+		if (admissionWait != ADMITTED && !admit(task, admissionWait)) {
+			return null;
+		}
+		return runSafely(task);
+	}
+
+	private Result getCached(final RemoteCommandTask task) {
+		final ResultCache cache = resultCache;
+		if (cache == null) {
+			return null;
+		}
+		final Result result = cache.getIfPresent(ResultCache.key(task.getUserName(), task.getHostName(),
+				task.getPort(), task.getCommand()));
+		return result == null ? null : asCached(result);
+	}
+
+	private static Result asCached(final Result result) {
+		final Result copy = new Result(result.getResultString(), result.getExitStatus());
+		copy.setErrorString(result.getErrorString());
+		copy.setErrorTruncated(result.isErrorTruncated());
+		copy.setCached(true);
+		return copy;
+	}
 
+	private Result runSafely(final RemoteCommandTask task) {
+		try {
+			return task.call();
 		} catch (Exception e) {
-			isExceptionTrue = true;
-			getLogger().error("Failed to execute remote command", new Object[] { command }, e);
+			getLogger().error("Failed to execute remote command", new Object[] { task.getCommand() }, e);
 			StringWriter sw = new StringWriter();
 			e.printStackTrace(new PrintWriter(sw));
-			result = new Result(sw.toString(), -127);
+			final Result result = new Result(sw.toString(), -127);
+			result.setTimings(task.getTimings());
+			return result;
+		} finally {
+			// failed connects are recorded too, they are what a slow network looks like
+			if (task.getTimings() != null) {
+				metrics.record(task.getHostName(), task.getTimings());
+			}
+		}
+	}
+
+	/** Adds the phase breakdown of an execution to the counters and, if given, to the attributes. */
+	private static void addTimings(final ProcessSession session, final PhaseTimings timings,
+			final Map<String, String> attributeMap) {
+		if (timings == null) {
+			return;
+		}
+		session.adjustCounter(COUNTER_EXECUTIONS, 1, false);
+		for (PhaseTimings.Phase phase : PhaseTimings.Phase.values()) {
+			final long millis = timings.getMillis(phase);
+			session.adjustCounter(String.format(COUNTER_PHASE_TIME, phase.getName()), millis, false);
+			if (attributeMap != null) {
+				attributeMap.put(REMOTE_EXECUTION_TIME + "." + phase.getName(), String.valueOf(millis));
+			}
+		}
+	}
+
+	private void transferResults(final ProcessContext context, final ProcessSession session, FlowFile flowFile,
+			final List<RemoteCommandTask> tasks, final List<Result> results, final long startNanos) {
+		if (resultCache != null) {
+			for (Result result : results) {
+				session.adjustCounter(result.isCached() ? COUNTER_CACHE_HITS : COUNTER_CACHE_MISSES, 1, false);
+			}
+		}
+		if (!isFanOut()) {
+			transferResult(context, session, flowFile, tasks.get(0).getCommand(), results.get(0),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+			return;
+		}
+		final String command = tasks.get(0).getCommand();
+		int failures = 0;
+		for (Result result : results) {
+			if (!result.isExecutionSuccessful()) {
+				failures++;
+			}
+		}
+
+		if (getProperty(context, FAN_OUT_OUTPUT).equals(OUTPUT_RECORD_SET.getValue())) {
+			final StringBuilder json = new StringBuilder("[");
+			for (int i = 0; i < tasks.size(); i++) {
+				final RemoteCommandTask task = tasks.get(i);
+				final Result result = results.get(i);
+				json.append(i == 0 ? "\n" : ",\n").append("{\"host\":");
+				appendJsonString(json, task.getHostName());
+				json.append(",\"port\":").append(task.getPort());
+				json.append(",\"exitCode\":").append(result.getExitStatus());
+				json.append(",\"timeMillis\":").append(task.getElapsedMillis());
+				json.append(",\"output\":");
+				appendJsonString(json, result.getResultString());
+				json.append(",\"stderr\":");
+				appendJsonString(json, result.getErrorString());
+				json.append('}');
+			}
+			json.append("\n]\n");
+			final byte[] content = json.toString().getBytes(StandardCharsets.UTF_8);
+			FlowFile records = session.create(flowFile);
+			records = session.write(records, new OutputStreamCallback() {
+				@Override
+				public void process(final OutputStream out) throws IOException {
+					out.write(content);
+				}
+			});
+			records = session.putAttribute(records, CoreAttributes.MIME_TYPE.key(), APPLICATION_JSON);
+			records = session.putAttribute(records, REMOTE_EXECUTION_HOST_COUNT, String.valueOf(tasks.size()));
+			records = session.putAttribute(records, REMOTE_EXECUTION_FAILURE_COUNT, String.valueOf(failures));
+			session.getProvenanceReporter().send(records, command,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+			session.transfer(records, SUCCESS);
+		} else {
+			for (int i = 0; i < tasks.size(); i++) {
+				final RemoteCommandTask task = tasks.get(i);
+				transferHostResult(context, session, flowFile, command, task.getHostName(), results.get(i),
+						task.getElapsedMillis());
+			}
+		}
+
+		final Map<String, String> attributeMap = new HashMap<String, String>();
+		attributeMap.put(REMOTE_EXECUTION_TIME,
+				String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+		attributeMap.put(REMOTE_EXECUTION_HOST_COUNT, String.valueOf(tasks.size()));
+		attributeMap.put(REMOTE_EXECUTION_FAILURE_COUNT, String.valueOf(failures));
+		flowFile = session.putAllAttributes(flowFile, attributeMap);
+		session.transfer(flowFile, ORIGINAL);
+	}
 
+	private void transferHostResult(final ProcessContext context, final ProcessSession session, final FlowFile flowFile,
+			final String command, final String hostName, final Result result, final long transferMillis) {
+		final boolean isDestinationFlowFile = getProperty(context, DESTINATION).equalsIgnoreCase(DESTINATION_CONTENT);
+		final Map<String, String> attributeMap = new HashMap<String, String>();
+		attributeMap.put(REMOTE_EXECUTION_HOST, hostName);
+		attributeMap.put(REMOTE_EXECUTION_TIME, String.valueOf(transferMillis));
+		attributeMap.put(REMOTE_EXECUTION_EXITCODE, String.valueOf(result.getExitStatus()));
+		if (resultCache != null) {
+			attributeMap.put(REMOTE_EXECUTION_CACHED, String.valueOf(result.isCached()));
 		}
-		transferMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		addTimings(session, result.getTimings(), attributeMap);
+		addStderr(session, flowFile, hostName + ":" + command, result, attributeMap);
 
-		for (String key : flowFile.getAttributes().keySet()) {
-			attributeMap.put(key, flowFile.getAttributes().get(key));
+		FlowFile flowFileGenerated;
+		if (result.isExecutionSuccessful() && isDestinationFlowFile) {
+			flowFileGenerated = session.create(flowFile);
+			flowFileGenerated = session.write(flowFileGenerated, new OutputStreamCallback() {
+				@Override
+				public void process(final OutputStream out) throws IOException {
+					out.write(result.getResultString().getBytes(StandardCharsets.UTF_8));
+				}
+			});
+		} else {
+			flowFileGenerated = session.clone(flowFile);
+			if (result.isExecutionSuccessful()) {
+				attributeMap.put(REMOTE_EXECUTION_RESULT, result.getResultString());
+			} else {
+				attributeMap.put(REMOTE_EXECUTION_ERROR, errorMessage(result));
+			}
 		}
+		flowFileGenerated = session.putAllAttributes(flowFileGenerated, attributeMap);
+		session.getProvenanceReporter().send(flowFileGenerated, hostName + ":" + command, transferMillis);
+		session.transfer(flowFileGenerated, result.isExecutionSuccessful() ? SUCCESS : FAILURE);
+	}
+
+	private void transferResult(final ProcessContext context, final ProcessSession session, FlowFile flowFile,
+			final String command, final Result result, final long transferMillis) {
+		final boolean isDestinationFlowFile = getProperty(context, DESTINATION).equalsIgnoreCase(DESTINATION_CONTENT);
+		final Map<String, String> attributeMap = new HashMap<String, String>(flowFile.getAttributes());
+		FlowFile flowFileGenerated;
 
 		attributeMap.put(REMOTE_EXECUTION_TIME, String.valueOf(transferMillis));
-		if (!isExceptionTrue && result.isExecutionSuccessful()) {
+		if (resultCache != null) {
+			attributeMap.put(REMOTE_EXECUTION_CACHED, String.valueOf(result.isCached()));
+		}
+		addTimings(session, result.getTimings(), attributeMap);
+		addStderr(session, flowFile, command, result, attributeMap);
+		if (result.isExecutionSuccessful()) {
 
 			if (isDestinationFlowFile) {
 				flowFileGenerated = session.create();
@@ -252,7 +1217,7 @@ public class ExecuteRemoteCommand extends AbstractProcessor {
 
 		} else {
 			flowFileGenerated = session.clone(flowFile);
-			attributeMap.put(REMOTE_EXECUTION_ERROR, result.getResultString()+"\nError Code Mapping "+ERROR_CODE_MAPPING);
+			attributeMap.put(REMOTE_EXECUTION_ERROR, errorMessage(result));
 			attributeMap.put(REMOTE_EXECUTION_EXITCODE, String.valueOf(result.getExitStatus()));
 			flowFileGenerated = session.putAllAttributes(flowFileGenerated, attributeMap);
 			session.getProvenanceReporter().send(flowFileGenerated, command, transferMillis);
@@ -262,35 +1227,135 @@ public class ExecuteRemoteCommand extends AbstractProcessor {
 		flowFile = session.putAllAttributes(flowFile, attributeMap);
 		session.getProvenanceReporter().send(flowFile, command, transferMillis);
 		session.transfer(flowFile, ORIGINAL);
-		session.commit();
+	}
+
+	/**
+	 * Puts the captured standard error into the attributes or routes it to
+	 * the stderr relationship as a child of the given flowfile.
+	 */
+	private void addStderr(final ProcessSession session, final FlowFile parent, final String transitUri,
+			final Result result, final Map<String, String> attributeMap) {
+		final String stderr = result.getErrorString();
+		if (stderr.isEmpty()) {
+			return;
+		}
+		final String truncated = String.valueOf(result.isErrorTruncated());
+		if (STDERR_TO_ATTRIBUTE.getValue().equals(stderrDestination)) {
+			attributeMap.put(REMOTE_EXECUTION_STDERR, stderr);
+			attributeMap.put(REMOTE_EXECUTION_STDERR_TRUNCATED, truncated);
+		} else if (STDERR_TO_RELATIONSHIP.getValue().equals(stderrDestination)) {
+			FlowFile errorFlowFile = session.create(parent);
+			errorFlowFile = session.write(errorFlowFile, new OutputStreamCallback() {
+				@Override
+				public void process(final OutputStream out) throws IOException {
+					out.write(stderr.getBytes(StandardCharsets.UTF_8));
+				}
+			});
+			errorFlowFile = session.putAttribute(errorFlowFile, REMOTE_EXECUTION_EXITCODE, String.valueOf(result.getExitStatus()));
+			errorFlowFile = session.putAttribute(errorFlowFile, REMOTE_EXECUTION_STDERR_TRUNCATED, truncated);
+			session.getProvenanceReporter().receive(errorFlowFile, transitUri);
+			session.transfer(errorFlowFile, STDERR);
+		}
+	}
 
+	private static String errorMessage(final Result result) {
+		final String stderr = result.getErrorString().isEmpty() ? "" : "\nStandard Error\n" + result.getErrorString();
+		return result.getResultString() + stderr + "\nError Code Mapping " + ERROR_CODE_MAPPING;
 	}
 
 	public String getProperty(ProcessContext context, PropertyDescriptor descriptor) {
 		return context.getProperty(descriptor).getValue().toString().trim();
 	}
 
+	/** Like {@link #getProperty(ProcessContext, PropertyDescriptor, FlowFile)}, null if unset or empty. */
+	private String getOptionalProperty(ProcessContext context, PropertyDescriptor descriptor, FlowFile flowfile) {
+		final String value = context.getProperty(descriptor).evaluateAttributeExpressions(flowfile).getValue();
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+
 	public String getProperty(ProcessContext context, PropertyDescriptor descriptor, FlowFile flowfile) {
 		return context.getProperty(descriptor).evaluateAttributeExpressions(flowfile).getValue().toString().trim();
 
 	}
 
-	private Result executeCommand(String command, Session session) throws Exception {
-		StringBuilder outputBuffer = new StringBuilder();
-		Channel channel = session.openChannel(EXEC);
-		((ChannelExec) channel).setCommand(command);
+	private static byte[] unescape(final String delimiter) {
+		return delimiter.replace("\\n", "\n").replace("\\r", "\r").replace("\\t", "\t")
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void appendJsonString(final StringBuilder json, final String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
 
-		InputStream commandOutput = channel.getInputStream();
-		channel.connect();
-		int readByte = commandOutput.read();
-		while (readByte != 0xffffffff) {
-			outputBuffer.append((char) readByte);
-			readByte = commandOutput.read();
+	/**
+	 * Virtual threads when the runtime has them (Java 21+), otherwise a
+	 * fixed pool sized to the in-flight limit.
+	 */
+	private static ExecutorService newCommandExecutor(final int maxConcurrent) {
+		try {
+			final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(maxConcurrent, newThreadFactory("async"));
 		}
-		result = new Result(outputBuffer.toString(), channel.getExitStatus());
-		channel.disconnect();
-		return result;
 	}
 
+	private static ThreadFactory newThreadFactory(final String purpose) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable,
+						"ExecuteRemoteCommand-" + purpose + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * A flowfile whose command runs on the asynchronous executor. The session
+	 * stays open until the result is collected by a later trigger.
+	 */
+	private static final class PendingCommand {
+		private final ProcessSession session;
+		private final FlowFile flowFile;
+		private final List<RemoteCommandTask> tasks;
+		private final long startNanos = System.nanoTime();
+		private volatile List<Result> results;
+
+		private PendingCommand(ProcessSession session, FlowFile flowFile, List<RemoteCommandTask> tasks) {
+			this.session = session;
+			this.flowFile = flowFile;
+			this.tasks = tasks;
+		}
+	}
 
 }
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.PropertyResolverUtils;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.config.keys.AuthorizedKeysAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+import com.jcraft.jsch.Session;
+
+/**
+ * In-process SSH server on an ephemeral port for tests and benchmarks, so
+ * nothing depends on an sshd on the build machine. A few commands are
+ * scripted and answered by the server itself, which keeps their cost
+ * constant and close to zero:
+ * <ul>
+ * <li>{@code echo <text>} writes the text and a newline</li>
+ * <li>{@code fail <code> [message]} writes the message to stderr and exits with the code</li>
+ * <li>{@code sleep <millis>} waits, then exits with 0</li>
+ * <li>{@code generate <bytes>} writes that many bytes of 64 byte lines</li>
+ * </ul>
+ * Anything else, such as the scripts of batched commands, runs through
+ * /bin/sh on the test machine. Besides the fixed password, keys created with
+ * {@link #createIdentity(String)} are accepted.
+ */
+public class EmbeddedSshServer implements AutoCloseable {
+
+	public static final String USER = "nifi";
+	public static final String PASSWORD = "nifi-test";
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int LINE_LENGTH = 64;
+
+	private final SshServer server;
+	private final Path directory;
+	private final Path authorizedKeys;
+	private final AtomicInteger sessions = new AtomicInteger();
+	private final AtomicInteger commands = new AtomicInteger();
+
+	public EmbeddedSshServer() throws IOException {
+		directory = Files.createTempDirectory("embedded-sshd");
+		authorizedKeys = Files.createFile(directory.resolve("authorized_keys"));
+		server = SshServer.setUpDefaultServer();
+		server.setHost("localhost");
+		server.setPort(0);
+		// keeps Nagle and delayed ACKs from dominating the timing of tiny commands
+		PropertyResolverUtils.updateProperty(server, FactoryManager.TCP_NODELAY, true);
+		final SimpleGeneratorHostKeyProvider hostKeys = new SimpleGeneratorHostKeyProvider();
+		hostKeys.setAlgorithm("RSA");
+		server.setKeyPairProvider(hostKeys);
+		server.setPasswordAuthenticator((user, password, session) -> USER.equals(user) && PASSWORD.equals(password));
+		server.setPublickeyAuthenticator(new AuthorizedKeysAuthenticator(authorizedKeys));
+		server.setCommandFactory(command -> {
+			commands.incrementAndGet();
+			return new ScriptedCommand(command);
+		});
+		server.addSessionListener(new SessionListener() {
+			@Override
+			public void sessionCreated(org.apache.sshd.common.session.Session session) {
+				sessions.incrementAndGet();
+			}
+		});
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getPort();
+	}
+
+	/** Number of SSH sessions, i.e. connects, since the server started. */
+	public int getSessionCount() {
+		return sessions.get();
+	}
+
+	/** Number of exec requests since the server started. */
+	public int getCommandCount() {
+		return commands.get();
+	}
+
+	/**
+	 * Creates an RSA key pair the server accepts for {@link #USER}.
+	 *
+	 * @param passphrase to encrypt the private key with, or null
+	 * @return the private key file
+	 */
+	public File createIdentity(String passphrase) throws JSchException, IOException {
+		final KeyPair keyPair = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048);
+		final File privateKey = Files.createTempFile(directory, "id_rsa", "").toFile();
+		keyPair.writePrivateKey(privateKey.getPath(), passphrase == null ? null : passphrase.getBytes(StandardCharsets.UTF_8));
+		try (OutputStream out = new FileOutputStream(authorizedKeys.toFile(), true)) {
+			keyPair.writePublicKey(out, USER);
+		}
+		keyPair.dispose();
+		return privateKey;
+	}
+
+	/** Writes a known_hosts file that lists this server's host key. */
+	public File createKnownHosts() throws JSchException, IOException {
+		final File knownHosts = Files.createTempFile(directory, "known_hosts", "").toFile();
+		final JSch jsch = new JSch();
+		jsch.setKnownHosts(knownHosts.getPath());
+		final Session session = jsch.getSession(USER, "localhost", getPort());
+		session.setPassword(PASSWORD);
+		// with checking off JSch adds the unknown key to the existing file
+		session.setConfig("StrictHostKeyChecking", "no");
+		session.connect();
+		session.disconnect();
+		return knownHosts;
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.stop(true);
+		for (File file : directory.toFile().listFiles()) {
+			file.delete();
+		}
+		Files.delete(directory);
+	}
+
+	private static class ScriptedCommand implements Command, Runnable {
+		private final String command;
+		private OutputStream out;
+		private OutputStream err;
+		private ExitCallback callback;
+		private volatile Thread thread;
+		private volatile Process process;
+
+		private ScriptedCommand(String command) {
+			this.command = command;
+		}
+
+		@Override
+		public void setInputStream(InputStream in) {
+			// commands are not interactive
+		}
+
+		@Override
+		public void setOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void setErrorStream(OutputStream err) {
+			this.err = err;
+		}
+
+		@Override
+		public void setExitCallback(ExitCallback callback) {
+			this.callback = callback;
+		}
+
+		@Override
+		public void start(Environment env) {
+			thread = new Thread(this, "embedded-sshd-command");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void destroy() {
+			final Thread current = thread;
+			if (current != null) {
+				current.interrupt();
+			}
+			final Process running = process;
+			if (running != null) {
+				running.destroyForcibly();
+			}
+		}
+
+		@Override
+		public void run() {
+			int exitStatus;
+			try {
+				exitStatus = execute();
+				out.flush();
+				err.flush();
+			} catch (InterruptedException e) {
+				exitStatus = 130;
+			} catch (IOException e) {
+				exitStatus = 255;
+			}
+			callback.onExit(exitStatus);
+		}
+
+		private int execute() throws IOException, InterruptedException {
+			final String[] words = command.trim().split(" ", 3);
+			switch (words[0]) {
+			case "echo":
+				out.write((command.trim().substring(4).trim() + "\n").getBytes(StandardCharsets.UTF_8));
+				return 0;
+			case "fail":
+				if (words.length > 2) {
+					err.write((words[2] + "\n").getBytes(StandardCharsets.UTF_8));
+				}
+				return Integer.parseInt(words[1]);
+			case "sleep":
+				Thread.sleep(Long.parseLong(words[1]));
+				return 0;
+			case "generate":
+				generate(Long.parseLong(words[1]));
+				return 0;
+			default:
+				return shell();
+			}
+		}
+
+		private void generate(long bytes) throws IOException {
+			final byte[] line = new byte[LINE_LENGTH];
+			Arrays.fill(line, (byte) 'x');
+			line[LINE_LENGTH - 1] = '\n';
+			for (long left = bytes; left > 0; left -= LINE_LENGTH) {
+				out.write(line, 0, (int) Math.min(LINE_LENGTH, left));
+			}
+		}
+
+		private int shell() throws IOException, InterruptedException {
+			final Process started = new ProcessBuilder("/bin/sh", "-c", command).start();
+			process = started;
+			started.getOutputStream().close();
+			final Thread stderrPump = new Thread(() -> copyQuietly(started.getErrorStream(), err));
+			stderrPump.start();
+			copyQuietly(started.getInputStream(), out);
+			stderrPump.join();
+			return started.waitFor();
+		}
+
+		private static void copyQuietly(InputStream from, OutputStream to) {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			try {
+				int read;
+				while ((read = from.read(buffer)) != -1) {
+					to.write(buffer, 0, read);
+				}
+			} catch (IOException e) {
+				// the channel was closed
+			}
+		}
+	}
+
+}
@@ -16,24 +16,336 @@
  */
 package com.ak.processors.exec_processor;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 
 public class MyProcessorTest {
 
+    private EmbeddedSshServer server;
     private TestRunner testRunner;
 
     @Before
-    public void init() {
+    public void init() throws Exception {
+        server = new EmbeddedSshServer();
         testRunner = TestRunners.newTestRunner(ExecuteRemoteCommand.class);
+        testRunner.setProperty(ExecuteRemoteCommand.REMOTE_HOST, "localhost");
+        testRunner.setProperty(ExecuteRemoteCommand.REMOTE_PORT, String.valueOf(server.getPort()));
+        testRunner.setProperty(ExecuteRemoteCommand.ALLOW_STRICT_HOSTCHECKING, "no");
+        testRunner.setProperty(ExecuteRemoteCommand.REMOTE_USER, EmbeddedSshServer.USER);
+        testRunner.setProperty(ExecuteRemoteCommand.REMOTE_USERPASSWORD, EmbeddedSshServer.PASSWORD);
+    }
+
+    @After
+    public void close() throws Exception {
+        server.close();
     }
 
     @Test
     public void testProcessor() {
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "echo hello");
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 1);
+        testRunner.assertTransferCount(ExecuteRemoteCommand.ORIGINAL, 1);
+        final MockFlowFile result = testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).get(0);
+        result.assertAttributeEquals("remote.execution.result", "hello\n");
+        result.assertAttributeEquals("remote.execution.exitcode", "0");
+        result.assertAttributeExists("remote.execution.time.connect");
+        result.assertAttributeExists("remote.execution.time.auth");
+        assertEquals(1, testRunner.getCounterValue("Remote Executions").longValue());
+    }
+
+    @Test
+    public void testNonZeroExitRoutesToFailure() {
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "fail 3 boom");
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertTransferCount(ExecuteRemoteCommand.FAILURE, 1);
+        final MockFlowFile result = testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.FAILURE).get(0);
+        result.assertAttributeEquals("remote.execution.exitcode", "3");
+        result.assertAttributeEquals("remote.execution.stderr", "boom\n");
+    }
+
+    @Test
+    public void testTimeoutKillsCommand() {
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "sleep 60000");
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND_TIMEOUT, "200 ms");
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertTransferCount(ExecuteRemoteCommand.FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.FAILURE).get(0)
+                .assertAttributeEquals("remote.execution.exitcode", "124");
+    }
+
+    @Test
+    public void testLargeOutputToContent() {
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "generate 1000000");
+        testRunner.setProperty(ExecuteRemoteCommand.DESTINATION, ExecuteRemoteCommand.DESTINATION_CONTENT);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 1);
+        assertEquals(1000000, testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).get(0).getSize());
+    }
+
+    @Test
+    public void testStreamOutputInBatches() {
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "generate 6400");
+        testRunner.setProperty(ExecuteRemoteCommand.STREAM_OUTPUT, "true");
+        testRunner.setProperty(ExecuteRemoteCommand.STREAM_BATCH_SIZE, "10");
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 10);
+        testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).get(0)
+                .assertAttributeEquals("remote.execution.stream.records", "10");
+    }
+
+    @Test
+    public void testBatchRunsInOneSession() {
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "${cmd}");
+        testRunner.setProperty(ExecuteRemoteCommand.BATCH_SIZE, "3");
+        testRunner.enqueue(new byte[0], Collections.singletonMap("cmd", "echo a"));
+        testRunner.enqueue(new byte[0], Collections.singletonMap("cmd", "echo b >&2; exit 2"));
+        testRunner.enqueue(new byte[0], Collections.singletonMap("cmd", "echo c"));
+        testRunner.run();
+
+        assertEquals(1, server.getSessionCount());
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 2);
+        testRunner.assertTransferCount(ExecuteRemoteCommand.FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).get(1)
+                .assertAttributeEquals("remote.execution.result", "c\n");
+        final MockFlowFile failed = testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.FAILURE).get(0);
+        failed.assertAttributeEquals("remote.execution.exitcode", "2");
+        failed.assertAttributeEquals("remote.execution.stderr", "b\n");
+        failed.assertAttributeEquals("remote.execution.batch.size", "3");
+    }
+
+    @Test
+    public void testBatchTimeoutAppliesPerCommand() {
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "${cmd}");
+        testRunner.setProperty(ExecuteRemoteCommand.BATCH_SIZE, "3");
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND_TIMEOUT, "1 sec");
+        testRunner.enqueue(new byte[0], Collections.singletonMap("cmd", "echo 'a'"));
+        testRunner.enqueue(new byte[0], Collections.singletonMap("cmd", "sleep 30"));
+        testRunner.enqueue(new byte[0], Collections.singletonMap("cmd", "echo c"));
+        testRunner.run();
+
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 2);
+        testRunner.assertTransferCount(ExecuteRemoteCommand.FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).get(0)
+                .assertAttributeEquals("remote.execution.result", "a\n");
+        testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).get(1)
+                .assertAttributeEquals("remote.execution.result", "c\n");
+        testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.FAILURE).get(0)
+                .assertAttributeEquals("remote.execution.exitcode", "124");
+    }
+
+    @Test
+    public void testAsynchronousCommandsRunConcurrently() {
+        testRunner.setProperty(ExecuteRemoteCommand.EXECUTION_MODE, ExecuteRemoteCommand.MODE_ASYNCHRONOUS.getValue());
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "sleep 1000");
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(new byte[0]);
+        }
+        final long start = System.nanoTime();
+        testRunner.run(1, false, true);
+        // the first trigger hands every command to the executor and returns right away
+        assertEquals(0, testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).size());
+        while (testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).size() < 3
+                && TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10) {
+            testRunner.run(1, false, false);
+        }
+        testRunner.run(1, true, false);
+
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 3);
+        testRunner.assertTransferCount(ExecuteRemoteCommand.ORIGINAL, 3);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2500);
+    }
+
+    @Test
+    public void testAsynchronousCommandWithoutHostIsRoutedToFailure() {
+        testRunner.setProperty(ExecuteRemoteCommand.EXECUTION_MODE, ExecuteRemoteCommand.MODE_ASYNCHRONOUS.getValue());
+        testRunner.setProperty(ExecuteRemoteCommand.HOST_LIST_SOURCE, ExecuteRemoteCommand.HOSTS_FROM_PROPERTY.getValue());
+        testRunner.setProperty(ExecuteRemoteCommand.REMOTE_HOSTS, "${hosts}");
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "echo nowhere");
+        testRunner.enqueue(new byte[0], Collections.singletonMap("hosts", " "));
+        testRunner.run();
+
+        assertEquals(0, server.getCommandCount());
+        assertEquals(0, testRunner.getQueueSize().getObjectCount());
+        testRunner.assertAllFlowFilesTransferred(ExecuteRemoteCommand.FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.FAILURE).get(0).assertAttributeExists("remote.execution.error");
+        assertEquals(1, testRunner.getLogger().getErrorMessages().size());
+    }
+
+    @Test
+    public void testEmptyQueueDoesNotYieldInSynchronousMode() {
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "echo idle");
+        testRunner.run();
+
+        assertFalse(((MockProcessContext) testRunner.getProcessContext()).isYieldCalled());
+    }
+
+    @Test
+    public void testFanOutGivesEveryHostItsResult() {
+        testRunner.setProperty(ExecuteRemoteCommand.HOST_LIST_SOURCE, ExecuteRemoteCommand.HOSTS_FROM_PROPERTY.getValue());
+        testRunner.setProperty(ExecuteRemoteCommand.REMOTE_HOSTS,
+                "localhost:" + server.getPort() + ", 127.0.0.1:" + server.getPort() + "\n127.0.0.1:1");
+        testRunner.setProperty(ExecuteRemoteCommand.REFUSED_RETRIES, "0");
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "echo fanned");
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        assertEquals(2, server.getCommandCount());
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 2);
+        testRunner.assertTransferCount(ExecuteRemoteCommand.FAILURE, 1);
+        final Set<String> hosts = new HashSet<String>();
+        for (MockFlowFile result : testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS)) {
+            result.assertAttributeEquals("remote.execution.result", "fanned\n");
+            result.assertAttributeEquals("remote.execution.exitcode", "0");
+            hosts.add(result.getAttribute("remote.execution.host"));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("localhost", "127.0.0.1")), hosts);
+        testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.FAILURE).get(0)
+                .assertAttributeEquals("remote.execution.host", "127.0.0.1");
+        final MockFlowFile original = testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.ORIGINAL).get(0);
+        original.assertAttributeEquals("remote.execution.host.count", "3");
+        original.assertAttributeEquals("remote.execution.failure.count", "1");
+    }
+
+    @Test
+    public void testBusyHostReturnsFlowFileToQueue() {
+        testRunner.setProperty(ExecuteRemoteCommand.MAX_CONNECTIONS_PER_HOST, "1");
+        testRunner.setProperty(ExecuteRemoteCommand.ADMISSION_WAIT, "0 sec");
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "sleep 1000");
+        testRunner.setThreadCount(2);
+        testRunner.enqueue(new byte[0]);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run(2);
+
+        assertEquals(1, server.getCommandCount());
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 1);
+        assertEquals(1, testRunner.getQueueSize().getObjectCount());
+
+        testRunner.run();
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 2);
+        testRunner.assertQueueEmpty();
+    }
+
+    @Test
+    public void testResultCacheReusesResults() {
+        testRunner.setProperty(ExecuteRemoteCommand.RESULT_CACHE_TTL, "1 min");
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "echo cached");
+        testRunner.enqueue(new byte[0]);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run(2);
+
+        assertEquals(1, server.getCommandCount());
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 2);
+        final List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS);
+        results.get(0).assertAttributeEquals("remote.execution.cached", "false");
+        results.get(1).assertAttributeEquals("remote.execution.cached", "true");
+        results.get(1).assertAttributeEquals("remote.execution.result", "cached\n");
+        assertEquals(1, testRunner.getCounterValue("Result Cache Hits").longValue());
+    }
+
+    @Test
+    public void testConcurrentCacheMissesShareOneExecution() {
+        testRunner.setProperty(ExecuteRemoteCommand.RESULT_CACHE_TTL, "1 min");
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "sleep 1000");
+        testRunner.setThreadCount(2);
+        testRunner.enqueue(new byte[0]);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run(2);
+
+        assertEquals(1, server.getCommandCount());
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 2);
+        int cached = 0;
+        for (MockFlowFile result : testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS)) {
+            if ("true".equals(result.getAttribute("remote.execution.cached"))) {
+                cached++;
+            }
+        }
+        assertEquals(1, cached);
+    }
+
+    @Test
+    public void testLocalTransportSkipsSsh() {
+        testRunner.setProperty(ExecuteRemoteCommand.TRANSPORT, ExecuteRemoteCommand.TRANSPORT_LOCAL.getValue());
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "echo local; echo warning >&2; cat");
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        assertEquals(0, server.getSessionCount());
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 1);
+        final MockFlowFile result = testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).get(0);
+        // cat sees end of input at once, standard input is closed
+        result.assertAttributeEquals("remote.execution.result", "local\n");
+        result.assertAttributeEquals("remote.execution.stderr", "warning\n");
+        result.assertAttributeEquals("remote.execution.time.connect", "0");
+    }
+
+    @Test
+    public void testPublicKeyWithoutPassword() throws Exception {
+        final File identity = server.createIdentity("secret");
+        testRunner.removeProperty(ExecuteRemoteCommand.REMOTE_USERPASSWORD);
+        testRunner.setProperty(ExecuteRemoteCommand.PRIVATE_KEY_FILE, identity.getPath());
+        testRunner.setProperty(ExecuteRemoteCommand.PRIVATE_KEY_PASSPHRASE, "secret");
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "echo key");
+        testRunner.enqueue(new byte[0]);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run(2);
+
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 2);
+        testRunner.getFlowFilesForRelationship(ExecuteRemoteCommand.SUCCESS).get(1)
+                .assertAttributeEquals("remote.execution.result", "key\n");
+    }
+
+    @Test
+    public void testStrictHostCheckingWithKnownHosts() throws Exception {
+        testRunner.setProperty(ExecuteRemoteCommand.ALLOW_STRICT_HOSTCHECKING, "yes");
+        testRunner.setProperty(ExecuteRemoteCommand.KNOWN_HOSTS_FILE, server.createKnownHosts().getPath());
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "echo trusted");
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertTransferCount(ExecuteRemoteCommand.SUCCESS, 1);
+    }
+
+    @Test
+    public void testUnknownHostKeyRoutesToFailure() throws Exception {
+        final File knownHosts = File.createTempFile("known_hosts", "");
+        knownHosts.deleteOnExit();
+        testRunner.setProperty(ExecuteRemoteCommand.ALLOW_STRICT_HOSTCHECKING, "yes");
+        testRunner.setProperty(ExecuteRemoteCommand.KNOWN_HOSTS_FILE, knownHosts.getPath());
+        testRunner.setProperty(ExecuteRemoteCommand.COMMAND, "echo untrusted");
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
 
+        testRunner.assertTransferCount(ExecuteRemoteCommand.FAILURE, 1);
+        assertEquals(0, server.getCommandCount());
     }
 
 }
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ak.processors.exec_processor.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.ak.processors.exec_processor.EmbeddedSshServer;
+import com.ak.processors.exec_processor.ExecuteRemoteCommand;
+import com.ak.processors.exec_processor.core.CommandBatch;
+import com.ak.processors.exec_processor.core.RemoteCommandTask;
+import com.ak.processors.exec_processor.core.Result;
+import com.ak.processors.exec_processor.core.SshTransport;
+import com.ak.processors.exec_processor.core.StreamingOutput;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Benchmarks of remote execution against {@link EmbeddedSshServer}, so they
+ * run offline and measure the client side rather than a real host. The
+ * scripted commands cost next to nothing on the server.
+ * <ul>
+ * <li>connect, execOnly and connectAndExec split per command cost into
+ * session setup and channel use</li>
+ * <li>batchOfTen shows what batching saves per command against ten
+ * connectAndExec calls</li>
+ * <li>concurrentTasks is the throughput of commands running on many threads
+ * at once</li>
+ * <li>processorLatency is the per FlowFile latency through the processor</li>
+ * <li>streamLargeOutput streams output through StreamingOutput; run it with
+ * the GC profiler, as {@link #main} does, to see that allocation per
+ * operation does not grow with the output size</li>
+ * </ul>
+ * Run with {@code main} from the test classpath, e.g. from the IDE; the
+ * class is not a unit test and surefire skips it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecuteRemoteCommandBenchmark {
+
+	private static final String TINY_COMMAND = "echo benchmark";
+	private static final int BATCH_SIZE = 10;
+
+	@State(Scope.Benchmark)
+	public static class Server {
+		EmbeddedSshServer server;
+		SshTransport transport;
+
+		@Setup(Level.Trial)
+		public void start() throws IOException {
+			server = new EmbeddedSshServer();
+			transport = new SshTransport("localhost", server.getPort(), EmbeddedSshServer.USER,
+					EmbeddedSshServer.PASSWORD, true);
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws IOException {
+			server.close();
+		}
+	}
+
+	/** One open session per benchmark thread, to measure exec without connect. */
+	@State(Scope.Thread)
+	public static class OpenSession {
+		Session session;
+
+		@Setup(Level.Trial)
+		public void connect(Server server) throws JSchException {
+			session = newSession(server);
+			session.connect();
+		}
+
+		@TearDown(Level.Trial)
+		public void disconnect() {
+			session.disconnect();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Processor {
+		TestRunner runner;
+
+		@Setup(Level.Trial)
+		public void schedule(Server server) {
+			runner = TestRunners.newTestRunner(ExecuteRemoteCommand.class);
+			runner.setProperty(ExecuteRemoteCommand.REMOTE_HOST, "localhost");
+			runner.setProperty(ExecuteRemoteCommand.REMOTE_PORT, String.valueOf(server.server.getPort()));
+			runner.setProperty(ExecuteRemoteCommand.ALLOW_STRICT_HOSTCHECKING, "no");
+			runner.setProperty(ExecuteRemoteCommand.REMOTE_USER, EmbeddedSshServer.USER);
+			runner.setProperty(ExecuteRemoteCommand.REMOTE_USERPASSWORD, EmbeddedSshServer.PASSWORD);
+			runner.setProperty(ExecuteRemoteCommand.COMMAND, TINY_COMMAND);
+			runner.run(1, false, true);
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			runner.run(1, true, false);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class LargeOutput {
+		@Param({ "1048576", "67108864" })
+		long bytes;
+	}
+
+	@Benchmark
+	public void connect(Server server) throws JSchException {
+		final Session session = newSession(server);
+		session.connect();
+		session.disconnect();
+	}
+
+	@Benchmark
+	public int execOnly(OpenSession open, Blackhole blackhole) throws JSchException, IOException {
+		final ChannelExec channel = (ChannelExec) open.session.openChannel("exec");
+		channel.setCommand(TINY_COMMAND);
+		final InputStream in = channel.getInputStream();
+		channel.connect();
+		final byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			blackhole.consume(read);
+		}
+		channel.disconnect();
+		return channel.getExitStatus();
+	}
+
+	@Benchmark
+	public Result connectAndExec(Server server) throws Exception {
+		return new RemoteCommandTask(server.transport, TINY_COMMAND, 0, null).call();
+	}
+
+	@Benchmark
+	public List<Result> batchOfTen(Server server) throws Exception {
+		final List<String> commands = new ArrayList<String>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			commands.add(TINY_COMMAND);
+		}
+		final CommandBatch batch = new CommandBatch(commands);
+		final RemoteCommandTask task = new RemoteCommandTask(server.transport, batch.getScript(), 0, null);
+		task.setOutputHandler(batch);
+		batch.start();
+		return batch.split(task.call());
+	}
+
+	@Benchmark
+	@Threads(8)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public Result concurrentTasks(Server server) throws Exception {
+		return new RemoteCommandTask(server.transport, TINY_COMMAND, 0, null).call();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	public void processorLatency(Processor processor) {
+		processor.runner.enqueue(new byte[0]);
+		processor.runner.run(1, false, false);
+		processor.runner.clearTransferState();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Measurement(iterations = 5)
+	public int streamLargeOutput(Server server, LargeOutput output, final Blackhole blackhole) throws Exception {
+		final StreamingOutput streaming = new StreamingOutput(new byte[] { '\n' }, 1024 * 1024, 1000, 1000,
+				new StreamingOutput.BatchListener() {
+					@Override
+					public void onBatch(byte[] buffer, int length, int records) {
+						blackhole.consume(length);
+					}
+				});
+		final RemoteCommandTask task = new RemoteCommandTask(server.transport, "generate " + output.bytes, 0, null);
+		task.setOutputHandler(streaming);
+		task.call();
+		streaming.finish();
+		return streaming.getBatchCount();
+	}
+
+	private static Session newSession(Server server) throws JSchException {
+		final Session session = new JSch().getSession(EmbeddedSshServer.USER, "localhost", server.server.getPort());
+		session.setPassword(EmbeddedSshServer.PASSWORD);
+		session.setConfig("StrictHostKeyChecking", "no");
+		return session;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ExecuteRemoteCommandBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+
+}